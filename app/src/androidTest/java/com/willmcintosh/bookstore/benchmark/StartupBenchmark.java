@@ -0,0 +1,178 @@
+package com.willmcintosh.bookstore.benchmark;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+
+import com.willmcintosh.bookstore.MainActivity;
+import com.willmcintosh.bookstore.R;
+import com.willmcintosh.bookstore.data.BookContract;
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time from launching {@link MainActivity} to the first page of the list
+ * being laid out on screen, with the database closed beforehand so every
+ * launch has to open it again.
+ * <p>
+ * The process is already running, so this leaves out process creation and
+ * the kernel's file cache stays warm. For a true cold start use
+ * {@code adb shell am start -W} after a force stop and read the
+ * "Fully drawn" line the activity reports to the log.
+ * <p>
+ * Run with {@code ./gradlew connectedDebugAndroidTest
+ * -Pandroid.testInstrumentationRunnerArguments.class=com.willmcintosh
+ * .bookstore.benchmark.StartupBenchmark}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    private static final String LOG_TAG = StartupBenchmark.class.getSimpleName();
+
+    /**
+     * Books added for the run, enough to fill more than one page
+     */
+    private static final int CATALOG_SIZE = 200;
+
+    private static final String NAME_PREFIX = "Startup benchmark ";
+
+    private static final int WARMUP = 2;
+
+    private static final int ITERATIONS = 10;
+
+    /**
+     * Longest a single launch may take to show the list, in milliseconds
+     */
+    private static final long TIMEOUT_MS = 10000;
+
+    private Instrumentation mInstrumentation;
+
+    private Context mContext;
+
+    private ContentProviderClient mClient;
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = InstrumentationRegistry.getTargetContext();
+        ContentResolver resolver = mContext.getContentResolver();
+        mClient = resolver.acquireContentProviderClient(BookContract.CONTENT_AUTHORITY);
+        mProvider = (BookProvider) mClient.getLocalContentProvider();
+
+        ContentValues[] books = new ContentValues[CATALOG_SIZE];
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            books[i] = new ContentValues();
+            books[i].put(BookEntry.COLUMN_PRODUCT_NAME, NAME_PREFIX + i);
+            books[i].put(BookEntry.COLUMN_PRICE, 500 + i);
+            books[i].put(BookEntry.COLUMN_QUANTITY, 10);
+            books[i].put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+            books[i].put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        }
+        resolver.bulkInsert(BookEntry.CONTENT_URI, books);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.getContentResolver().delete(BookEntry.CONTENT_URI, BookEntry
+                .COLUMN_PRODUCT_NAME + " LIKE ?", new String[]{NAME_PREFIX + "%"});
+        mClient.release();
+    }
+
+    /**
+     * The database is warmed up from the activity's onCreate while the layout
+     * inflates, which is what happens at launch.
+     */
+    @Test
+    public void firstListClosedDatabase() throws Exception {
+        measure("firstList closed database", false);
+    }
+
+    /**
+     * The database is warmed up before the activity is even started, as the
+     * best case for the warm-up.
+     */
+    @Test
+    public void firstListWarmedDatabase() throws Exception {
+        measure("firstList warmed database", true);
+    }
+
+    private void measure(String name, boolean warmUp) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            launch(warmUp);
+        }
+        long[] latencies = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            latencies[i] = launch(warmUp);
+        }
+        Arrays.sort(latencies);
+        String result = String.format(Locale.US, "%-32s p50 %7.1f ms   p90 %7.1f ms" +
+                        "   max %7.1f ms", name, latencies[ITERATIONS / 2] / 1e6,
+                latencies[(ITERATIONS * 9 + 9) / 10 - 1] / 1e6, latencies[ITERATIONS
+                        - 1] / 1e6);
+        Log.i(LOG_TAG, result);
+        System.out.println(result);
+    }
+
+    /**
+     * Closes the database, launches the activity and waits for the list.
+     *
+     * @return nanoseconds from the launch to the first rows being laid out
+     */
+    private long launch(boolean warmUp) throws Exception {
+        mProvider.shutdown();
+
+        Intent intent = new Intent(Intent.ACTION_MAIN).setClass(mContext,
+                MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        long start = System.nanoTime();
+        if (warmUp) {
+            mProvider.warmUp();
+        }
+        Activity activity = mInstrumentation.startActivitySync(intent);
+        try {
+            waitForList(activity, start);
+            return System.nanoTime() - start;
+        } finally {
+            activity.finish();
+            mInstrumentation.waitForIdleSync();
+        }
+    }
+
+    private void waitForList(Activity activity, long start) throws Exception {
+        final RecyclerView list = (RecyclerView) activity.findViewById(R.id.list);
+        final boolean[] shown = new boolean[1];
+        while (true) {
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    shown[0] = list.getChildCount() > 0;
+                }
+            });
+            if (shown[0]) {
+                return;
+            }
+            assertTrue("List not shown within " + TIMEOUT_MS + " ms", System
+                    .nanoTime() - start < TIMEOUT_MS * 1000000L);
+            Thread.sleep(1);
+        }
+    }
+}
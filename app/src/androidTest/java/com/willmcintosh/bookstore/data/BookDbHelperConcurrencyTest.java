@@ -0,0 +1,174 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.SupplierEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress test showing that page queries keep a flat latency while another
+ * thread is writing continuously, which is what write-ahead logging buys us.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookDbHelperConcurrencyTest {
+
+    private static final String LOG_TAG = BookDbHelperConcurrencyTest.class
+            .getSimpleName();
+
+    private static final String TEST_DATABASE_NAME = "bookstore-concurrency-test.db";
+
+    private static final int CATALOG_SIZE = 5000;
+
+    private static final int SUPPLIERS = 40;
+
+    private static final int SAMPLES = 300;
+
+    private static final String PAGE_QUERY = "SELECT " + BookEntry._ID + ", " +
+            BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", " +
+            BookEntry.COLUMN_QUANTITY + " FROM " + BookEntry.TABLE_NAME + " WHERE " +
+            BookEntry._ID + " > ? ORDER BY " + BookEntry._ID + " LIMIT 50";
+
+    private Context mContext;
+
+    private BookDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mDbHelper = new BookDbHelper(mContext, TEST_DATABASE_NAME);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < SUPPLIERS; i++) {
+                ContentValues supplier = new ContentValues();
+                supplier.put(SupplierEntry.COLUMN_NAME, "Supplier " + i);
+                supplier.put(SupplierEntry.COLUMN_PHONE, "");
+                database.insert(SupplierEntry.TABLE_NAME, null, supplier);
+            }
+            for (int i = 0; i < CATALOG_SIZE; i++) {
+                database.insert(BookEntry.TABLE_NAME, null, book(i));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    @Test
+    public void walIsEnabled() {
+        assertTrue(mDbHelper.getWritableDatabase().isWriteAheadLoggingEnabled());
+    }
+
+    @Test
+    public void readLatencyStaysFlatUnderWriteLoad() throws Exception {
+        final SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        long[] idle = sampleReads(database);
+
+        // sustained write load: small transactions back to back, like a busy
+        // checkout counter
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = CATALOG_SIZE;
+                while (writing.get()) {
+                    database.beginTransactionNonExclusive();
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            database.insert(BookEntry.TABLE_NAME, null, book(i++));
+                        }
+                        database.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " +
+                                BookEntry.COLUMN_QUANTITY + " = " + BookEntry
+                                .COLUMN_QUANTITY + " + 1 WHERE " + BookEntry._ID +
+                                " = " + (1 + i % CATALOG_SIZE));
+                        database.setTransactionSuccessful();
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+            }
+        });
+        writer.start();
+        long[] loaded;
+        try {
+            loaded = sampleReads(database);
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+
+        long idleP95 = percentile(idle, 95);
+        long loadedP95 = percentile(loaded, 95);
+        Log.i(LOG_TAG, "read p50/p95 idle " + percentile(idle, 50) / 1000 + "/" +
+                idleP95 / 1000 + " us, under writes " + percentile(loaded, 50) /
+                1000 + "/" + loadedP95 / 1000 + " us");
+
+        // readers never wait for the writer's lock, so the tail should stay
+        // within a small factor of the idle tail rather than tracking the
+        // length of the write transactions
+        assertTrue("p95 read latency went from " + idleP95 + " ns to " + loadedP95
+                + " ns under write load", loadedP95 <= idleP95 * 5 + 2000000L);
+    }
+
+    /**
+     * Times page queries spread over the catalog and returns the sorted
+     * latencies in nanoseconds.
+     */
+    private static long[] sampleReads(SQLiteDatabase database) {
+        long[] latencies = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            String afterId = String.valueOf((i * 97) % CATALOG_SIZE);
+            long start = System.nanoTime();
+            Cursor cursor = database.rawQuery(PAGE_QUERY, new String[]{afterId});
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    private static ContentValues book(int i) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, "Book " + i);
+        values.put(BookEntry.COLUMN_PRICE, 500 + i % 1000);
+        values.put(BookEntry.COLUMN_QUANTITY, i % 20);
+        // the suppliers were added first, so their IDs start at 1
+        values.put(BookEntry.COLUMN_SUPPLIER_ID, 1 + i % SUPPLIERS);
+        return values;
+    }
+}
@@ -1,97 +1,667 @@
 package com.willmcintosh.bookstore;
 
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.net.Uri;
-import android.util.Log;
+import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+import android.support.v7.widget.RecyclerView;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
-import android.widget.CursorAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.SaleRecorder;
 
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Locale;
 
-public class BookCursorAdapter extends CursorAdapter {
+/**
+ * {@link RecyclerView.Adapter} over a list of book cursors, one per page. Pages
+ * are loaded in ID order with keyset paging, so only the pages the user has
+ * scrolled through are ever held in memory.
+ */
+public class BookCursorAdapter extends RecyclerView.Adapter<BookCursorAdapter
+        .BookViewHolder> {
 
     /**
      * Tag for the log messages
      */
     public static final String LOG_TAG = BookCursorAdapter.class.getSimpleName();
 
+    /**
+     * Number of books loaded per page
+     */
+    public static final int PAGE_SIZE = 50;
+
+    /**
+     * Callback for when a book in the list is clicked.
+     */
+    public interface OnBookClickListener {
+        void onBookClick(long id);
+    }
+
+    /**
+     * A loaded page of books, with its column indices looked up once.
+     */
+    private static class Page {
+        final Cursor cursor;
+        final int idColumnIndex;
+        final int titleColumnIndex;
+        final int priceColumnIndex;
+        final int quantityColumnIndex;
+
+        /**
+         * Query sequence number of the load that produced this page, used to
+         * tell whether a row refresh is newer than the page
+         */
+        final long sequence;
+
+        /**
+         * Number of rows at the start of this page that are already shown at
+         * the end of the page before it. This happens when a row is deleted
+         * from an earlier page and that page reloads with one more row.
+         */
+        int skip;
+
+        Page(Cursor cursor, long sequence) {
+            this.cursor = cursor;
+            this.sequence = sequence;
+            idColumnIndex = cursor.getColumnIndexOrThrow(BookEntry._ID);
+            titleColumnIndex = cursor.getColumnIndexOrThrow(BookEntry
+                    .COLUMN_PRODUCT_NAME);
+            priceColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_PRICE);
+            quantityColumnIndex = cursor.getColumnIndexOrThrow(BookEntry
+                    .COLUMN_QUANTITY);
+        }
+
+        int getCount() {
+            return cursor.getCount() - skip;
+        }
+
+        long lastId() {
+            if (!cursor.moveToLast()) {
+                return 0;
+            }
+            return cursor.getLong(idColumnIndex);
+        }
+
+        /**
+         * Returns the ID of the book at the given cursor position.
+         */
+        long idAt(int cursorPosition) {
+            cursor.moveToPosition(cursorPosition);
+            return cursor.getLong(idColumnIndex);
+        }
+    }
+
+    /**
+     * The displayed values of a single book. Used for rows refreshed on their
+     * own since their page loaded, and for diffing a page against its
+     * reloaded version.
+     */
+    private static class BookRow {
+        final long id;
+        final String title;
+        final int price;
+        final int quantity;
+        final long sequence;
+
+        BookRow(long id, String title, int price, int quantity, long sequence) {
+            this.id = id;
+            this.title = title;
+            this.price = price;
+            this.quantity = quantity;
+            this.sequence = sequence;
+        }
+
+        boolean sameContents(BookRow other) {
+            return price == other.price && quantity == other.quantity && (title ==
+                    null ? other.title == null : title.equals(other.title));
+        }
+    }
+
+    /**
+     * Maximum number of formatted prices kept in {@link #sPriceStrings}
+     */
+    private static final int PRICE_CACHE_SIZE = 256;
+
+    /**
+     * Shared currency formatter. Only used from the UI thread.
+     */
+    private static final NumberFormat sCurrencyFormat = NumberFormat
+            .getCurrencyInstance(Locale.US);
+
+    /**
+     * Formatted prices keyed by price in cents. Catalogs reuse a small set of
+     * price points, so this saves formatting the same price on every bind.
+     */
+    private static final SparseArray<String> sPriceStrings = new SparseArray<>();
+
+    /**
+     * Quantity strings for the stock levels most books sit at, filled in as
+     * they are first shown
+     */
+    private static final String[] sQuantityStrings = new String[256];
+
+    private final Context mContext;
+
+    private final OnBookClickListener mClickListener;
+
+    private final SaleRecorder mSaleRecorder;
+
+    /**
+     * Loaded pages in page order. Pages that have not loaded yet are null.
+     */
+    private final ArrayList<Page> mPages = new ArrayList<>();
+
+    /**
+     * Rows refreshed on their own since their page loaded, keyed by book ID.
+     * They are shown in place of the page's copy until the page reloads with
+     * data at least as new.
+     */
+    private final LongSparseArray<BookRow> mRowOverrides = new LongSparseArray<>();
+
     /**
      * Constructs a new {@link BookCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context       The context
+     * @param clickListener Called when a book is clicked
+     */
+    public BookCursorAdapter(Context context, OnBookClickListener clickListener) {
+        mContext = context;
+        mClickListener = clickListener;
+        mSaleRecorder = SaleRecorder.getInstance(context);
+    }
+
+    /**
+     * Replaces the cursor for the given page. Passing null drops that page and
+     * every page after it. When a loaded page is replaced, the old and new
+     * rows are diffed so only the rows that changed are rebound.
+     *
+     * @param sequence query sequence number of the load that produced the
+     *                 cursor
+     */
+    public void swapPage(int pageIndex, Cursor cursor, long sequence) {
+        int pageCount = getPageCount();
+        boolean fillsHole = pageIndex == pageCount && mPages.size() > pageIndex + 1;
+        if (cursor == null || pageIndex > pageCount || fillsHole) {
+            if (cursor == null) {
+                while (mPages.size() > pageIndex) {
+                    mPages.remove(mPages.size() - 1);
+                }
+            } else {
+                setPage(pageIndex, new Page(cursor, sequence));
+            }
+            updateSkips();
+            notifyDataSetChanged();
+            return;
+        }
+
+        // Replacing this page can also change how many rows the next page
+        // skips, so diff both. Later pages can't be affected.
+        int offset = countBefore(pageIndex);
+        ArrayList<BookRow> oldRows = snapshot(pageIndex, pageIndex + 2);
+        setPage(pageIndex, new Page(cursor, sequence));
+        updateSkips();
+        ArrayList<BookRow> newRows = snapshot(pageIndex, pageIndex + 2);
+
+        DiffUtil.calculateDiff(new RowDiffCallback(oldRows, newRows), false)
+                .dispatchUpdatesTo(new OffsetUpdateCallback(offset));
+    }
+
+    /**
+     * Shows freshly queried values for a single book without reloading its
+     * page.
+     *
+     * @param values   the book's columns
+     * @param sequence query sequence number of the row query
+     * @return false if the book isn't in a loaded page, in which case its page
+     * needs to be reloaded instead
+     */
+    public boolean updateRow(long id, ContentValues values, long sequence) {
+        int pageIndex = findPage(id);
+        if (pageIndex == -1) {
+            return false;
+        }
+        Page page = mPages.get(pageIndex);
+        int cursorPosition = findRow(page, id);
+        if (cursorPosition == -1) {
+            return false;
+        }
+
+        // ignore results that are older than what is already shown
+        BookRow current = mRowOverrides.get(id);
+        if (page.sequence > sequence || (current != null && current.sequence >
+                sequence)) {
+            return true;
+        }
+
+        mRowOverrides.put(id, new BookRow(id, values.getAsString(BookEntry
+                .COLUMN_PRODUCT_NAME), values.getAsInteger(BookEntry.COLUMN_PRICE),
+                values.getAsInteger(BookEntry.COLUMN_QUANTITY), sequence));
+        notifyItemChanged(countBefore(pageIndex) + cursorPosition - page.skip);
+        return true;
+    }
+
+    /**
+     * Returns the index of the loaded page that holds, or would hold, the
+     * given book, or -1 if it is past the loaded pages.
+     */
+    public int getPageIndexFor(long id) {
+        int pageCount = getPageCount();
+        for (int i = 0; i < pageCount; i++) {
+            if (id <= mPages.get(i).lastId()) {
+                return i;
+            }
+        }
+        // new books go at the end, which is only loaded if the last page
+        // isn't full
+        if (pageCount > 0 && !hasMorePages()) {
+            return pageCount - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of pages that have loaded, counting from the first
+     * page.
      */
-    public BookCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0 /* flags */);
+    public int getPageCount() {
+        int count = 0;
+        while (count < mPages.size() && mPages.get(count) != null) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether there may be more books after the last loaded page.
+     */
+    public boolean hasMorePages() {
+        int pageCount = getPageCount();
+        return pageCount > 0 && mPages.get(pageCount - 1).cursor.getCount() >=
+                PAGE_SIZE;
+    }
+
+    /**
+     * Returns the ID of the last book loaded, which is where the next page
+     * starts.
+     */
+    public long getLastId() {
+        int pageCount = getPageCount();
+        if (pageCount == 0) {
+            return 0;
+        }
+        return mPages.get(pageCount - 1).lastId();
+    }
+
+    @Override
+    public int getItemCount() {
+        int count = 0;
+        int pageCount = getPageCount();
+        for (int i = 0; i < pageCount; i++) {
+            count += mPages.get(i).getCount();
+        }
+        return count;
     }
 
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      */
+    @NonNull
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public BookViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent,
+                false);
+        BookViewHolder holder = new BookViewHolder(view);
+
+        // the listeners are shared by every row and find the book through the
+        // holder stored in the view's tag
+        view.setTag(holder);
+        view.setOnClickListener(mRowClickListener);
+        holder.saleButton.setTag(holder);
+        holder.saleButton.setOnClickListener(mSaleClickListener);
+        return holder;
     }
 
     /**
-     * This method binds the book data (in the current row pointed to by cursor)
-     * to the given list item layout.
+     * This method binds the book data at the given position to the given list
+     * item layout.
      */
     @Override
-    public void bindView(View view, final Context context, final Cursor cursor) {
-        // find views to modify
-        TextView titleTextView = view.findViewById(R.id.title);
-        TextView priceTextView = view.findViewById(R.id.price);
-        TextView quantityTextView = view.findViewById(R.id.quantity);
-
-        // find columns of book attributes to display
-        int titleColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_PRODUCT_NAME);
-        int priceColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_PRICE);
-        int quantityColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_QUANTITY);
-
-        // read book attributes from current book
-        String bookTitle = cursor.getString(titleColumnIndex);
-        int bookPrice = cursor.getInt(priceColumnIndex);
-        // convert book price to currency
-        NumberFormat num = NumberFormat.getCurrencyInstance(Locale.US);
-        String priceString = num.format(bookPrice / 100.00);
-        final int bookQuantity = cursor.getInt(quantityColumnIndex);
+    public void onBindViewHolder(@NonNull BookViewHolder holder, int position) {
+        Page page = moveToPosition(position);
+        Cursor cursor = page.cursor;
+
+        // read book attributes from current book, preferring a row that was
+        // refreshed after the page loaded
+        holder.id = cursor.getLong(page.idColumnIndex);
+        BookRow override = mRowOverrides.get(holder.id);
+        int bookPrice;
+        int bookQuantity;
+        if (override == null) {
+            cursor.copyStringToBuffer(page.titleColumnIndex, holder.titleBuffer);
+            holder.titleTextView.setText(holder.titleBuffer.data, 0, holder
+                    .titleBuffer.sizeCopied);
+            bookPrice = cursor.getInt(page.priceColumnIndex);
+            bookQuantity = cursor.getInt(page.quantityColumnIndex);
+        } else {
+            holder.titleTextView.setText(override.title);
+            bookPrice = override.price;
+            bookQuantity = override.quantity;
+        }
+
+        // show sales that are still waiting to be written straight away
+        bookQuantity -= mSaleRecorder.getPendingCount(holder.id);
+        holder.quantity = bookQuantity;
 
         // update textview with attributes from current book
-        titleTextView.setText(bookTitle);
-        priceTextView.setText(priceString);
-        quantityTextView.setText(String.valueOf(bookQuantity));
-
-        // apply listener to sale button
-        Button saleButton = view.findViewById(R.id.button_sale);
-        final String id = cursor.getString(cursor.getColumnIndex(BookEntry._ID));
-
-        saleButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View view) {
-                if (bookQuantity > 0) {
-                    Log.e(LOG_TAG, String.valueOf(bookQuantity));
-                    Uri currentBookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, Long
-                            .parseLong(id));
-                    ContentValues values = new ContentValues();
-                    values.put(BookEntry.COLUMN_QUANTITY, bookQuantity - 1);
-                    context.getContentResolver().update(currentBookUri, values, null, null);
-                    swapCursor(cursor);
+        holder.priceTextView.setText(formatPrice(bookPrice));
+        holder.quantityTextView.setText(formatQuantity(bookQuantity));
+    }
+
+    /**
+     * Opens the book whose row was clicked.
+     */
+    private final View.OnClickListener mRowClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            BookViewHolder holder = (BookViewHolder) view.getTag();
+            mClickListener.onBookClick(holder.id);
+        }
+    };
+
+    /**
+     * Sells one copy of the book whose sale button was clicked. The sale is
+     * queued with the {@link SaleRecorder} and shown right away; the provider
+     * still checks the stock when the queue is written.
+     */
+    private final View.OnClickListener mSaleClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            BookViewHolder holder = (BookViewHolder) view.getTag();
+            if (holder.quantity <= 0) {
+                Toast.makeText(mContext, mContext.getString(R.string
+                        .sale_out_of_stock), Toast.LENGTH_SHORT).show();
+                return;
+            }
+            mSaleRecorder.recordSale(holder.id);
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                notifyItemChanged(position);
+            }
+        }
+    };
+
+    /**
+     * Returns the given price in cents as a currency string, formatting each
+     * price only once.
+     */
+    private static String formatPrice(int cents) {
+        String priceString = sPriceStrings.get(cents);
+        if (priceString == null) {
+            if (sPriceStrings.size() >= PRICE_CACHE_SIZE) {
+                sPriceStrings.clear();
+            }
+            priceString = sCurrencyFormat.format(cents / 100.00);
+            sPriceStrings.put(cents, priceString);
+        }
+        return priceString;
+    }
+
+    /**
+     * Returns the given quantity as a string, reusing the strings for small
+     * quantities.
+     */
+    private static String formatQuantity(int quantity) {
+        if (quantity < 0 || quantity >= sQuantityStrings.length) {
+            return String.valueOf(quantity);
+        }
+        String quantityString = sQuantityStrings[quantity];
+        if (quantityString == null) {
+            quantityString = String.valueOf(quantity);
+            sQuantityStrings[quantity] = quantityString;
+        }
+        return quantityString;
+    }
+
+    /**
+     * Moves the cursor of the page holding the given position to that row and
+     * returns the page.
+     */
+    private Page moveToPosition(int position) {
+        int pageCount = getPageCount();
+        for (int i = 0; i < pageCount; i++) {
+            Page page = mPages.get(i);
+            int count = page.getCount();
+            if (position < count) {
+                page.cursor.moveToPosition(page.skip + position);
+                return page;
+            }
+            position -= count;
+        }
+        throw new IllegalStateException("No book at position " + position);
+    }
+
+    /**
+     * Stores a page, growing the list of pages if needed, and drops any row
+     * overrides that the page's data is at least as new as.
+     */
+    private void setPage(int pageIndex, Page page) {
+        while (mPages.size() <= pageIndex) {
+            mPages.add(null);
+        }
+        mPages.set(pageIndex, page);
+
+        Cursor cursor = page.cursor;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            long id = cursor.getLong(page.idColumnIndex);
+            BookRow override = mRowOverrides.get(id);
+            if (override != null && override.sequence <= page.sequence) {
+                mRowOverrides.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows shown before the given page.
+     */
+    private int countBefore(int pageIndex) {
+        int count = 0;
+        for (int i = 0; i < pageIndex; i++) {
+            count += mPages.get(i).getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the index of the loaded page whose ID range covers the given
+     * book, or -1 if none does.
+     */
+    private int findPage(long id) {
+        int pageCount = getPageCount();
+        for (int i = 0; i < pageCount; i++) {
+            Page page = mPages.get(i);
+            if (page.getCount() > 0 && id <= page.lastId()) {
+                return id >= page.idAt(page.skip) ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the cursor position of the given book in the page, or -1 if it
+     * isn't there. Pages are in ID order, so this is a binary search.
+     */
+    private static int findRow(Page page, long id) {
+        int low = page.skip;
+        int high = page.cursor.getCount() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = page.idAt(middle);
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the rows shown for the given range of pages, with any row
+     * overrides applied.
+     */
+    private ArrayList<BookRow> snapshot(int fromPage, int toPage) {
+        ArrayList<BookRow> rows = new ArrayList<>();
+        int end = Math.min(toPage, getPageCount());
+        for (int i = fromPage; i < end; i++) {
+            Page page = mPages.get(i);
+            Cursor cursor = page.cursor;
+            for (int position = page.skip; position < cursor.getCount(); position++) {
+                cursor.moveToPosition(position);
+                long id = cursor.getLong(page.idColumnIndex);
+                BookRow override = mRowOverrides.get(id);
+                if (override != null) {
+                    rows.add(override);
+                } else {
+                    rows.add(new BookRow(id, cursor.getString(page.titleColumnIndex),
+                            cursor.getInt(page.priceColumnIndex), cursor.getInt(page
+                            .quantityColumnIndex), page.sequence));
                 }
             }
-        });
+        }
+        return rows;
+    }
+
+    /**
+     * Diffs two snapshots of the same stretch of the list by book ID.
+     */
+    private static class RowDiffCallback extends DiffUtil.Callback {
+        private final ArrayList<BookRow> mOldRows;
+        private final ArrayList<BookRow> mNewRows;
+
+        RowDiffCallback(ArrayList<BookRow> oldRows, ArrayList<BookRow> newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).id == mNewRows.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).sameContents(mNewRows.get
+                    (newItemPosition));
+        }
+    }
+
+    /**
+     * Forwards the updates from a diff of one stretch of the list to the
+     * adapter, shifted to where that stretch starts.
+     */
+    private class OffsetUpdateCallback implements ListUpdateCallback {
+        private final int mOffset;
+
+        OffsetUpdateCallback(int offset) {
+            mOffset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(mOffset + position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(mOffset + position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(mOffset + fromPosition, mOffset + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            notifyItemRangeChanged(mOffset + position, count, payload);
+        }
+    }
+
+    /**
+     * Works out how many leading rows of each page are already shown by the
+     * page before it.
+     */
+    private void updateSkips() {
+        int pageCount = getPageCount();
+        for (int i = 0; i < pageCount; i++) {
+            Page page = mPages.get(i);
+            page.skip = 0;
+            if (i == 0) {
+                continue;
+            }
+            long previousLastId = mPages.get(i - 1).lastId();
+            Cursor cursor = page.cursor;
+            while (page.skip < cursor.getCount() && cursor.moveToPosition(page
+                    .skip) && cursor.getLong(page.idColumnIndex) <= previousLastId) {
+                page.skip++;
+            }
+        }
+    }
+
+    /**
+     * Holds the views of a single list item, and the ID of the book bound to
+     * it so the shared listeners know which book was clicked.
+     */
+    static class BookViewHolder extends RecyclerView.ViewHolder {
+        final TextView titleTextView;
+        final TextView priceTextView;
+        final TextView quantityTextView;
+        final Button saleButton;
+
+        /**
+         * Reused buffer for the title so binding doesn't allocate a String
+         */
+        final CharArrayBuffer titleBuffer = new CharArrayBuffer(64);
+
+        long id;
 
+        /**
+         * Quantity shown, including sales that haven't been written yet
+         */
+        int quantity;
 
+        BookViewHolder(View itemView) {
+            super(itemView);
+            titleTextView = itemView.findViewById(R.id.title);
+            priceTextView = itemView.findViewById(R.id.price);
+            quantityTextView = itemView.findViewById(R.id.quantity);
+            saleButton = itemView.findViewById(R.id.button_sale);
+        }
     }
 
 }
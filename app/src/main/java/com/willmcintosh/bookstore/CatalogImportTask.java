@@ -0,0 +1,178 @@
+package com.willmcintosh.bookstore;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.willmcintosh.bookstore.data.CatalogImporter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Runs a {@link CatalogImporter} off the main thread. Only one import runs at
+ * a time, and it outlives the activity that started it: a recreated activity
+ * attaches to the running task to keep showing its progress, and picks up
+ * the result if the import finished while no activity was attached.
+ */
+final class CatalogImportTask extends AsyncTask<Void, Integer, CatalogImporter
+        .Result> {
+
+    public static final String LOG_TAG = CatalogImportTask.class.getSimpleName();
+
+    /**
+     * Name of the file the rejected rows are written to
+     */
+    private static final String ERROR_REPORT_NAME = "import-errors.csv";
+
+    /**
+     * Receives the task's progress and result on the main thread.
+     */
+    interface Callbacks {
+        void onImportProgress(int rowsRead, int percent);
+
+        void onImportFinished(CatalogImporter.Result result, Exception error);
+    }
+
+    /**
+     * The import that is running, or has finished without an activity to
+     * report to
+     */
+    private static CatalogImportTask sCurrent;
+
+    private final Context mContext;
+
+    private final Uri mCatalogUri;
+
+    private Callbacks mCallbacks;
+
+    private Exception mError;
+
+    private boolean mFinished;
+
+    private CatalogImporter.Result mResult;
+
+    private CatalogImportTask(Context context, Uri catalogUri) {
+        mContext = context.getApplicationContext();
+        mCatalogUri = catalogUri;
+    }
+
+    /**
+     * Starts importing the catalog at the given URI.
+     *
+     * @return false if an import is already running
+     */
+    static boolean start(Context context, Uri catalogUri, Callbacks callbacks) {
+        if (sCurrent != null && !sCurrent.mFinished) {
+            return false;
+        }
+        sCurrent = new CatalogImportTask(context, catalogUri);
+        sCurrent.mCallbacks = callbacks;
+        sCurrent.execute();
+        return true;
+    }
+
+    /**
+     * Reports the current import to the given callbacks from now on. If it
+     * has already finished the result is delivered straight away.
+     */
+    static void attach(Callbacks callbacks) {
+        if (sCurrent == null) {
+            return;
+        }
+        sCurrent.mCallbacks = callbacks;
+        if (sCurrent.mFinished) {
+            sCurrent.deliverResult();
+        }
+    }
+
+    /**
+     * Stops reporting to the given callbacks, which are going away.
+     */
+    static void detach(Callbacks callbacks) {
+        if (sCurrent != null && sCurrent.mCallbacks == callbacks) {
+            sCurrent.mCallbacks = null;
+        }
+    }
+
+    @Override
+    protected CatalogImporter.Result doInBackground(Void... params) {
+        ContentResolver resolver = mContext.getContentResolver();
+        try {
+            long length = queryLength(resolver);
+            InputStream in = resolver.openInputStream(mCatalogUri);
+            if (in == null) {
+                throw new FileNotFoundException("Can't open " + mCatalogUri);
+            }
+
+            File reportDir = mContext.getExternalFilesDir(null);
+            if (reportDir == null) {
+                reportDir = mContext.getFilesDir();
+            }
+            File errorReport = new File(reportDir, ERROR_REPORT_NAME);
+            errorReport.delete();
+
+            CatalogImporter importer = new CatalogImporter(resolver);
+            return importer.importCsv(in, length, errorReport, new
+                    CatalogImporter.ProgressListener() {
+                @Override
+                public void onProgress(int rowsRead, int percent) {
+                    publishProgress(rowsRead, percent);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            // a bad file or a failed write ends the import, but not the app
+            Log.e(LOG_TAG, "Failed to import " + mCatalogUri, e);
+            mError = e;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the size of the catalog in bytes, or -1 if the provider it
+     * comes from doesn't say.
+     */
+    private long queryLength(ContentResolver resolver) {
+        Cursor cursor = resolver.query(mCatalogUri, new String[]{OpenableColumns
+                .SIZE}, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (mCallbacks != null) {
+            mCallbacks.onImportProgress(values[0], values[1]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(CatalogImporter.Result result) {
+        mResult = result;
+        mFinished = true;
+        if (mCallbacks != null) {
+            deliverResult();
+        }
+    }
+
+    private void deliverResult() {
+        Callbacks callbacks = mCallbacks;
+        sCurrent = null;
+        callbacks.onImportFinished(mResult, mError);
+    }
+}
@@ -27,6 +27,9 @@ import android.widget.Toast;
 
 import com.willmcintosh.bookstore.data.BookContract;
 import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookWriter;
+
+import java.lang.ref.WeakReference;
 
 public class EditorActivity extends AppCompatActivity implements LoaderManager
         .LoaderCallbacks<Cursor> {
@@ -86,6 +89,18 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager
      */
     private boolean mBookHasChanged = false;
 
+    /**
+     * Whether a save is waiting on the database
+     */
+    private boolean mSaving;
+
+    /**
+     * Receives the result of the save or delete in progress, if any
+     */
+    private WriteCallback mWriteCallback;
+
+    private boolean mDestroyed;
+
     /**
      * OnTouchListener to check for user changes
      */
@@ -184,12 +199,23 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager
             }
         });
 
+        // pick up a save or delete started before a configuration change,
+        // which may already have finished
+        WriteCallback pending = (WriteCallback) getLastCustomNonConfigurationInstance();
+        if (pending != null) {
+            mWriteCallback = pending;
+            mSaving = !pending.mDelete;
+            pending.attach(this);
+        }
     }
 
     /**
      * Get user input from editor and save book into database
      */
     private void saveBook() {
+        if (mSaving) {
+            return;
+        }
         // Read from input fields
         String nameString = mNameEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
@@ -240,54 +266,41 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager
         values.put(BookEntry.COLUMN_SUPPLIER_NAME, supplierNameString);
         values.put(BookEntry.COLUMN_SUPPLIER_PHONE, phoneString);
 
-        // Determine if this is a new or existing book
+        // the write runs in the background; the activity closes once it's
+        // done, and further saves are ignored until then
+        mSaving = true;
+        mWriteCallback = new WriteCallback(this, false, invalidPhone);
         if (mCurrentBookUri == null) {
             // This is a new book
-            // Insert a new book into the provider, returning the content URI
-            // for
-            // the new book.
-            Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
-            // Show a toast message depending on whether or not the insertion
-            // was successful
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error
-                // with insertion.
-                Toast.makeText(this, getString(R.string.editor_update_book_failed), Toast
-                        .LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display
-                // a toast.
-                if (invalidPhone) {
-                    Toast.makeText(this, getString(R.string.editor_null_phone), Toast
-                            .LENGTH_SHORT).show();
-                } else {
-                    Toast.makeText(this, getString(R.string.editor_update_book_success), Toast
-                            .LENGTH_SHORT).show();
-                }
-            }
+            BookWriter.getInstance(this).insert(BookEntry.CONTENT_URI, values,
+                    mWriteCallback);
         } else {
             // this is an existing book
-            int rowsAffected = getContentResolver().update(mCurrentBookUri, values, null, null);
+            BookWriter.getInstance(this).update(mCurrentBookUri, values, null, null,
+                    mWriteCallback);
+        }
+    }
 
-            if (rowsAffected == 0) {
-                // possible issue with update
-                Toast.makeText(this, getString(R.string.editor_update_book_failed), Toast
-                        .LENGTH_SHORT).show();
-            } else {
-                // the update was successful
-                if (invalidPhone) {
-                    Toast.makeText(this, getString(R.string.editor_null_phone), Toast
-                            .LENGTH_SHORT).show();
-                } else {
-                    Toast.makeText(this, getString(R.string.editor_update_book_success), Toast
-                            .LENGTH_SHORT).show();
-                }
-            }
+    /**
+     * Show the result of a save and close the editor.
+     */
+    private void onSaveComplete(boolean saved, boolean invalidPhone) {
+        mSaving = false;
+        // Show a toast message depending on whether or not the save was
+        // successful
+        if (!saved) {
+            Toast.makeText(this, getString(R.string.editor_update_book_failed), Toast
+                    .LENGTH_SHORT).show();
+        } else if (invalidPhone) {
+            Toast.makeText(this, getString(R.string.editor_null_phone), Toast
+                    .LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, getString(R.string.editor_update_book_success), Toast
+                    .LENGTH_SHORT).show();
         }
 
         // Exit activity
         finish();
-
     }
 
     @Override
@@ -494,11 +507,16 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager
      * Perform the deletion of the pet in the database.
      */
     private void deleteBook() {
-        int rowsDeleted = 0;
-        if (mCurrentBookUri != null) {
-            rowsDeleted = getContentResolver().delete(mCurrentBookUri, null, null);
+        if (mCurrentBookUri == null) {
+            onDeleteComplete(0);
+            return;
         }
+        mWriteCallback = new WriteCallback(this, true, false);
+        BookWriter.getInstance(this).delete(mCurrentBookUri, null, null,
+                mWriteCallback);
+    }
 
+    private void onDeleteComplete(int rowsDeleted) {
         // Show a toast message depending on whether or not the delete was
         // successful.
         if (rowsDeleted == 0) {
@@ -513,4 +531,101 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager
         // close activity
         finish();
     }
+
+    /**
+     * Keeps a save or delete in progress for the editor that replaces this
+     * one, so its result still closes the editor and a second save can't
+     * write the book again.
+     */
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mWriteCallback;
+    }
+
+    @Override
+    protected void onDestroy() {
+        // a write still running finishes; after a configuration change the
+        // new editor shows its result, otherwise nothing is shown for it
+        mDestroyed = true;
+        if (mWriteCallback != null) {
+            mWriteCallback.clear();
+            mWriteCallback = null;
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Hands the result of a save or delete back to the editor that started
+     * it, or to the one that replaced it after a configuration change. The
+     * editor is only held weakly and is skipped once destroyed, so a write
+     * that outlives it neither keeps it alive nor shows toasts from it or
+     * finishes it. A result that arrives with no editor attached is kept
+     * until the next one attaches.
+     */
+    private static final class WriteCallback implements BookWriter.InsertCallback,
+            BookWriter.Callback {
+
+        private WeakReference<EditorActivity> mEditor;
+
+        private final boolean mDelete;
+
+        private final boolean mInvalidPhone;
+
+        /**
+         * Rows written, or -1 while the write is still running or its result
+         * has already been shown
+         */
+        private int mRows = -1;
+
+        WriteCallback(EditorActivity editor, boolean delete, boolean invalidPhone) {
+            mEditor = new WeakReference<>(editor);
+            mDelete = delete;
+            mInvalidPhone = invalidPhone;
+        }
+
+        void clear() {
+            mEditor.clear();
+        }
+
+        /**
+         * Hands the write to a new editor, showing its result right away if
+         * it finished while no editor was attached.
+         */
+        void attach(EditorActivity editor) {
+            mEditor = new WeakReference<>(editor);
+            if (mRows >= 0) {
+                int rows = mRows;
+                mRows = -1;
+                deliver(rows);
+            }
+        }
+
+        @Override
+        public void onInsertComplete(Uri newUri) {
+            deliver(newUri == null ? 0 : 1);
+        }
+
+        @Override
+        public void onWriteComplete(int rows) {
+            deliver(rows);
+        }
+
+        private void deliver(int rows) {
+            EditorActivity editor = mEditor.get();
+            if (editor == null) {
+                // between editors, or the editor went away for good
+                mRows = rows;
+                return;
+            }
+            if (editor.mDestroyed || editor.mWriteCallback != this) {
+                return;
+            }
+            editor.mWriteCallback = null;
+            if (mDelete) {
+                editor.onDeleteComplete(rows);
+            } else {
+                editor.onSaveComplete(rows > 0, mInvalidPhone);
+            }
+        }
+    }
 }
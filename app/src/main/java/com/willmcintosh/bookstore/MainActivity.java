@@ -1,39 +1,204 @@
 package com.willmcintosh.bookstore;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.willmcintosh.bookstore.data.BookContract;
 import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.StatsEntry;
+import com.willmcintosh.bookstore.data.BookWriter;
+import com.willmcintosh.bookstore.data.CatalogImporter;
+import com.willmcintosh.bookstore.data.SaleRecorder;
+
+import java.text.NumberFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class MainActivity extends AppCompatActivity implements LoaderManager
-        .LoaderCallbacks<Cursor> {
+        .LoaderCallbacks<Cursor>, CatalogImportTask.Callbacks {
 
+    /**
+     * ID of the loader for the first page. Page n uses BOOK_LOADER + n.
+     */
     private static final int BOOK_LOADER = 0;
 
+    /**
+     * ID of the loader for the inventory statistics, below the page IDs
+     */
+    private static final int STATS_LOADER = -1;
+
+    /**
+     * Loader argument with the ID the page starts after
+     */
+    private static final String ARG_AFTER_ID = "after_id";
+
+    /**
+     * Saved state key for the number of pages loaded
+     */
+    private static final String STATE_PAGE_COUNT = "page_count";
+
+    /**
+     * Saved state key for whether only books low on stock are listed
+     */
+    private static final String STATE_LOW_STOCK = "low_stock";
+
+    /**
+     * Request code for picking a catalog to import
+     */
+    private static final int REQUEST_IMPORT_CATALOG = 1;
+
+    /**
+     * Start loading the next page when the user scrolls this close to the end
+     */
+    private static final int PREFETCH_DISTANCE = BookCursorAdapter.PAGE_SIZE / 2;
+
+    /**
+     * Columns shown in the list
+     */
+    private static final String[] PROJECTION = {BookEntry._ID, BookEntry
+            .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY};
+
+    /**
+     * Sequence number taken by every page and row query as it starts, so the
+     * adapter can tell which of two results for the same book is newer
+     */
+    private static final AtomicLong sQuerySequence = new AtomicLong();
+
     BookCursorAdapter mCursorAdapter;
 
+    private LinearLayoutManager mLayoutManager;
+
+    private View mEmptyView;
+
+    private TextView mStatsTextView;
+
+    private ProgressBar mImportProgress;
+
+    /**
+     * Number of pages requested so far, including one that may still be
+     * loading
+     */
+    private int mRequestedPages;
+
+    /**
+     * Whether the list only shows books that need reordering
+     */
+    private boolean mLowStockOnly;
+
+    /**
+     * Runs single-row refreshes in the order the changes were notified
+     */
+    private ExecutorService mRowExecutor;
+
+    private final Handler mHandler = new Handler();
+
+    private boolean mDestroyed;
+
+    /**
+     * Whether the first page has been shown since the activity was created
+     */
+    private boolean mReportedFullyDrawn;
+
+    /**
+     * Loads the inventory statistics. The stats row is kept up to date by the
+     * database, so a plain loader that requeries on every change is cheap.
+     */
+    private final LoaderManager.LoaderCallbacks<Cursor> mStatsCallbacks = new
+            LoaderManager.LoaderCallbacks<Cursor>() {
+        @Override
+        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+            String[] projection = {StatsEntry.COLUMN_TITLE_COUNT, StatsEntry
+                    .COLUMN_TOTAL_UNITS, StatsEntry.COLUMN_TOTAL_VALUE, StatsEntry
+                    .COLUMN_LOW_STOCK_COUNT};
+            return new CursorLoader(MainActivity.this, StatsEntry.CONTENT_URI,
+                    projection, null, null, null);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+            if (cursor == null || !cursor.moveToFirst() || cursor.getInt(0) == 0) {
+                mStatsTextView.setVisibility(View.GONE);
+                return;
+            }
+            String value = NumberFormat.getCurrencyInstance(Locale.US).format(cursor
+                    .getLong(2) / 100.00);
+            mStatsTextView.setText(getString(R.string.stats_summary, cursor.getInt
+                    (0), cursor.getLong(1), value, cursor.getInt(3)));
+            mStatsTextView.setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        public void onLoaderReset(Loader<Cursor> loader) {
+            mStatsTextView.setVisibility(View.GONE);
+        }
+    };
+
+    /**
+     * Watches the books table. A change to one book refreshes just that row,
+     * and any other change reloads the loaded pages, which are then diffed so
+     * only changed rows are rebound.
+     */
+    private final ContentObserver mBookObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // unregistering doesn't take back a change already posted to the
+            // handler, and the row executor is shut down by then
+            if (mDestroyed) {
+                return;
+            }
+            List<String> segments = uri == null ? null : uri.getPathSegments();
+            if (segments != null && segments.size() == 2 && TextUtils.isDigitsOnly
+                    (segments.get(1))) {
+                refreshBook(Long.parseLong(segments.get(1)));
+            } else {
+                reloadPages();
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        // open the database and read the first page while the layout inflates
+        getContentResolver().call(BookEntry.CONTENT_URI, BookContract.METHOD_WARM_UP,
+                null, null);
         setContentView(R.layout.activity_main);
 
         // Setup FAB to open EditorActivity
@@ -46,40 +211,291 @@ public class MainActivity extends AppCompatActivity implements LoaderManager
             }
         });
 
-        // Find the ListView which will be populated with the store data
-        ListView bookListView = (ListView) findViewById(R.id.list);
+        // Find the RecyclerView which will be populated with the store data
+        RecyclerView bookRecyclerView = (RecyclerView) findViewById(R.id.list);
+        mLayoutManager = new LinearLayoutManager(this);
+        bookRecyclerView.setLayoutManager(mLayoutManager);
 
-        // Find and set empty view on the ListView, so that it only shows
-        // when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        bookListView.setEmptyView(emptyView);
+        // Find the empty view, which is only shown when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // set up adapter and attach to list view
-        mCursorAdapter = new BookCursorAdapter(this, null);
-        bookListView.setAdapter(mCursorAdapter);
+        // inventory summary above the list
+        mStatsTextView = (TextView) findViewById(R.id.stats_text);
+        getLoaderManager().initLoader(STATS_LOADER, null, mStatsCallbacks);
 
-        // set up on click listener
-        bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+        // pick up an import started before a configuration change
+        mImportProgress = (ProgressBar) findViewById(R.id.import_progress);
+        CatalogImportTask.attach(this);
 
+        // set up adapter and attach to recycler view
+        mCursorAdapter = new BookCursorAdapter(this, new BookCursorAdapter
+                .OnBookClickListener() {
+            @Override
+            public void onBookClick(long id) {
                 // create new intent to go to EditorActivity
                 Intent intent = new Intent(MainActivity.this, EditorActivity.class);
 
                 // Form the content URI that represents list item clicked on
-                Uri currentPetUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+                Uri currentBookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
 
                 // Set URI on the data field of intent
-                intent.setData(currentPetUri);
+                intent.setData(currentBookUri);
 
                 // Launch EditorActiviy
                 startActivity(intent);
             }
         });
+        bookRecyclerView.setAdapter(mCursorAdapter);
 
-        // start loader
+        // load more pages as the user scrolls
+        bookRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                loadNextPageIfNeeded();
+            }
+        });
+
+        // start loader for the first page
+        mLowStockOnly = savedInstanceState != null && savedInstanceState
+                .getBoolean(STATE_LOW_STOCK);
         getLoaderManager().initLoader(BOOK_LOADER, null, this);
+        mRequestedPages = 1;
+
+        // reconnect to any later pages kept across a configuration change
+        int savedPages = savedInstanceState == null ? 0 : savedInstanceState.getInt
+                (STATE_PAGE_COUNT);
+        for (int page = 1; page < savedPages; page++) {
+            if (getLoaderManager().getLoader(BOOK_LOADER + page) == null) {
+                break;
+            }
+            getLoaderManager().initLoader(BOOK_LOADER + page, null, this);
+            mRequestedPages = page + 1;
+        }
+
+        // page loaders don't requery themselves; this observer decides how
+        // much needs to be reloaded
+        mRowExecutor = Executors.newSingleThreadExecutor();
+        getContentResolver().registerContentObserver(BookEntry.CONTENT_URI, true,
+                mBookObserver);
+
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        SaleRecorder.getInstance(this).setOnFlushListener(mSaleFlushListener);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // don't leave sales waiting in the queue while we're in the background
+        SaleRecorder recorder = SaleRecorder.getInstance(this);
+        recorder.setOnFlushListener(null);
+        recorder.flush();
+    }
 
+    /**
+     * Rebinds the rows once a flush has moved their sales from the queue into
+     * the database, and says so if some were dropped for lack of stock.
+     */
+    private final SaleRecorder.OnFlushListener mSaleFlushListener = new SaleRecorder
+            .OnFlushListener() {
+        @Override
+        public void onSalesFlushed(int rejected) {
+            mCursorAdapter.notifyItemRangeChanged(0, mCursorAdapter.getItemCount());
+            if (rejected > 0) {
+                Toast.makeText(MainActivity.this, getResources().getQuantityString(R
+                        .plurals.sales_not_in_stock, rejected, rejected), Toast
+                        .LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        CatalogImportTask.detach(this);
+        getContentResolver().unregisterContentObserver(mBookObserver);
+        mRowExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_PAGE_COUNT, mCursorAdapter.getPageCount());
+        outState.putBoolean(STATE_LOW_STOCK, mLowStockOnly);
+    }
+
+    /**
+     * Start loading the next page if the user has scrolled near the end of
+     * the loaded books and there may be more.
+     */
+    private void loadNextPageIfNeeded() {
+        int pageCount = mCursorAdapter.getPageCount();
+        if (mRequestedPages > pageCount || !mCursorAdapter.hasMorePages()) {
+            return;
+        }
+        if (mLayoutManager.findLastVisibleItemPosition() < mCursorAdapter
+                .getItemCount() - PREFETCH_DISTANCE) {
+            return;
+        }
+
+        Bundle args = new Bundle();
+        args.putLong(ARG_AFTER_ID, mCursorAdapter.getLastId());
+        mRequestedPages = pageCount + 1;
+        getLoaderManager().restartLoader(BOOK_LOADER + pageCount, args, this);
+    }
+
+    /**
+     * Query a single book that changed off the UI thread, then show it in
+     * place. If the book was added or deleted the page that holds it is
+     * reloaded instead.
+     */
+    private void refreshBook(final long id) {
+        final boolean lowStockOnly = mLowStockOnly;
+        mRowExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long sequence = sQuerySequence.incrementAndGet();
+                ContentValues values = null;
+                Cursor cursor = getContentResolver().query(ContentUris
+                        .withAppendedId(BookEntry.CONTENT_URI, id), PROJECTION, null,
+                        null, null);
+                if (cursor != null) {
+                    try {
+                        if (cursor.moveToFirst()) {
+                            values = new ContentValues();
+                            DatabaseUtils.cursorRowToContentValues(cursor, values);
+                        }
+                        // a book that has been restocked drops out of the
+                        // reorder list, so its page has to be reloaded
+                        if (values != null && lowStockOnly && values.getAsInteger
+                                (BookEntry.COLUMN_QUANTITY) >= StatsEntry
+                                .LOW_STOCK_THRESHOLD) {
+                            values = null;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+
+                final ContentValues bookValues = values;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDestroyed) {
+                            return;
+                        }
+                        if (bookValues == null || !mCursorAdapter.updateRow(id,
+                                bookValues, sequence)) {
+                            reloadPage(mCursorAdapter.getPageIndexFor(id));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Ask the user for a CSV catalog to import.
+     */
+    private void pickCatalog() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/*");
+        startActivityForResult(intent, REQUEST_IMPORT_CATALOG);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_IMPORT_CATALOG) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        if (!CatalogImportTask.start(this, data.getData(), this)) {
+            Toast.makeText(this, getString(R.string.import_busy), Toast
+                    .LENGTH_SHORT).show();
+            return;
+        }
+        mImportProgress.setIndeterminate(true);
+        mImportProgress.setVisibility(View.VISIBLE);
+    }
+
+    @Override
+    public void onImportProgress(int rowsRead, int percent) {
+        mImportProgress.setVisibility(View.VISIBLE);
+        if (percent < 0) {
+            mImportProgress.setIndeterminate(true);
+        } else {
+            mImportProgress.setIndeterminate(false);
+            mImportProgress.setProgress(percent);
+        }
+    }
+
+    @Override
+    public void onImportFinished(CatalogImporter.Result result, Exception error) {
+        mImportProgress.setVisibility(View.GONE);
+
+        String message;
+        if (result == null) {
+            message = getString(R.string.import_failed, error == null ? "" : error
+                    .getMessage());
+        } else if (result.errorReport == null) {
+            message = getString(R.string.import_finished, result.imported);
+        } else {
+            message = getString(R.string.import_finished_with_errors, result
+                    .imported, result.rejected, result.errorReport.getPath());
+        }
+        new AlertDialog.Builder(this)
+                .setMessage(message)
+                .setPositiveButton(R.string.ok, null)
+                .show();
+    }
+
+    /**
+     * Switch between listing every book and only the books low on stock. The
+     * loaded pages are dropped and the list starts again from the first page.
+     */
+    private void setLowStockOnly(boolean lowStockOnly) {
+        if (mLowStockOnly == lowStockOnly) {
+            return;
+        }
+        mLowStockOnly = lowStockOnly;
+
+        for (int page = mRequestedPages - 1; page > 0; page--) {
+            getLoaderManager().destroyLoader(BOOK_LOADER + page);
+        }
+        mCursorAdapter.swapPage(0, null, 0);
+        getLoaderManager().restartLoader(BOOK_LOADER, null, this);
+        mRequestedPages = 1;
+        updateEmptyView();
+    }
+
+    /**
+     * Reload every loaded page.
+     */
+    private void reloadPages() {
+        for (int page = 0; page < mCursorAdapter.getPageCount(); page++) {
+            reloadPage(page);
+        }
+    }
+
+    /**
+     * Reload a single page, if it has been loaded.
+     */
+    private void reloadPage(int page) {
+        if (page < 0) {
+            return;
+        }
+        Loader<Cursor> loader = getLoaderManager().getLoader(BOOK_LOADER + page);
+        if (loader != null) {
+            loader.forceLoad();
+        }
     }
 
     // update (decrement) stock value when user clicks sale button
@@ -89,7 +505,8 @@ public class MainActivity extends AppCompatActivity implements LoaderManager
         String selection = BookEntry._ID + "=?";
         String[] selectionArgs = new String[]{String.valueOf(rowId)};
         Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, rowId);
-        getContentResolver().update(uri, values, selection, selectionArgs);
+        BookWriter.getInstance(this).update(uri, values, selection, selectionArgs,
+                null);
     }
 
     /**
@@ -104,30 +521,42 @@ public class MainActivity extends AppCompatActivity implements LoaderManager
         values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
         values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
 
-        Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
-
-        // Show a toast message depending on whether or not the insertion was
-        // successful
-        if (newUri == null) {
-            // If the new content URI is null, then there was an error with
-            // insertion.
-            Toast.makeText(this, getString(R.string.editor_update_book_failed), Toast
-                    .LENGTH_SHORT).show();
-        } else {
-            // Otherwise, the insertion was successful and we can display a
-            // toast.
-            Toast.makeText(this, getString(R.string.editor_update_book_success), Toast
-                    .LENGTH_SHORT).show();
-        }
-
+        BookWriter.getInstance(this).insert(BookEntry.CONTENT_URI, values, new
+                BookWriter.InsertCallback() {
+            @Override
+            public void onInsertComplete(Uri newUri) {
+                if (mDestroyed) {
+                    return;
+                }
+                // Show a toast message depending on whether or not the
+                // insertion was successful
+                if (newUri == null) {
+                    // If the new content URI is null, then there was an error
+                    // with insertion.
+                    Toast.makeText(MainActivity.this, getString(R.string
+                            .editor_update_book_failed), Toast.LENGTH_SHORT).show();
+                } else {
+                    // Otherwise, the insertion was successful and we can
+                    // display a toast.
+                    Toast.makeText(MainActivity.this, getString(R.string
+                            .editor_update_book_success), Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 
     /**
      * Delete all entries from the books table
      */
     private void deleteBooks() {
-        int rowsDeleted = getContentResolver().delete(BookEntry.CONTENT_URI, null, null);
-        Log.v("MainActivity", rowsDeleted + " rows deleted from bookstore " + "database");
+        BookWriter.getInstance(this).delete(BookEntry.CONTENT_URI, null, null, new
+                BookWriter.Callback() {
+            @Override
+            public void onWriteComplete(int rows) {
+                Log.v("MainActivity", rows + " rows deleted from bookstore " +
+                        "database");
+            }
+        });
     }
 
 
@@ -136,6 +565,7 @@ public class MainActivity extends AppCompatActivity implements LoaderManager
         // Inflate the menu options from the res/menu/menu_main file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_low_stock).setChecked(mLowStockOnly);
         return true;
     }
 
@@ -143,6 +573,15 @@ public class MainActivity extends AppCompatActivity implements LoaderManager
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Needs reorder" menu option
+            case R.id.action_low_stock:
+                item.setChecked(!item.isChecked());
+                setLowStockOnly(item.isChecked());
+                return true;
+            // Respond to a click on the "Import catalog" menu option
+            case R.id.action_import_catalog:
+                pickCatalog();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertBook();
@@ -158,23 +597,80 @@ public class MainActivity extends AppCompatActivity implements LoaderManager
     @NonNull
     @Override
     public Loader<Cursor> onCreateLoader(int i, @Nullable Bundle bundle) {
-        // Define a projection that specifies the columns of interest
-        String[] projection = {BookEntry._ID, BookEntry.COLUMN_PRODUCT_NAME, BookEntry
-                .COLUMN_PRICE, BookEntry.COLUMN_QUANTITY};
+        // each page starts after the last book of the page before it
+        long afterId = bundle == null ? 0 : bundle.getLong(ARG_AFTER_ID);
+        Uri listUri = mLowStockOnly ? BookEntry.buildLowStockUri(StatsEntry
+                .LOW_STOCK_THRESHOLD) : BookEntry.CONTENT_URI;
+        Uri pageUri = BookEntry.buildPageUri(listUri, afterId, BookCursorAdapter
+                .PAGE_SIZE);
 
         // execute ContentProvider's query method on a background thread
-        return new CursorLoader(this, BookEntry.CONTENT_URI, projection, null, null, null);
+        return new BookPageLoader(this, pageUri);
     }
 
     @Override
     public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor cursor) {
-        // update BookCursorAdapter with new cursor
-        mCursorAdapter.swapCursor(cursor);
+        // update BookCursorAdapter with the new page
+        mCursorAdapter.swapPage(loader.getId() - BOOK_LOADER, cursor, (
+                (BookPageLoader) loader).getLoadSequence());
+        updateEmptyView();
+
+        // the first page is what the user waits for, so that is when startup
+        // counts as done for the "Fully drawn" time in the log
+        if (!mReportedFullyDrawn && loader.getId() == BOOK_LOADER) {
+            mReportedFullyDrawn = true;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                reportFullyDrawn();
+            }
+        }
     }
 
     @Override
     public void onLoaderReset(@NonNull Loader<Cursor> loader) {
         // called when data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mCursorAdapter.swapPage(loader.getId() - BOOK_LOADER, null, 0);
+        updateEmptyView();
+    }
+
+    /**
+     * Show the empty view once the first page has loaded with no books.
+     */
+    private void updateEmptyView() {
+        boolean empty = mCursorAdapter.getPageCount() > 0 && mCursorAdapter
+                .getItemCount() == 0;
+        mEmptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Loader for one page of books. Unlike a plain {@link CursorLoader} it
+     * doesn't requery itself whenever the books table changes, because most
+     * changes only touch one row; {@link #mBookObserver} decides what to
+     * reload.
+     */
+    private static class BookPageLoader extends CursorLoader {
+
+        private volatile long mLoadSequence;
+
+        BookPageLoader(Context context, Uri pageUri) {
+            super(context, pageUri, PROJECTION, null, null, null);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            mLoadSequence = sQuerySequence.incrementAndGet();
+            return super.loadInBackground();
+        }
+
+        @Override
+        public void onContentChanged() {
+            // reloads are driven by MainActivity's observer
+        }
+
+        /**
+         * Returns the sequence number of the most recent load.
+         */
+        long getLoadSequence() {
+            return mLoadSequence;
+        }
     }
 }
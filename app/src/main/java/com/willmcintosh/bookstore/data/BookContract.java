@@ -1,6 +1,7 @@
 package com.willmcintosh.bookstore.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -22,16 +23,222 @@ public final class BookContract {
 
     public static final String PATH_BOOKS = "books";
 
+    /**
+     * Path for recording batches of sales
+     */
+    public static final String PATH_SALES = "sales";
+
+    /**
+     * Path appended to a single book URI to record a sale of that book
+     */
+    public static final String PATH_SELL = "sell";
+
+    /**
+     * Query parameter with the number of copies sold
+     */
+    public static final String QUERY_PARAMETER_COUNT = "count";
+
+    /**
+     * Path for full-text search over the books table
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Query parameter with the text to search for
+     */
+    public static final String QUERY_PARAMETER_QUERY = "q";
+
+    /**
+     * Path for the books that are low on stock
+     */
+    public static final String PATH_LOW_STOCK = "low_stock";
+
+    /**
+     * Query parameter with the stock level below which a book is low on stock
+     */
+    public static final String QUERY_PARAMETER_THRESHOLD = "threshold";
+
+    /**
+     * Path for streaming the whole catalog out as a file
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Query parameter with the export format, {@link #FORMAT_CSV} or
+     * {@link #FORMAT_JSON_LINES}
+     */
+    public static final String QUERY_PARAMETER_FORMAT = "format";
+
+    /**
+     * Export format: comma separated values with a header row
+     */
+    public static final String FORMAT_CSV = "csv";
+
+    /**
+     * Export format: one JSON object per line
+     */
+    public static final String FORMAT_JSON_LINES = "jsonl";
+
+    /**
+     * Path for the feed of books changed since a version
+     */
+    public static final String PATH_CHANGES = "changes";
+
+    /**
+     * Query parameter for the change feed: only return changes with a
+     * larger version
+     */
+    public static final String QUERY_PARAMETER_SINCE = "since";
+
+    /**
+     * Query parameter for the change feed: only return books with ledger
+     * entries after this one
+     */
+    public static final String QUERY_PARAMETER_LEDGER_SINCE = "ledger_since";
+
+    /**
+     * Path for the inventory statistics
+     */
+    public static final String PATH_STATS = "stats";
+
+    /**
+     * Path for the statistics of the provider's book row cache
+     */
+    public static final String PATH_CACHE = "cache";
+
+    /**
+     * Path for the provider's call metrics
+     */
+    public static final String PATH_METRICS = "_metrics";
+
+    /**
+     * Path for the slow query log
+     */
+    public static final String PATH_SLOW_QUERIES = "_slow_queries";
+
+    /**
+     * Path for the suppliers
+     */
+    public static final String PATH_SUPPLIERS = "suppliers";
+
+    /**
+     * Path for the store locations
+     */
+    public static final String PATH_LOCATIONS = "locations";
+
+    /**
+     * Path appended to a location or book URI for its stock levels
+     */
+    public static final String PATH_STOCK = "stock";
+
+    /**
+     * Path for the stock ledger, also appended to a book URI for the book's
+     * own entries
+     */
+    public static final String PATH_LEDGER = "ledger";
+
+    /**
+     * Path for the sync engine's view of the books
+     */
+    public static final String PATH_SYNC = "sync";
+
+    /**
+     * Query parameter with the last ledger entry the catalog service has
+     * counted in the quantities being applied
+     */
+    public static final String QUERY_PARAMETER_LEDGER_THROUGH = "ledger_through";
+
+    /**
+     * Query parameter for keyset paging: only return books with a larger ID
+     */
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /**
+     * Query parameter with the maximum number of books to return
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Provider method that opens the database and reads the start of the list
+     * in the background, for screens about to show it. Only the first call in
+     * a process does anything.
+     */
+    public static final String METHOD_WARM_UP = "warm_up";
+
 
     public static final class BookEntry implements BaseColumns {
         public final static String TABLE_NAME = "books";
 
+        /**
+         * Full-text index over the book titles and supplier names, kept in
+         * sync with {@link #TABLE_NAME} by triggers
+         */
+        public final static String SEARCH_TABLE_NAME = "books_fts";
+
+        /**
+         * View of the books with their supplier's name and phone joined in.
+         * Every read goes through it, so callers still see the supplier
+         * columns.
+         */
+        public final static String VIEW_NAME = "books_view";
+
         /**
          * Content URI to access the pet data in the provider
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath
                 (BASE_CONTENT_URI, PATH_BOOKS);
 
+        /**
+         * Content URI to search the books by title and supplier
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath
+                (CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Content URI for the books with fewer copies than the threshold
+         * query parameter, which defaults to
+         * {@link StatsEntry#LOW_STOCK_THRESHOLD}
+         */
+        public static final Uri CONTENT_LOW_STOCK_URI = Uri.withAppendedPath
+                (CONTENT_URI, PATH_LOW_STOCK);
+
+        /**
+         * Content URI to export every book. Open it with
+         * {@link ContentResolver#openInputStream}; the catalog is written
+         * into the stream as it is read.
+         */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath
+                (CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * Content URI for the books added, changed or deleted since the
+         * version in the since query parameter, oldest change first. A
+         * consumer keeps the largest {@link #COLUMN_ROW_VERSION} it has read
+         * and passes it back next time, so it only reads what changed in
+         * between. Deleted books come back as a row with just their ID,
+         * UUID and {@link #COLUMN_DELETED} set. With a limit, pass the version and ID
+         * of the last row read to get the next page.
+         * <p>
+         * Ledger entries, which are sales, adjustments and stock changes,
+         * don't give a book a new version. With the ledger_since query
+         * parameter instead of since, the feed returns the books with ledger
+         * entries after that one, in {@link #COLUMN_LEDGER_VERSION} order. A
+         * consumer keeps the largest ledger version it has read as a second
+         * checkpoint, which also pages through the books.
+         */
+        public static final Uri CONTENT_CHANGES_URI = Uri.withAppendedPath
+                (CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * The MIME type of a CSV export.
+         */
+        public static final String EXPORT_CSV_TYPE = "text/csv";
+
+        /**
+         * The MIME type of a JSON Lines export.
+         */
+        public static final String EXPORT_JSON_LINES_TYPE = "application/x-ndjson";
+
         /**
          * Unique ID for the book
          */
@@ -48,20 +255,84 @@ public final class BookContract {
         public static final String COLUMN_PRICE = "price";
 
         /**
-         * Quantity
+         * Quantity. Reads return the stored quantity plus every
+         * {@link LedgerEntry} not yet folded into it, so a sale shows up as
+         * soon as it is logged. Writing a quantity logs the difference as
+         * an adjustment. It can't be set below the copies held at
+         * locations, see {@link StockEntry}.
          */
         public static final String COLUMN_QUANTITY = "quantity";
 
         /**
-         * Supplier Name
+         * ID of the last {@link LedgerEntry} folded into the stored quantity.
+         * Only in {@link #TABLE_NAME}, not in what queries return.
+         */
+        public static final String COLUMN_LEDGER_SEQ = "ledger_seq";
+
+        /**
+         * ID of the book's supplier in {@link SupplierEntry#TABLE_NAME}
+         */
+        public static final String COLUMN_SUPPLIER_ID = "supplier_id";
+
+        /**
+         * Supplier Name. When a book is written the supplier with this name
+         * is looked up, and added if there isn't one yet.
          */
         public static final String COLUMN_SUPPLIER_NAME = "supplier_name";
 
         /**
-         * Supplier Phone Number
+         * Supplier Phone Number. Belongs to the supplier, so writing a
+         * different phone with a book changes it for all of that supplier's
+         * books. An empty phone leaves the supplier's phone as it is. Can
+         * only be written together with {@link #COLUMN_SUPPLIER_NAME}.
          */
         public static final String COLUMN_SUPPLIER_PHONE = "supplier_phone";
 
+        /**
+         * Version of the book's last change. Versions come from one counter
+         * for the whole catalog that only goes up, and cover everything a
+         * query returns for the book, including supplier changes, except
+         * for the ledger entries counted in its quantity. Those are tracked
+         * by {@link #COLUMN_LEDGER_VERSION}.
+         */
+        public static final String COLUMN_ROW_VERSION = "row_version";
+
+        /**
+         * ID the book is synced by, the same on every device. Set when the
+         * book is added.
+         */
+        public static final String COLUMN_UUID = "uuid";
+
+        /**
+         * Version of the book on the catalog service when it was last pushed
+         * or pulled, 0 if it never was
+         */
+        public static final String COLUMN_REMOTE_VERSION = "remote_version";
+
+        /**
+         * The book's {@link #COLUMN_ROW_VERSION} when it was last pushed or
+         * pulled. A book with a newer row version has local changes.
+         */
+        public static final String COLUMN_SYNCED_VERSION = "synced_version";
+
+        /**
+         * 1 for a book that was deleted, 0 otherwise. Only present on the
+         * change feed.
+         */
+        public static final String COLUMN_DELETED = "deleted";
+
+        /**
+         * ID of the book's last {@link LedgerEntry}, 0 if it has none. Only
+         * present on the change feed.
+         */
+        public static final String COLUMN_LEDGER_VERSION = "ledger_version";
+
+        /**
+         * Search rank, only present on search results. Lower is better:
+         * title matches rank above supplier matches.
+         */
+        public static final String COLUMN_SEARCH_RANK = "search_rank";
+
         /**
          * Returns whether a phone matches a valid phone pattern
          */
@@ -69,6 +340,114 @@ public final class BookContract {
             return android.util.Patterns.PHONE.matcher(number).matches();
         }
 
+        /**
+         * Returns the URI that sells the given number of copies of a book.
+         * The provider only applies the sale if that many are in stock and
+         * not held at a location.
+         */
+        public static Uri buildSellUri(long id, int count) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_SELL)
+                    .appendQueryParameter(QUERY_PARAMETER_COUNT, String
+                            .valueOf(count))
+                    .build();
+        }
+
+        /**
+         * Returns the URI that searches titles and suppliers for the given
+         * text. Each word is matched as a prefix.
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .build();
+        }
+
+        /**
+         * Returns the URI for the books with fewer than the given number of
+         * copies.
+         */
+        public static Uri buildLowStockUri(int threshold) {
+            return CONTENT_LOW_STOCK_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_THRESHOLD, String
+                            .valueOf(threshold))
+                    .build();
+        }
+
+        /**
+         * Returns the URI for every change after the given version. Pass 0
+         * for the whole catalog.
+         */
+        public static Uri buildChangesUri(long since) {
+            return CONTENT_CHANGES_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String
+                            .valueOf(since))
+                    .build();
+        }
+
+        /**
+         * Returns the URI for one page of changes, starting after the last
+         * row read: the change to the given book at the given version. Pass
+         * 0 for both to start from the beginning.
+         */
+        public static Uri buildChangesUri(long since, long afterId, int limit) {
+            return buildPageUri(buildChangesUri(since), afterId, limit);
+        }
+
+        /**
+         * Returns the URI for at most limit books with ledger entries after
+         * the given one. Pass the last row's {@link #COLUMN_LEDGER_VERSION}
+         * for the next page, or 0 to start from the beginning.
+         */
+        public static Uri buildLedgerChangesUri(long since, int limit) {
+            return CONTENT_CHANGES_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LEDGER_SINCE, String
+                            .valueOf(since))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String
+                            .valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Returns the URI that exports every book in the given format.
+         */
+        public static Uri buildExportUri(String format) {
+            return CONTENT_EXPORT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format)
+                    .build();
+        }
+
+        /**
+         * Returns the URI for one page of books in ID order, starting after
+         * the given ID. Pass 0 for the first page.
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return buildPageUri(CONTENT_URI, afterId, limit);
+        }
+
+        /**
+         * Returns the URI for one page of the books listed by the given URI,
+         * in ID order and starting after the given ID.
+         */
+        public static Uri buildPageUri(Uri listUri, long afterId, int limit) {
+            return listUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String
+                            .valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String
+                            .valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Returns the URI for the stock of a book at each location that holds
+         * it.
+         */
+        public static Uri buildStockUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_STOCK)
+                    .build();
+        }
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of books.
          */
@@ -85,4 +464,501 @@ public final class BookContract {
 
 
     }
+
+    public static final class SaleEntry implements BaseColumns {
+
+        /**
+         * Content URI to record sales. Insert one sale, or bulk insert a batch
+         * of sales to apply them in a single transaction. A sale of more
+         * copies than are in stock sells the copies there are. Inserting a
+         * sale returns the {@link BookEntry#buildSellUri sell URI} of the
+         * copies sold, whose count says how many, or null if none were.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BASE_CONTENT_URI, PATH_SALES);
+
+        /**
+         * ID of the book that was sold
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * Number of copies sold
+         */
+        public static final String COLUMN_COUNT = "count";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of sales.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver
+                .CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_SALES;
+    }
+
+    /**
+     * Append-only log of changes to book quantities. Sales are logged here
+     * instead of rewriting the book, and a background compaction folds the
+     * entries into the books' stored quantities. Entries are kept after
+     * compaction as the book's history.
+     */
+    public static final class LedgerEntry implements BaseColumns {
+
+        public final static String TABLE_NAME = "ledger";
+
+        /**
+         * Content URI for the ledger, in the order entries were logged.
+         * Insert an entry to adjust a book's quantity by its delta, which is
+         * refused if it would take the quantity below zero. Takes the same
+         * paging parameters as {@link BookEntry#CONTENT_URI}.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BASE_CONTENT_URI, PATH_LEDGER);
+
+        /**
+         * ID of the book whose quantity changed
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * Change in quantity, negative for a sale
+         */
+        public static final String COLUMN_DELTA = "delta";
+
+        /**
+         * When the entry was logged, in milliseconds since the epoch
+         */
+        public static final String COLUMN_TIME = "time";
+
+        /**
+         * Returns the URI for the ledger entries of a single book.
+         */
+        public static Uri buildBookUri(long bookId) {
+            return ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId)
+                    .buildUpon()
+                    .appendPath(PATH_LEDGER)
+                    .build();
+        }
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of entries.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver
+                .CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_LEDGER;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single entry.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver
+                .CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_LEDGER;
+    }
+
+    /**
+     * Books as the sync engine writes them. Bulk insert a page of books
+     * pulled from the catalog service to apply it in one transaction: each
+     * row has the book's {@link BookEntry#COLUMN_UUID}, its
+     * {@link BookEntry#COLUMN_REMOTE_VERSION} and either
+     * {@link BookEntry#COLUMN_DELETED} or the book's columns, with the
+     * quantity as the service counts it. Update a single book to record
+     * that the service accepted a push of it.
+     */
+    public static final class SyncEntry {
+
+        /**
+         * Content URI for the books pulled from the catalog service
+         */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC)
+                .appendPath(PATH_BOOKS)
+                .build();
+
+        /**
+         * Returns the URI to apply pulled books to. The service's quantities
+         * count every ledger entry up to the given one, and none after it.
+         */
+        public static Uri buildApplyUri(long ledgerThrough) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LEDGER_THROUGH, String
+                            .valueOf(ledgerThrough))
+                    .build();
+        }
+
+        /**
+         * Returns the URI of the book with the given UUID. Update it with the
+         * version the service gave the book and the
+         * {@link BookEntry#COLUMN_ROW_VERSION} that was pushed.
+         */
+        public static Uri buildBookUri(String uuid) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(uuid)
+                    .build();
+        }
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of books.
+         */
+        public static final String CONTENT_LIST_TYPE = BookEntry.CONTENT_LIST_TYPE;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single book.
+         */
+        public static final String CONTENT_ITEM_TYPE = BookEntry.CONTENT_ITEM_TYPE;
+    }
+
+    public static final class StatsEntry implements BaseColumns {
+
+        /**
+         * Single-row summary table, kept up to date by triggers on the books
+         * table
+         */
+        public final static String TABLE_NAME = "book_stats";
+
+        /**
+         * Content URI to read the inventory statistics. Returns one row.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BookEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * A book with fewer copies than this counts as low on stock
+         */
+        public static final int LOW_STOCK_THRESHOLD = 5;
+
+        /**
+         * Number of titles
+         */
+        public static final String COLUMN_TITLE_COUNT = "title_count";
+
+        /**
+         * Number of copies across all titles
+         */
+        public static final String COLUMN_TOTAL_UNITS = "total_units";
+
+        /**
+         * Value of all copies in stock, the sum of price times quantity
+         */
+        public static final String COLUMN_TOTAL_VALUE = "total_value";
+
+        /**
+         * Number of titles with fewer than {@link #LOW_STOCK_THRESHOLD} copies
+         */
+        public static final String COLUMN_LOW_STOCK_COUNT = "low_stock_count";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver
+                .CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_STATS;
+    }
+
+    public static final class SupplierEntry implements BaseColumns {
+
+        public final static String TABLE_NAME = "suppliers";
+
+        /**
+         * Content URI for the suppliers. A supplier can only be deleted once
+         * none of the books refer to it.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        /**
+         * Name of the supplier, unique across the store
+         */
+        public static final String COLUMN_NAME = "name";
+
+        /**
+         * Phone number of the supplier, may be empty
+         */
+        public static final String COLUMN_PHONE = "phone";
+
+        /**
+         * Returns the URI for the books from a supplier. Takes the same
+         * paging parameters as {@link BookEntry#CONTENT_URI}.
+         */
+        public static Uri buildBooksUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_BOOKS)
+                    .build();
+        }
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of suppliers.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver
+                .CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_SUPPLIERS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single supplier.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver
+                .CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_SUPPLIERS;
+    }
+
+    public static final class LocationEntry implements BaseColumns {
+
+        public final static String TABLE_NAME = "locations";
+
+        /**
+         * Content URI for the store locations
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BASE_CONTENT_URI, PATH_LOCATIONS);
+
+        /**
+         * Name of the location, unique across the store
+         */
+        public static final String COLUMN_NAME = "name";
+
+        /**
+         * Returns the URI for the stock held at a location, one row per book
+         * in ID order. Takes the same paging parameters as
+         * {@link BookEntry#CONTENT_URI}.
+         */
+        public static Uri buildStockUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_STOCK)
+                    .build();
+        }
+
+        /**
+         * Returns the URI for the stock of one book at a location.
+         */
+        public static Uri buildStockUri(long id, long bookId) {
+            return ContentUris.withAppendedId(buildStockUri(id), bookId);
+        }
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of locations.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver
+                .CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_LOCATIONS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single location.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver
+                .CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_LOCATIONS;
+    }
+
+    /**
+     * Stock of each book at each location. A book's own
+     * {@link BookEntry#COLUMN_QUANTITY} is the total across every location,
+     * kept up to date by the database as stock rows change. Copies counted in
+     * the total but not held at any location, such as those of books added
+     * before locations existed, stay with the book itself, and selling or
+     * editing a book from the catalog only changes that part. A sale or a
+     * quantity that would need copies held at a location is rejected, so the
+     * total never drops below the sum of the locations' stock.
+     */
+    public static final class StockEntry {
+
+        public final static String TABLE_NAME = "stock";
+
+        /**
+         * ID of the book. On a location's stock URI the book ID is also
+         * returned as {@link BookEntry#_ID}.
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * ID of the location. On a book's stock URI the location ID is also
+         * returned as {@link LocationEntry#_ID}.
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /**
+         * Copies of the book held at the location
+         */
+        public static final String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * The MIME type of a location's or a book's stock.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver
+                .CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_STOCK;
+
+        /**
+         * The MIME type of one book's stock at one location.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver
+                .CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_STOCK;
+    }
+
+    public static final class MetricsEntry {
+
+        /**
+         * Read-only content URI with one row per provider operation and kind
+         * of URI, such as query on books/#
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BookEntry.CONTENT_URI, PATH_METRICS);
+
+        /**
+         * Provider method: query, insert, bulkInsert, applyBatch, update,
+         * delete, openFile, or notify for change notifications sent
+         */
+        public static final String COLUMN_OPERATION = "operation";
+
+        /**
+         * Pattern of the URIs the row covers, such as books/#
+         */
+        public static final String COLUMN_URI = "uri";
+
+        /**
+         * Number of calls
+         */
+        public static final String COLUMN_COUNT = "count";
+
+        /**
+         * Number of calls that threw
+         */
+        public static final String COLUMN_ERRORS = "errors";
+
+        /**
+         * Mean latency in microseconds
+         */
+        public static final String COLUMN_MEAN_US = "mean_us";
+
+        /**
+         * Slowest call in microseconds
+         */
+        public static final String COLUMN_MAX_US = "max_us";
+
+        /**
+         * Latency percentiles in microseconds, estimated from the histogram
+         */
+        public static final String COLUMN_P50_US = "p50_us";
+        public static final String COLUMN_P90_US = "p90_us";
+        public static final String COLUMN_P99_US = "p99_us";
+
+        /**
+         * Latency histogram as comma separated upper-bound:count pairs, with
+         * the bounds in microseconds
+         */
+        public static final String COLUMN_HISTOGRAM = "histogram";
+
+        /**
+         * Every column, in the order the rows are returned
+         */
+        public static final String[] COLUMNS = {COLUMN_OPERATION, COLUMN_URI,
+                COLUMN_COUNT, COLUMN_ERRORS, COLUMN_MEAN_US, COLUMN_MAX_US,
+                COLUMN_P50_US, COLUMN_P90_US, COLUMN_P99_US, COLUMN_HISTOGRAM};
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver
+                .CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_METRICS;
+    }
+
+    public static final class SlowQueryEntry {
+
+        /**
+         * Read-only content URI with the recent queries that were slower than
+         * the provider's threshold, slowest first. Only filled in diagnostic
+         * mode: debug builds, or with the BookSlowQuery log tag at DEBUG.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BookEntry.CONTENT_URI, PATH_SLOW_QUERIES);
+
+        /**
+         * When the query ran, in milliseconds since the epoch
+         */
+        public static final String COLUMN_TIME = "time";
+
+        /**
+         * How long the query took in microseconds
+         */
+        public static final String COLUMN_DURATION_US = "duration_us";
+
+        /**
+         * Content URI the query was made on
+         */
+        public static final String COLUMN_URI = "uri";
+
+        /**
+         * SQL that was run
+         */
+        public static final String COLUMN_SQL = "sql";
+
+        /**
+         * Arguments bound to the SQL
+         */
+        public static final String COLUMN_ARGS = "args";
+
+        /**
+         * Output of EXPLAIN QUERY PLAN, one step per line
+         */
+        public static final String COLUMN_PLAN = "plan";
+
+        /**
+         * 1 if the plan reads a whole table without an index, otherwise 0
+         */
+        public static final String COLUMN_FULL_SCAN = "full_scan";
+
+        /**
+         * Every column, in the order the rows are returned
+         */
+        public static final String[] COLUMNS = {COLUMN_TIME, COLUMN_DURATION_US,
+                COLUMN_URI, COLUMN_SQL, COLUMN_ARGS, COLUMN_PLAN, COLUMN_FULL_SCAN};
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver
+                .CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_SLOW_QUERIES;
+    }
+
+    public static final class CacheEntry {
+
+        /**
+         * Content URI to read the hit and miss counters of the cache that
+         * serves single book queries. Returns one row.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath
+                (BookEntry.CONTENT_URI, PATH_CACHE);
+
+        /**
+         * Number of single book queries served from the cache
+         */
+        public static final String COLUMN_HITS = "hits";
+
+        /**
+         * Number of single book queries that had to read the database
+         */
+        public static final String COLUMN_MISSES = "misses";
+
+        /**
+         * Number of rows dropped to make room for newer ones
+         */
+        public static final String COLUMN_EVICTIONS = "evictions";
+
+        /**
+         * Number of rows in the cache
+         */
+        public static final String COLUMN_SIZE = "size";
+
+        /**
+         * Maximum number of rows the cache holds
+         */
+        public static final String COLUMN_MAX_SIZE = "max_size";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver
+                .CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                PATH_CACHE;
+    }
 }
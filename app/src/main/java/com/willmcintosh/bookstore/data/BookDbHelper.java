@@ -1,8 +1,17 @@
 package com.willmcintosh.bookstore.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.LedgerEntry;
+import com.willmcintosh.bookstore.data.BookContract.LocationEntry;
+import com.willmcintosh.bookstore.data.BookContract.StatsEntry;
+import com.willmcintosh.bookstore.data.BookContract.StockEntry;
+import com.willmcintosh.bookstore.data.BookContract.SupplierEntry;
 
 public class BookDbHelper extends SQLiteOpenHelper {
 
@@ -13,11 +22,113 @@ public class BookDbHelper extends SQLiteOpenHelper {
      */
     private static final String DATABASE_NAME = "bookstore.db";
 
+    /**
+     * Names of the secondary indexes on the books table
+     */
+    private static final String INDEX_PRODUCT_NAME = "books_product_name_idx";
+    private static final String INDEX_SUPPLIER_NAME = "books_supplier_name_idx";
+    private static final String INDEX_QUANTITY = "books_quantity_idx";
+    private static final String INDEX_SUPPLIER = "books_supplier_idx";
+
+    /**
+     * Name of the partial index over the books that are low on stock
+     */
+    private static final String INDEX_LOW_STOCK = "books_low_stock_idx";
+
+    /**
+     * Only books with fewer copies than this are in the low stock index. A
+     * query can only use the index if it repeats this exact condition.
+     */
+    static final int LOW_STOCK_INDEX_CEILING = 20;
+
+    /**
+     * Names of the triggers that keep the search index in sync
+     */
+    private static final String TRIGGER_SEARCH_INSERT = "books_fts_insert";
+    private static final String TRIGGER_SEARCH_UPDATE = "books_fts_update";
+    private static final String TRIGGER_SEARCH_DELETE = "books_fts_delete";
+    private static final String TRIGGER_SEARCH_SUPPLIER = "books_fts_supplier";
+
+    /**
+     * Names of the triggers that keep the inventory statistics up to date
+     */
+    private static final String TRIGGER_STATS_INSERT = "book_stats_insert";
+    private static final String TRIGGER_STATS_UPDATE = "book_stats_update";
+    private static final String TRIGGER_STATS_DELETE = "book_stats_delete";
+
+    /**
+     * Name of the index for looking up a book's stock at every location
+     */
+    private static final String INDEX_STOCK_BOOK = "stock_book_idx";
+
+    /**
+     * Names of the triggers that keep each book's quantity equal to its total
+     * across locations, and drop the stock of deleted books and locations
+     */
+    private static final String TRIGGER_STOCK_INSERT = "stock_total_insert";
+    private static final String TRIGGER_STOCK_UPDATE = "stock_total_update";
+    private static final String TRIGGER_STOCK_DELETE = "stock_total_delete";
+    private static final String TRIGGER_STOCK_BOOK_DELETE = "stock_book_delete";
+    private static final String TRIGGER_STOCK_LOCATION_DELETE =
+            "stock_location_delete";
+
+    /**
+     * Name of the index for reading the ledger entries of one book in order
+     */
+    private static final String INDEX_LEDGER_BOOK = "ledger_book_idx";
+
+    /**
+     * Name of the trigger that applies each ledger entry to the statistics
+     */
+    private static final String TRIGGER_STATS_LEDGER = "book_stats_ledger";
+
+    /**
+     * Single-row table holding the ID of the last ledger entry compaction
+     * folded in. Every entry up to it is part of the stored quantities, so
+     * the entries still pending are the ones after it.
+     */
+    static final String LEDGER_STATE_TABLE_NAME = "ledger_state";
+    static final String COLUMN_COMPACTED_THROUGH = "compacted_through";
+
+    /**
+     * Single-row table holding the catalog's change counter, the last
+     * version handed out to a changed book
+     */
+    static final String CHANGE_STATE_TABLE_NAME = "change_state";
+    static final String COLUMN_VERSION = "version";
+
+    /**
+     * Table with the ID and deletion version of each deleted book, so the
+     * change feed can report deletes
+     */
+    static final String TOMBSTONE_TABLE_NAME = "book_tombstones";
+
+    /**
+     * Names of the indexes the change feed reads in version order
+     */
+    private static final String INDEX_ROW_VERSION = "books_row_version_idx";
+    private static final String INDEX_TOMBSTONE_VERSION = "book_tombstones_version_idx";
+
+    /**
+     * Names of the triggers that give each changed book a new version
+     */
+    private static final String TRIGGER_VERSION_INSERT = "books_version_insert";
+    private static final String TRIGGER_VERSION_UPDATE = "books_version_update";
+    private static final String TRIGGER_VERSION_DELETE = "books_version_delete";
+    private static final String TRIGGER_VERSION_LEDGER = "books_version_ledger";
+    private static final String TRIGGER_VERSION_SUPPLIER = "books_version_supplier";
+
+    /**
+     * Name of the unique index for finding a book by the ID it is synced by
+     */
+    private static final String INDEX_UUID = "books_uuid_idx";
+
     /**
      * Database version. If you change the database schema, you must
-     * increment the database version.
+     * increment the database version and add a matching step to
+     * {@link #upgradeTo(SQLiteDatabase, int)}.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 11;
 
     /**
      * Constructs a new instance of {@link BookDbHelper}.
@@ -25,7 +136,40 @@ public class BookDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public BookDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link BookDbHelper} backed by the given
+     * database file. Used by tests so they don't touch the real inventory.
+     *
+     * @param context of the app
+     * @param name    of the database file
+     */
+    BookDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    /**
+     * This is called when the connection is being configured, before the
+     * database is created or upgraded. Write-ahead logging lets the reader
+     * connections used by the list loaders run while a sale or an editor save
+     * is writing, instead of waiting for the writer's lock.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.enableWriteAheadLogging();
+
+        // In WAL mode a commit only needs the log to be synced at checkpoint
+        // time to stay consistent, so NORMAL is safe and saves an fsync per
+        // sale.
+        db.execSQL("PRAGMA synchronous = NORMAL");
+
+        // the log is left at the platform's autocheckpoint of 100 pages. Every
+        // read looks its pages up in the log first, so a short log keeps list
+        // queries cheap, and a checkpoint that small is a few milliseconds
+        // added to one sale now and then
     }
 
     /**
@@ -47,19 +191,706 @@ public class BookDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_BOOKS_TABLE);
+
+        // The statement above is the version 1 schema. Bring a fresh
+        // database up to date with the same steps an existing one takes.
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Each version is
+     * applied in turn so no data is lost along the way.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be
-        // done here.
-        String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + BookContract
-                .BookEntry.TABLE_NAME;
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Log.i(LOG_TAG, "Upgrading database to version " + version);
+            upgradeTo(db, version);
+        }
+    }
+
+    /**
+     * Applies the schema changes that take the database from the previous
+     * version to the given version.
+     */
+    private void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                upgradeToVersion2(db);
+                break;
+            case 3:
+                upgradeToVersion3(db);
+                break;
+            case 4:
+                upgradeToVersion4(db);
+                break;
+            case 5:
+                upgradeToVersion5(db);
+                break;
+            case 6:
+                upgradeToVersion6(db);
+                break;
+            case 7:
+                upgradeToVersion7(db);
+                break;
+            case 8:
+                upgradeToVersion8(db);
+                break;
+            case 9:
+                upgradeToVersion9(db);
+                break;
+            case 10:
+                upgradeToVersion10(db);
+                break;
+            case 11:
+                upgradeToVersion11(db);
+                break;
+            default:
+                throw new IllegalStateException("No upgrade step for " +
+                        "database version " + version);
+        }
+    }
+
+    /**
+     * Version 2 adds secondary indexes for name lookups, supplier filters
+     * and sorting by stock.
+     */
+    private void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_PRODUCT_NAME + " ON "
+                + BookEntry.TABLE_NAME + " (" + BookEntry.COLUMN_PRODUCT_NAME
+                + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_SUPPLIER_NAME + " ON "
+                + BookEntry.TABLE_NAME + " (" + BookEntry.COLUMN_SUPPLIER_NAME
+                + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_QUANTITY + " ON " +
+                BookEntry.TABLE_NAME + " (" + BookEntry.COLUMN_QUANTITY + ");");
+    }
+
+    /**
+     * Version 3 adds an FTS4 index over titles and supplier names. The FTS
+     * rows use the book ID as their docid and are kept in sync by triggers,
+     * so the provider never has to write to it directly.
+     */
+    private void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + BookEntry.SEARCH_TABLE_NAME + " " +
+                "USING fts4(" + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry
+                .COLUMN_SUPPLIER_NAME + ");");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_INSERT + " AFTER INSERT " +
+                "ON " + BookEntry.TABLE_NAME + " BEGIN INSERT INTO " + BookEntry
+                .SEARCH_TABLE_NAME + " (docid, " + BookEntry.COLUMN_PRODUCT_NAME
+                + ", " + BookEntry.COLUMN_SUPPLIER_NAME + ") VALUES (NEW." +
+                BookEntry._ID + ", NEW." + BookEntry.COLUMN_PRODUCT_NAME + ", " +
+                "NEW." + BookEntry.COLUMN_SUPPLIER_NAME + "); END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_UPDATE + " AFTER UPDATE " +
+                "OF " + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry
+                .COLUMN_SUPPLIER_NAME + " ON " + BookEntry.TABLE_NAME + " BEGIN " +
+                "UPDATE " + BookEntry.SEARCH_TABLE_NAME + " SET " + BookEntry
+                .COLUMN_PRODUCT_NAME + " = NEW." + BookEntry.COLUMN_PRODUCT_NAME +
+                ", " + BookEntry.COLUMN_SUPPLIER_NAME + " = NEW." + BookEntry
+                .COLUMN_SUPPLIER_NAME + " WHERE docid = NEW." + BookEntry._ID +
+                "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_DELETE + " AFTER DELETE " +
+                "ON " + BookEntry.TABLE_NAME + " BEGIN DELETE FROM " + BookEntry
+                .SEARCH_TABLE_NAME + " WHERE docid = OLD." + BookEntry._ID + "; " +
+                "END;");
+
+        // index the books that are already in the table
+        db.execSQL("INSERT INTO " + BookEntry.SEARCH_TABLE_NAME + " (docid, " +
+                BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry
+                .COLUMN_SUPPLIER_NAME + ") SELECT " + BookEntry._ID + ", " +
+                BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry
+                .COLUMN_SUPPLIER_NAME + " FROM " + BookEntry.TABLE_NAME + ";");
+    }
+
+    /**
+     * Version 4 adds a single-row summary of the inventory. Triggers apply
+     * each insert, delete and price or quantity change to it as a delta, so
+     * reading the statistics never scans the books table.
+     */
+    private void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + " (" + StatsEntry
+                ._ID + " INTEGER PRIMARY KEY CHECK (" + StatsEntry._ID + " = 1), " +
+                StatsEntry.COLUMN_TITLE_COUNT + " INTEGER NOT NULL, " + StatsEntry
+                .COLUMN_TOTAL_UNITS + " INTEGER NOT NULL, " + StatsEntry
+                .COLUMN_TOTAL_VALUE + " INTEGER NOT NULL, " + StatsEntry
+                .COLUMN_LOW_STOCK_COUNT + " INTEGER NOT NULL);");
+
+        createStatsTriggers(db);
+
+        // seed the summary from the books that are already in the table
+        String lowStock = " < " + StatsEntry.LOW_STOCK_THRESHOLD + ")";
+        db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + " (" + StatsEntry._ID
+                + ", " + StatsEntry.COLUMN_TITLE_COUNT + ", " + StatsEntry
+                .COLUMN_TOTAL_UNITS + ", " + StatsEntry.COLUMN_TOTAL_VALUE + ", " +
+                StatsEntry.COLUMN_LOW_STOCK_COUNT + ") SELECT 1, COUNT(*), " +
+                "IFNULL(SUM(" + BookEntry.COLUMN_QUANTITY + "), 0), IFNULL(SUM(" +
+                BookEntry.COLUMN_PRICE + " * " + BookEntry.COLUMN_QUANTITY + "), " +
+                "0), IFNULL(SUM(" + BookEntry.COLUMN_QUANTITY + lowStock + ", 0) " +
+                "FROM " + BookEntry.TABLE_NAME + ";");
+    }
+
+    /**
+     * Version 5 adds a partial index holding only the books that are low on
+     * stock, so the reorder list reads a small index instead of the whole
+     * quantity index. Partial indexes need SQLite 3.8.0 (Android 5.0); older
+     * devices keep using the full quantity index from version 2.
+     */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        createLowStockIndex(db);
+    }
+
+    private static void createLowStockIndex(SQLiteDatabase db) {
+        if (!supportsPartialIndexes(db)) {
+            Log.i(LOG_TAG, "SQLite is too old for partial indexes, skipping " +
+                    INDEX_LOW_STOCK);
+            return;
+        }
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_LOW_STOCK + " ON " +
+                BookEntry.TABLE_NAME + " (" + BookEntry.COLUMN_QUANTITY + ") WHERE "
+                + BookEntry.COLUMN_QUANTITY + " < " + LOW_STOCK_INDEX_CEILING + ";");
+    }
+
+    /**
+     * Version 6 adds store locations and the stock of each book at each
+     * location. The stock table's key leads with the location, so a branch's
+     * stock is one range of the key and never reads another branch's rows.
+     * Triggers apply every stock change to the book's quantity as a delta,
+     * which keeps the quantity the total across locations, and with it the
+     * statistics and the low stock index, without summing anything.
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+                LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                LocationEntry.COLUMN_NAME + " TEXT NOT NULL UNIQUE);");
+
+        db.execSQL("CREATE TABLE " + StockEntry.TABLE_NAME + " (" + StockEntry
+                .COLUMN_LOCATION_ID + " INTEGER NOT NULL, " + StockEntry
+                .COLUMN_BOOK_ID + " INTEGER NOT NULL, " + StockEntry.COLUMN_QUANTITY
+                + " INTEGER NOT NULL DEFAULT 0 CHECK (" + StockEntry.COLUMN_QUANTITY
+                + " >= 0), PRIMARY KEY (" + StockEntry.COLUMN_LOCATION_ID + ", " +
+                StockEntry.COLUMN_BOOK_ID + "));");
+
+        db.execSQL("CREATE INDEX " + INDEX_STOCK_BOOK + " ON " + StockEntry
+                .TABLE_NAME + " (" + StockEntry.COLUMN_BOOK_ID + ");");
+
+        createStockTriggers(db);
+    }
+
+    /**
+     * Version 7 moves the supplier names and phones out of the books table
+     * into a suppliers table that each book refers to by ID, so a supplier's
+     * details are stored once and its books are one range of an index.
+     * SQLite can't drop columns, so the books table is rebuilt: the new
+     * table is filled, the old one dropped and the new one renamed, keeping
+     * every book ID and the AUTOINCREMENT counter. Reads go through a view
+     * that joins the supplier columns back in.
+     * <p>
+     * Books that shared a supplier name now share one supplier. Where their
+     * phones differed the supplier keeps one of them, preferring a non-empty
+     * one.
+     */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SupplierEntry.TABLE_NAME + " (" +
+                SupplierEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                SupplierEntry.COLUMN_NAME + " TEXT NOT NULL UNIQUE, " + SupplierEntry
+                .COLUMN_PHONE + " TEXT);");
+
+        db.execSQL("INSERT INTO " + SupplierEntry.TABLE_NAME + " (" + SupplierEntry
+                .COLUMN_NAME + ", " + SupplierEntry.COLUMN_PHONE + ") SELECT " +
+                BookEntry.COLUMN_SUPPLIER_NAME + ", MAX(IFNULL(" + BookEntry
+                .COLUMN_SUPPLIER_PHONE + ", '')) FROM " + BookEntry.TABLE_NAME +
+                " GROUP BY " + BookEntry.COLUMN_SUPPLIER_NAME + ";");
+
+        String newTable = BookEntry.TABLE_NAME + "_new";
+        db.execSQL("CREATE TABLE " + newTable + " (" + BookEntry._ID + " INTEGER " +
+                "PRIMARY KEY AUTOINCREMENT, " + BookEntry.COLUMN_PRODUCT_NAME +
+                " TEXT NOT NULL, " + BookEntry.COLUMN_PRICE + " INTEGER NOT NULL, " +
+                BookEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, " +
+                BookEntry.COLUMN_SUPPLIER_ID + " INTEGER NOT NULL REFERENCES " +
+                SupplierEntry.TABLE_NAME + " (" + SupplierEntry._ID + "));");
+
+        db.execSQL("INSERT INTO " + newTable + " SELECT b." + BookEntry._ID + ", " +
+                "b." + BookEntry.COLUMN_PRODUCT_NAME + ", b." + BookEntry
+                .COLUMN_PRICE + ", b." + BookEntry.COLUMN_QUANTITY + ", s." +
+                SupplierEntry._ID + " FROM " + BookEntry.TABLE_NAME + " b JOIN " +
+                SupplierEntry.TABLE_NAME + " s ON s." + SupplierEntry.COLUMN_NAME +
+                " = b." + BookEntry.COLUMN_SUPPLIER_NAME + ";");
+
+        // the new table's counter only knows the highest ID left, not the
+        // highest ever handed out, and IDs must never be reused
+        long sequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(seq), " +
+                "0) FROM sqlite_sequence WHERE name = ?", new String[]{BookEntry
+                .TABLE_NAME});
+
+        // triggers on other tables that name the books table have to go
+        // while it's being swapped, or newer SQLite versions refuse the
+        // rename. The triggers on the books table go with it.
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_STOCK_INSERT + ";");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_STOCK_UPDATE + ";");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_STOCK_DELETE + ";");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_STOCK_LOCATION_DELETE + ";");
+        db.execSQL("DROP TABLE " + BookEntry.TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + BookEntry.TABLE_NAME
+                + ";");
+
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = ?", new Object[]{
+                BookEntry.TABLE_NAME});
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT ?, MAX(?, " +
+                "IFNULL(MAX(" + BookEntry._ID + "), 0)) FROM " + BookEntry.TABLE_NAME,
+                new Object[]{BookEntry.TABLE_NAME, sequence});
+
+        db.execSQL("CREATE INDEX " + INDEX_PRODUCT_NAME + " ON " + BookEntry
+                .TABLE_NAME + " (" + BookEntry.COLUMN_PRODUCT_NAME + ");");
+        db.execSQL("CREATE INDEX " + INDEX_QUANTITY + " ON " + BookEntry.TABLE_NAME
+                + " (" + BookEntry.COLUMN_QUANTITY + ");");
+        db.execSQL("CREATE INDEX " + INDEX_SUPPLIER + " ON " + BookEntry.TABLE_NAME
+                + " (" + BookEntry.COLUMN_SUPPLIER_ID + ");");
+        createLowStockIndex(db);
+
+        createBooksView(db, "b." + BookEntry.COLUMN_QUANTITY, "");
+
+        // the search index keeps the supplier name, now looked up by ID
+        String supplierName = "(SELECT " + SupplierEntry.COLUMN_NAME + " FROM " +
+                SupplierEntry.TABLE_NAME + " WHERE " + SupplierEntry._ID + " = NEW."
+                + BookEntry.COLUMN_SUPPLIER_ID + ")";
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_INSERT + " AFTER INSERT " +
+                "ON " + BookEntry.TABLE_NAME + " BEGIN INSERT INTO " + BookEntry
+                .SEARCH_TABLE_NAME + " (docid, " + BookEntry.COLUMN_PRODUCT_NAME
+                + ", " + BookEntry.COLUMN_SUPPLIER_NAME + ") VALUES (NEW." +
+                BookEntry._ID + ", NEW." + BookEntry.COLUMN_PRODUCT_NAME + ", " +
+                supplierName + "); END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_UPDATE + " AFTER UPDATE " +
+                "OF " + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry
+                .COLUMN_SUPPLIER_ID + " ON " + BookEntry.TABLE_NAME + " BEGIN " +
+                "UPDATE " + BookEntry.SEARCH_TABLE_NAME + " SET " + BookEntry
+                .COLUMN_PRODUCT_NAME + " = NEW." + BookEntry.COLUMN_PRODUCT_NAME +
+                ", " + BookEntry.COLUMN_SUPPLIER_NAME + " = " + supplierName +
+                " WHERE docid = NEW." + BookEntry._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_DELETE + " AFTER DELETE " +
+                "ON " + BookEntry.TABLE_NAME + " BEGIN DELETE FROM " + BookEntry
+                .SEARCH_TABLE_NAME + " WHERE docid = OLD." + BookEntry._ID + "; " +
+                "END;");
+
+        // renaming a supplier renames it in the index entry of each of its
+        // books, found through the supplier index
+        db.execSQL("CREATE TRIGGER " + TRIGGER_SEARCH_SUPPLIER + " AFTER UPDATE " +
+                "OF " + SupplierEntry.COLUMN_NAME + " ON " + SupplierEntry.TABLE_NAME
+                + " BEGIN UPDATE " + BookEntry.SEARCH_TABLE_NAME + " SET " +
+                BookEntry.COLUMN_SUPPLIER_NAME + " = NEW." + SupplierEntry
+                .COLUMN_NAME + " WHERE docid IN (SELECT " + BookEntry._ID + " FROM "
+                + BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_SUPPLIER_ID +
+                " = NEW." + SupplierEntry._ID + "); END;");
+
+        createStatsTriggers(db);
+        createStockTriggers(db);
+    }
+
+    /**
+     * Version 8 adds the stock ledger. A sale appends an entry instead of
+     * rewriting the book row, and compaction later folds the entries into
+     * the stored quantity, recording the last one folded in the book's
+     * ledger_seq. A book's quantity is its stored quantity plus its entries
+     * after ledger_seq, which is what the view now returns and what the
+     * statistics triggers count, so folding entries in never changes either.
+     */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LedgerEntry.TABLE_NAME + " (" + LedgerEntry
+                ._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + LedgerEntry
+                .COLUMN_BOOK_ID + " INTEGER NOT NULL, " + LedgerEntry.COLUMN_DELTA
+                + " INTEGER NOT NULL, " + LedgerEntry.COLUMN_TIME + " INTEGER NOT " +
+                "NULL);");
+        db.execSQL("CREATE INDEX " + INDEX_LEDGER_BOOK + " ON " + LedgerEntry
+                .TABLE_NAME + " (" + LedgerEntry.COLUMN_BOOK_ID + ", " + LedgerEntry
+                ._ID + ");");
+
+        db.execSQL("CREATE TABLE " + LEDGER_STATE_TABLE_NAME + " (" + BookEntry
+                ._ID + " INTEGER PRIMARY KEY CHECK (" + BookEntry._ID + " = 1), " +
+                COLUMN_COMPACTED_THROUGH + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + LEDGER_STATE_TABLE_NAME + " VALUES (1, 0);");
+
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN " +
+                BookEntry.COLUMN_LEDGER_SEQ + " INTEGER NOT NULL DEFAULT 0;");
+
+        db.execSQL("DROP VIEW " + BookEntry.VIEW_NAME + ";");
+        createBooksView(db, "b." + BookEntry.COLUMN_QUANTITY + " + " + pending("b"),
+                "");
+
+        // the update and delete triggers count quantities with their pending
+        // entries from now on
+        db.execSQL("DROP TRIGGER " + TRIGGER_STATS_UPDATE + ";");
+        db.execSQL("DROP TRIGGER " + TRIGGER_STATS_DELETE + ";");
+        createLedgerStatsTriggers(db);
+    }
+
+    /**
+     * Version 9 adds row versions for the change feed. A counter in
+     * change_state goes up by one for every change, and triggers stamp the
+     * changed books with it: inserts and edits, ledger entries and stock
+     * changes, and supplier changes, which stamp all of the supplier's books
+     * with one version. Deleted books leave a tombstone with the version of
+     * the delete. Compaction doesn't change what a book reads as, so it
+     * doesn't count as a change. Both tables are indexed by version, so the
+     * feed reads only the changed rows.
+     * <p>
+     * The books already in the table all get version 1, so reading changes
+     * since 0 returns the whole catalog.
+     */
+    private void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + CHANGE_STATE_TABLE_NAME + " (" + BookEntry._ID
+                + " INTEGER PRIMARY KEY CHECK (" + BookEntry._ID + " = 1), " +
+                COLUMN_VERSION + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + CHANGE_STATE_TABLE_NAME + " VALUES (1, 1);");
+
+        db.execSQL("CREATE TABLE " + TOMBSTONE_TABLE_NAME + " (" + BookEntry._ID +
+                " INTEGER PRIMARY KEY, " + BookEntry.COLUMN_ROW_VERSION + " " +
+                "INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + INDEX_TOMBSTONE_VERSION + " ON " +
+                TOMBSTONE_TABLE_NAME + " (" + BookEntry.COLUMN_ROW_VERSION + ");");
+
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN " +
+                BookEntry.COLUMN_ROW_VERSION + " INTEGER NOT NULL DEFAULT 1;");
+        db.execSQL("CREATE INDEX " + INDEX_ROW_VERSION + " ON " + BookEntry
+                .TABLE_NAME + " (" + BookEntry.COLUMN_ROW_VERSION + ");");
+
+        db.execSQL("DROP VIEW " + BookEntry.VIEW_NAME + ";");
+        createBooksView(db, "b." + BookEntry.COLUMN_QUANTITY + " + " + pending("b"),
+                ", b." + BookEntry.COLUMN_ROW_VERSION + " AS " + BookEntry
+                        .COLUMN_ROW_VERSION);
+
+        createVersionTriggers(db);
+    }
+
+    /**
+     * Version 10 prepares the catalog for syncing with the catalog service.
+     * Each book gets a random UUID that identifies it on every device, and
+     * keeps the service's version of it along with the row version last
+     * pushed or pulled, so the sync engine can tell local edits from its own
+     * writes. Tombstones keep the UUID so deletes can be pushed.
+     * <p>
+     * Stock changes are logged to the ledger from now on instead of being
+     * added to the stored quantity, so every change to a quantity is a
+     * numbered delta the sync engine can push exactly once.
+     */
+    private void upgradeToVersion10(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN " +
+                BookEntry.COLUMN_UUID + " TEXT;");
+        db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry
+                .COLUMN_UUID + " = lower(hex(randomblob(16)));");
+        db.execSQL("CREATE UNIQUE INDEX " + INDEX_UUID + " ON " + BookEntry
+                .TABLE_NAME + " (" + BookEntry.COLUMN_UUID + ");");
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN " +
+                BookEntry.COLUMN_REMOTE_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN " +
+                BookEntry.COLUMN_SYNCED_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+
+        db.execSQL("ALTER TABLE " + TOMBSTONE_TABLE_NAME + " ADD COLUMN " +
+                BookEntry.COLUMN_UUID + " TEXT;");
+        db.execSQL("DROP TRIGGER " + TRIGGER_VERSION_DELETE + ";");
+        db.execSQL("CREATE TRIGGER " + TRIGGER_VERSION_DELETE + " AFTER DELETE ON " +
+                BookEntry.TABLE_NAME + " BEGIN UPDATE " + CHANGE_STATE_TABLE_NAME +
+                " SET " + COLUMN_VERSION + " = " + COLUMN_VERSION + " + 1; INSERT " +
+                "OR REPLACE INTO " + TOMBSTONE_TABLE_NAME + " (" + BookEntry._ID +
+                ", " + BookEntry.COLUMN_ROW_VERSION + ", " + BookEntry.COLUMN_UUID +
+                ") SELECT OLD." + BookEntry._ID + ", " + COLUMN_VERSION + ", OLD." +
+                BookEntry.COLUMN_UUID + " FROM " + CHANGE_STATE_TABLE_NAME + "; " +
+                "END;");
+
+        db.execSQL("DROP VIEW " + BookEntry.VIEW_NAME + ";");
+        createBooksView(db, "b." + BookEntry.COLUMN_QUANTITY + " + " + pending("b"),
+                ", b." + BookEntry.COLUMN_ROW_VERSION + " AS " + BookEntry
+                        .COLUMN_ROW_VERSION + ", b." + BookEntry.COLUMN_UUID + " AS " +
+                        BookEntry.COLUMN_UUID + ", b." + BookEntry
+                        .COLUMN_REMOTE_VERSION + " AS " + BookEntry
+                        .COLUMN_REMOTE_VERSION + ", b." + BookEntry
+                        .COLUMN_SYNCED_VERSION + " AS " + BookEntry
+                        .COLUMN_SYNCED_VERSION);
+
+        db.execSQL("DROP TRIGGER " + TRIGGER_STOCK_INSERT + ";");
+        db.execSQL("DROP TRIGGER " + TRIGGER_STOCK_UPDATE + ";");
+        db.execSQL("DROP TRIGGER " + TRIGGER_STOCK_DELETE + ";");
+        createLedgerStockTriggers(db);
+    }
+
+    /**
+     * Version 11 stops ledger entries from stamping their book with a new
+     * version. Stamping rewrote the book row and its row_version index on
+     * every sale, which is the write the ledger exists to avoid. The change
+     * feed finds books with new ledger entries through the ledger's own IDs
+     * instead.
+     */
+    private void upgradeToVersion11(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER " + TRIGGER_VERSION_LEDGER + ";");
+    }
+
+    /**
+     * Creates the triggers that log each change to a book's stock at a
+     * location to the ledger.
+     */
+    private static void createLedgerStockTriggers(SQLiteDatabase db) {
+        String log = "INSERT INTO " + LedgerEntry.TABLE_NAME + " (" + LedgerEntry
+                .COLUMN_BOOK_ID + ", " + LedgerEntry.COLUMN_DELTA + ", " +
+                LedgerEntry.COLUMN_TIME + ") VALUES (";
+        String now = ", CAST(strftime('%s', 'now') AS INTEGER) * 1000); END;";
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_INSERT + " AFTER INSERT ON " +
+                StockEntry.TABLE_NAME + " WHEN NEW." + StockEntry.COLUMN_QUANTITY +
+                " != 0 BEGIN " + log + "NEW." + StockEntry.COLUMN_BOOK_ID + ", NEW." +
+                StockEntry.COLUMN_QUANTITY + now);
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_UPDATE + " AFTER UPDATE OF " +
+                StockEntry.COLUMN_QUANTITY + " ON " + StockEntry.TABLE_NAME + " WHEN " +
+                "NEW." + StockEntry.COLUMN_QUANTITY + " != OLD." + StockEntry
+                .COLUMN_QUANTITY + " BEGIN " + log + "NEW." + StockEntry
+                .COLUMN_BOOK_ID + ", NEW." + StockEntry.COLUMN_QUANTITY + " - OLD." +
+                StockEntry.COLUMN_QUANTITY + now);
+
+        // the stock of a deleted book goes with the book, which has nothing
+        // left to log against
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_DELETE + " AFTER DELETE ON " +
+                StockEntry.TABLE_NAME + " WHEN OLD." + StockEntry.COLUMN_QUANTITY +
+                " != 0 AND EXISTS (SELECT 1 FROM " + BookEntry.TABLE_NAME + " WHERE " +
+                BookEntry._ID + " = OLD." + StockEntry.COLUMN_BOOK_ID + ") BEGIN " +
+                log + "OLD." + StockEntry.COLUMN_BOOK_ID + ", -OLD." + StockEntry
+                .COLUMN_QUANTITY + now);
+    }
+
+    /**
+     * Creates the triggers that stamp changed books with the next version.
+     */
+    private static void createVersionTriggers(SQLiteDatabase db) {
+        String next = "UPDATE " + CHANGE_STATE_TABLE_NAME + " SET " + COLUMN_VERSION
+                + " = " + COLUMN_VERSION + " + 1; ";
+        String stamp = "UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry
+                .COLUMN_ROW_VERSION + " = (SELECT " + COLUMN_VERSION + " FROM " +
+                CHANGE_STATE_TABLE_NAME + ") WHERE ";
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_VERSION_INSERT + " AFTER INSERT ON " +
+                BookEntry.TABLE_NAME + " BEGIN " + next + stamp + BookEntry._ID +
+                " = NEW." + BookEntry._ID + "; END;");
+
+        // only when what the book reads as changed, which leaves out
+        // compaction folding ledger entries in. The stamp itself only sets
+        // the version, which isn't one of the columns watched.
+        db.execSQL("CREATE TRIGGER " + TRIGGER_VERSION_UPDATE + " AFTER UPDATE OF " +
+                BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", " +
+                BookEntry.COLUMN_QUANTITY + ", " + BookEntry.COLUMN_SUPPLIER_ID + ", "
+                + BookEntry.COLUMN_LEDGER_SEQ + " ON " + BookEntry.TABLE_NAME + " " +
+                "WHEN NEW." + BookEntry.COLUMN_PRODUCT_NAME + " IS NOT OLD." +
+                BookEntry.COLUMN_PRODUCT_NAME + " OR NEW." + BookEntry.COLUMN_PRICE +
+                " IS NOT OLD." + BookEntry.COLUMN_PRICE + " OR NEW." + BookEntry
+                .COLUMN_SUPPLIER_ID + " IS NOT OLD." + BookEntry.COLUMN_SUPPLIER_ID +
+                " OR NEW." + BookEntry.COLUMN_QUANTITY + " + " + pending("NEW") +
+                " IS NOT OLD." + BookEntry.COLUMN_QUANTITY + " + " + pending("OLD") +
+                " BEGIN " + next + stamp + BookEntry._ID + " = NEW." + BookEntry._ID +
+                "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_VERSION_DELETE + " AFTER DELETE ON " +
+                BookEntry.TABLE_NAME + " BEGIN " + next + "INSERT OR REPLACE INTO " +
+                TOMBSTONE_TABLE_NAME + " (" + BookEntry._ID + ", " + BookEntry
+                .COLUMN_ROW_VERSION + ") SELECT OLD." + BookEntry._ID + ", " +
+                COLUMN_VERSION + " FROM " + CHANGE_STATE_TABLE_NAME + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_VERSION_LEDGER + " AFTER INSERT ON " +
+                LedgerEntry.TABLE_NAME + " BEGIN " + next + stamp + BookEntry._ID +
+                " = NEW." + LedgerEntry.COLUMN_BOOK_ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_VERSION_SUPPLIER + " AFTER UPDATE OF " +
+                SupplierEntry.COLUMN_NAME + ", " + SupplierEntry.COLUMN_PHONE + " ON " +
+                SupplierEntry.TABLE_NAME + " WHEN NEW." + SupplierEntry.COLUMN_NAME +
+                " IS NOT OLD." + SupplierEntry.COLUMN_NAME + " OR NEW." +
+                SupplierEntry.COLUMN_PHONE + " IS NOT OLD." + SupplierEntry
+                .COLUMN_PHONE + " BEGIN " + next + stamp + BookEntry.COLUMN_SUPPLIER_ID
+                + " = NEW." + SupplierEntry._ID + "; END;");
+    }
+
+    /**
+     * Creates the view queries read books through, with the supplier
+     * columns joined in, the quantity given by the expression and any extra
+     * columns after the supplier ID.
+     */
+    private static void createBooksView(SQLiteDatabase db, String quantity, String
+            extraColumns) {
+        db.execSQL("CREATE VIEW " + BookEntry.VIEW_NAME + " AS SELECT b." +
+                BookEntry._ID + " AS " + BookEntry._ID + ", b." + BookEntry
+                .COLUMN_PRODUCT_NAME + " AS " + BookEntry.COLUMN_PRODUCT_NAME + ", " +
+                "b." + BookEntry.COLUMN_PRICE + " AS " + BookEntry.COLUMN_PRICE +
+                ", " + quantity + " AS " + BookEntry.COLUMN_QUANTITY + ", s." +
+                SupplierEntry.COLUMN_NAME + " AS " + BookEntry.COLUMN_SUPPLIER_NAME +
+                ", s." + SupplierEntry.COLUMN_PHONE + " AS " + BookEntry
+                .COLUMN_SUPPLIER_PHONE + ", b." + BookEntry.COLUMN_SUPPLIER_ID + " AS "
+                + BookEntry.COLUMN_SUPPLIER_ID + extraColumns + " FROM " + BookEntry
+                .TABLE_NAME + " b JOIN " + SupplierEntry.TABLE_NAME + " s ON s." +
+                SupplierEntry._ID + " = b." + BookEntry.COLUMN_SUPPLIER_ID + ";");
+    }
+
+    /**
+     * Returns an expression for the sum of the ledger entries not yet folded
+     * into a book's stored quantity. It reads one short range of the ledger
+     * index, as compaction keeps the pending entries few.
+     *
+     * @param book name or alias of the books row, or NEW or OLD in a trigger
+     */
+    static String pending(String book) {
+        return "(SELECT IFNULL(SUM(l." + LedgerEntry.COLUMN_DELTA + "), 0) FROM " +
+                LedgerEntry.TABLE_NAME + " l WHERE l." + LedgerEntry.COLUMN_BOOK_ID +
+                " = " + book + "." + BookEntry._ID + " AND l." + LedgerEntry._ID +
+                " > " + book + "." + BookEntry.COLUMN_LEDGER_SEQ + ")";
+    }
+
+    /**
+     * Creates the statistics triggers for books changed through the books
+     * table, counting each book's pending ledger entries with its quantity,
+     * and the trigger that counts each new ledger entry.
+     */
+    private static void createLedgerStatsTriggers(SQLiteDatabase db) {
+        String lowStock = " < " + StatsEntry.LOW_STOCK_THRESHOLD + ")";
+        String newQuantity = "(NEW." + BookEntry.COLUMN_QUANTITY + " + " + pending
+                ("NEW") + ")";
+        String oldQuantity = "(OLD." + BookEntry.COLUMN_QUANTITY + " + " + pending
+                ("OLD") + ")";
+
+        // folding entries in moves them from pending to the stored quantity,
+        // which leaves the sums the same
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATS_UPDATE + " AFTER UPDATE OF "
+                + BookEntry.COLUMN_PRICE + ", " + BookEntry.COLUMN_QUANTITY + ", " +
+                BookEntry.COLUMN_LEDGER_SEQ + " ON " + BookEntry.TABLE_NAME + " " +
+                "BEGIN UPDATE " + StatsEntry.TABLE_NAME + " SET " + StatsEntry
+                .COLUMN_TOTAL_UNITS + " = " + StatsEntry.COLUMN_TOTAL_UNITS + " + " +
+                newQuantity + " - " + oldQuantity + ", " + StatsEntry
+                .COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE + " + " +
+                "NEW." + BookEntry.COLUMN_PRICE + " * " + newQuantity + " - OLD." +
+                BookEntry.COLUMN_PRICE + " * " + oldQuantity + ", " + StatsEntry
+                .COLUMN_LOW_STOCK_COUNT + " = " + StatsEntry.COLUMN_LOW_STOCK_COUNT +
+                " + (" + newQuantity + lowStock + " - (" + oldQuantity + lowStock +
+                "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATS_DELETE + " AFTER DELETE ON "
+                + BookEntry.TABLE_NAME + " BEGIN UPDATE " + StatsEntry.TABLE_NAME +
+                " SET " + StatsEntry.COLUMN_TITLE_COUNT + " = " + StatsEntry
+                .COLUMN_TITLE_COUNT + " - 1, " + StatsEntry.COLUMN_TOTAL_UNITS +
+                " = " + StatsEntry.COLUMN_TOTAL_UNITS + " - " + oldQuantity + ", " +
+                StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " - OLD." + BookEntry.COLUMN_PRICE + " * " + oldQuantity + ", " +
+                StatsEntry.COLUMN_LOW_STOCK_COUNT + " = " + StatsEntry
+                .COLUMN_LOW_STOCK_COUNT + " - (" + oldQuantity + lowStock + "; END;");
+
+        // the entry is already in the ledger, so the book's quantity includes
+        // it and its quantity before the entry is that less the delta
+        String quantity = "q";
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATS_LEDGER + " AFTER INSERT ON " +
+                LedgerEntry.TABLE_NAME + " BEGIN UPDATE " + StatsEntry.TABLE_NAME +
+                " SET " + StatsEntry.COLUMN_TOTAL_UNITS + " = " + StatsEntry
+                .COLUMN_TOTAL_UNITS + " + NEW." + LedgerEntry.COLUMN_DELTA + ", " +
+                StatsEntry.COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE
+                + " + NEW." + LedgerEntry.COLUMN_DELTA + " * (SELECT " + BookEntry
+                .COLUMN_PRICE + " FROM " + BookEntry.TABLE_NAME + " WHERE " +
+                BookEntry._ID + " = NEW." + LedgerEntry.COLUMN_BOOK_ID + "), " +
+                StatsEntry.COLUMN_LOW_STOCK_COUNT + " = " + StatsEntry
+                .COLUMN_LOW_STOCK_COUNT + " + (SELECT (" + quantity + lowStock +
+                " - (" + quantity + " - NEW." + LedgerEntry.COLUMN_DELTA + lowStock +
+                " FROM (SELECT b." + BookEntry.COLUMN_QUANTITY + " + " + pending("b")
+                + " AS " + quantity + " FROM " + BookEntry.TABLE_NAME + " b WHERE b." +
+                BookEntry._ID + " = NEW." + LedgerEntry.COLUMN_BOOK_ID + ")); END;");
+    }
+
+    /**
+     * Creates the triggers that apply each change to the books table to the
+     * statistics row.
+     */
+    private static void createStatsTriggers(SQLiteDatabase db) {
+        String lowStock = " < " + StatsEntry.LOW_STOCK_THRESHOLD + ")";
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATS_INSERT + " AFTER INSERT ON "
+                + BookEntry.TABLE_NAME + " BEGIN UPDATE " + StatsEntry.TABLE_NAME +
+                " SET " + StatsEntry.COLUMN_TITLE_COUNT + " = " + StatsEntry
+                .COLUMN_TITLE_COUNT + " + 1, " + StatsEntry.COLUMN_TOTAL_UNITS +
+                " = " + StatsEntry.COLUMN_TOTAL_UNITS + " + NEW." + BookEntry
+                .COLUMN_QUANTITY + ", " + StatsEntry.COLUMN_TOTAL_VALUE + " = " +
+                StatsEntry.COLUMN_TOTAL_VALUE + " + NEW." + BookEntry.COLUMN_PRICE +
+                " * NEW." + BookEntry.COLUMN_QUANTITY + ", " + StatsEntry
+                .COLUMN_LOW_STOCK_COUNT + " = " + StatsEntry.COLUMN_LOW_STOCK_COUNT
+                + " + (NEW." + BookEntry.COLUMN_QUANTITY + lowStock + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATS_UPDATE + " AFTER UPDATE OF "
+                + BookEntry.COLUMN_PRICE + ", " + BookEntry.COLUMN_QUANTITY + " ON "
+                + BookEntry.TABLE_NAME + " BEGIN UPDATE " + StatsEntry.TABLE_NAME +
+                " SET " + StatsEntry.COLUMN_TOTAL_UNITS + " = " + StatsEntry
+                .COLUMN_TOTAL_UNITS + " + NEW." + BookEntry.COLUMN_QUANTITY + " - " +
+                "OLD." + BookEntry.COLUMN_QUANTITY + ", " + StatsEntry
+                .COLUMN_TOTAL_VALUE + " = " + StatsEntry.COLUMN_TOTAL_VALUE + " + " +
+                "NEW." + BookEntry.COLUMN_PRICE + " * NEW." + BookEntry
+                .COLUMN_QUANTITY + " - OLD." + BookEntry.COLUMN_PRICE + " * OLD." +
+                BookEntry.COLUMN_QUANTITY + ", " + StatsEntry.COLUMN_LOW_STOCK_COUNT
+                + " = " + StatsEntry.COLUMN_LOW_STOCK_COUNT + " + (NEW." + BookEntry
+                .COLUMN_QUANTITY + lowStock + " - (OLD." + BookEntry.COLUMN_QUANTITY
+                + lowStock + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STATS_DELETE + " AFTER DELETE ON "
+                + BookEntry.TABLE_NAME + " BEGIN UPDATE " + StatsEntry.TABLE_NAME +
+                " SET " + StatsEntry.COLUMN_TITLE_COUNT + " = " + StatsEntry
+                .COLUMN_TITLE_COUNT + " - 1, " + StatsEntry.COLUMN_TOTAL_UNITS +
+                " = " + StatsEntry.COLUMN_TOTAL_UNITS + " - OLD." + BookEntry
+                .COLUMN_QUANTITY + ", " + StatsEntry.COLUMN_TOTAL_VALUE + " = " +
+                StatsEntry.COLUMN_TOTAL_VALUE + " - OLD." + BookEntry.COLUMN_PRICE +
+                " * OLD." + BookEntry.COLUMN_QUANTITY + ", " + StatsEntry
+                .COLUMN_LOW_STOCK_COUNT + " = " + StatsEntry.COLUMN_LOW_STOCK_COUNT
+                + " - (OLD." + BookEntry.COLUMN_QUANTITY + lowStock + "; END;");
+    }
+
+    /**
+     * Creates the triggers that keep book quantities equal to their stock
+     * totals and drop the stock of deleted books and locations.
+     */
+    private static void createStockTriggers(SQLiteDatabase db) {
+        String total = "UPDATE " + BookEntry.TABLE_NAME + " SET " + BookEntry
+                .COLUMN_QUANTITY + " = " + BookEntry.COLUMN_QUANTITY;
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_INSERT + " AFTER INSERT ON " +
+                StockEntry.TABLE_NAME + " BEGIN " + total + " + NEW." + StockEntry
+                .COLUMN_QUANTITY + " WHERE " + BookEntry._ID + " = NEW." +
+                StockEntry.COLUMN_BOOK_ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_UPDATE + " AFTER UPDATE OF " +
+                StockEntry.COLUMN_QUANTITY + " ON " + StockEntry.TABLE_NAME + " " +
+                "BEGIN " + total + " + NEW." + StockEntry.COLUMN_QUANTITY + " - " +
+                "OLD." + StockEntry.COLUMN_QUANTITY + " WHERE " + BookEntry._ID +
+                " = NEW." + StockEntry.COLUMN_BOOK_ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_DELETE + " AFTER DELETE ON " +
+                StockEntry.TABLE_NAME + " BEGIN " + total + " - OLD." + StockEntry
+                .COLUMN_QUANTITY + " WHERE " + BookEntry._ID + " = OLD." +
+                StockEntry.COLUMN_BOOK_ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_BOOK_DELETE + " AFTER DELETE " +
+                "ON " + BookEntry.TABLE_NAME + " BEGIN DELETE FROM " + StockEntry
+                .TABLE_NAME + " WHERE " + StockEntry.COLUMN_BOOK_ID + " = OLD." +
+                BookEntry._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + TRIGGER_STOCK_LOCATION_DELETE + " AFTER " +
+                "DELETE ON " + LocationEntry.TABLE_NAME + " BEGIN DELETE FROM " +
+                StockEntry.TABLE_NAME + " WHERE " + StockEntry.COLUMN_LOCATION_ID +
+                " = OLD." + LocationEntry._ID + "; END;");
+    }
+
+    /**
+     * Returns whether the SQLite library is at least version 3.8.0.
+     */
+    private static boolean supportsPartialIndexes(SQLiteDatabase db) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT " +
+                "sqlite_version()", null).split("\\.");
+        try {
+            int major = Integer.parseInt(version[0]);
+            int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+            return major > 3 || (major == 3 && minor >= 8);
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
 }
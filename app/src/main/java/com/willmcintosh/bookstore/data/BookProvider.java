@@ -2,15 +2,52 @@ package com.willmcintosh.bookstore.data;
 
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
+import com.willmcintosh.bookstore.BuildConfig;
 import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.CacheEntry;
+import com.willmcintosh.bookstore.data.BookContract.LedgerEntry;
+import com.willmcintosh.bookstore.data.BookContract.LocationEntry;
+import com.willmcintosh.bookstore.data.BookContract.MetricsEntry;
+import com.willmcintosh.bookstore.data.BookContract.SlowQueryEntry;
+import com.willmcintosh.bookstore.data.BookContract.StatsEntry;
+import com.willmcintosh.bookstore.data.BookContract.StockEntry;
+import com.willmcintosh.bookstore.data.BookContract.SupplierEntry;
+import com.willmcintosh.bookstore.data.BookContract.SyncEntry;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BookProvider extends ContentProvider {
 
@@ -24,15 +61,582 @@ public class BookProvider extends ContentProvider {
      */
     private BookDbHelper mDbHelper;
 
+    /**
+     * Compiled statements for the fixed-shape writes, created on first use
+     */
+    private StatementCache mStatements;
+
+    /**
+     * Maximum number of single book rows kept in memory
+     */
+    private static final int ROW_CACHE_SIZE = 256;
+
+    /**
+     * Recently read single book rows, so reopening a book in the editor or
+     * refreshing one list row doesn't go back to the database
+     */
+    private final BookRowCache mRowCache = new BookRowCache(ROW_CACHE_SIZE);
+
+    /**
+     * Counts and latencies of every call into the provider
+     */
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
+
+    /**
+     * How long after a ledger entry is logged it gets folded into the
+     * stored quantities, in milliseconds. Sales that arrive meanwhile are
+     * folded in by the same compaction.
+     */
+    private static final long COMPACTION_DELAY_MS = 5000;
+
+    /**
+     * Number of new ledger entries that bring compaction forward, which
+     * keeps the pending entries a read has to add up few under a burst of
+     * sales
+     */
+    private static final int COMPACTION_BATCH = 500;
+
+    /**
+     * Thread compaction runs on, started the first time it is needed
+     */
+    private Handler mCompactionHandler;
+
+    /**
+     * Whether a compaction is waiting to run
+     */
+    private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+
+    /**
+     * Ledger entries logged since the last compaction started
+     */
+    private final AtomicInteger mUncompacted = new AtomicInteger();
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            mCompactionScheduled.set(false);
+            mUncompacted.set(0);
+            try {
+                compactLedger();
+            } catch (RuntimeException e) {
+                // the entries stay pending and the next sale tries again
+                Log.w(LOG_TAG, "Failed to compact the ledger", e);
+            }
+        }
+    };
+
+    /**
+     * Queries slower than this are logged in diagnostic mode, in milliseconds.
+     * One frame is the most the list can afford.
+     */
+    private static final long SLOW_QUERY_THRESHOLD_MS = 16;
+
+    /**
+     * Number of slow queries kept
+     */
+    private static final int SLOW_QUERY_LOG_SIZE = 32;
+
+    /**
+     * Recent slow queries with their plans, or null outside diagnostic mode
+     */
+    private SlowQueryLog mSlowQueryLog;
+
+    /**
+     * SQL and arguments of the last statement the current thread's query ran,
+     * only tracked in diagnostic mode
+     */
+    private final ThreadLocal<String> mQuerySql = new ThreadLocal<>();
+    private final ThreadLocal<String[]> mQueryArgs = new ThreadLocal<>();
+
+    /**
+     * Columns held by each row of the row cache, in the books view's column
+     * order
+     */
+    private static final String[] CACHED_COLUMNS = {BookEntry._ID, BookEntry
+            .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry
+            .COLUMN_QUANTITY, BookEntry.COLUMN_SUPPLIER_NAME, BookEntry
+            .COLUMN_SUPPLIER_PHONE};
+
+    /**
+     * Columns of a change feed row, before the deleted flag. A deleted book
+     * only has its ID, version and UUID.
+     */
+    private static final String[] CHANGE_COLUMNS = {BookEntry._ID, BookEntry
+            .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NAME, BookEntry.COLUMN_SUPPLIER_PHONE,
+            BookEntry.COLUMN_SUPPLIER_ID, BookEntry.COLUMN_ROW_VERSION, BookEntry
+            .COLUMN_UUID, BookEntry.COLUMN_REMOTE_VERSION, BookEntry
+            .COLUMN_SYNCED_VERSION};
+
+    /**
+     * Temporary table on the writer connection holding the IDs of the books
+     * an update's selection matched, emptied before the update commits
+     */
+    private static final String MATCHED_TABLE_NAME = "temp.matched_books";
+
+    /**
+     * Every column a change feed query can ask for. The feed is built as raw
+     * SQL, so a projection is checked against these before it goes in.
+     */
+    private static final HashSet<String> sChangeColumns = new HashSet<>(Arrays
+            .asList(CHANGE_COLUMNS));
+
+    static {
+        sChangeColumns.add(BookEntry.COLUMN_DELETED);
+        sChangeColumns.add(BookEntry.COLUMN_LEDGER_VERSION);
+    }
+
+    /**
+     * Every column of a book as callers write it. The name, price and
+     * quantity are bound to the insert and update statements in this order,
+     * followed by the ID the supplier name and phone resolve to.
+     */
+    private static final String[] BOOK_COLUMNS = {BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY, BookEntry
+            .COLUMN_SUPPLIER_NAME, BookEntry.COLUMN_SUPPLIER_PHONE};
+
+    /**
+     * SQL to insert a book with every column set, followed by its UUID
+     */
+    private static final String SQL_INSERT_BOOK = "INSERT INTO " + BookEntry
+            .TABLE_NAME + " (" + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry
+            .COLUMN_PRICE + ", " + BookEntry.COLUMN_QUANTITY + ", " + BookEntry
+            .COLUMN_SUPPLIER_ID + ", " + BookEntry.COLUMN_UUID + ") VALUES (?, ?, ?, " +
+            "?, ?)";
+
+    /**
+     * SQL for the ID of the last ledger entry logged
+     */
+    private static final String SQL_LEDGER_HEAD = "SELECT IFNULL(MAX(" + LedgerEntry
+            ._ID + "), 0) FROM " + LedgerEntry.TABLE_NAME;
+
+    /**
+     * SQL to update every column of a single book but the quantity, which
+     * goes through {@link #SQL_ADJUST_QUANTITY}. The parameters are numbered
+     * to match {@link #bindBook}, so the quantity it binds to ?3 goes unused.
+     */
+    private static final String SQL_UPDATE_BOOK = "UPDATE " + BookEntry
+            .TABLE_NAME + " SET " + BookEntry.COLUMN_PRODUCT_NAME + " = ?1, " +
+            BookEntry.COLUMN_PRICE + " = ?2, " + BookEntry.COLUMN_SUPPLIER_ID +
+            " = ?4 WHERE " + BookEntry._ID + " = ?5";
+
+    /**
+     * Expression for the quantity of the books row b, with its pending
+     * ledger entries
+     */
+    private static final String BOOK_QUANTITY = "(b." + BookEntry.COLUMN_QUANTITY +
+            " + " + BookDbHelper.pending("b") + ")";
+
+    /**
+     * Expression for the copies of the books row b held at locations, read
+     * through the stock table's book index. Sales and edits from the catalog
+     * never take a book's quantity below this, so taking a location's stock
+     * away can't leave the book with fewer than no copies.
+     */
+    private static final String BOOK_ALLOCATED = "(SELECT IFNULL(SUM(s." +
+            StockEntry.COLUMN_QUANTITY + "), 0) FROM " + StockEntry.TABLE_NAME +
+            " s WHERE s." + StockEntry.COLUMN_BOOK_ID + " = b." + BookEntry._ID + ")";
+
+    /**
+     * SQL that sets a single book's quantity to ?1 by logging the difference
+     * as an adjustment, binding the time to ?2 and the book ID to ?3. Nothing
+     * is logged if the quantity is already right, or if it would be less than
+     * the copies held at locations. A quantity typed into the
+     * editor is a change like any other, so when it is synced it adds up
+     * with the sales other devices made meanwhile instead of overwriting
+     * them.
+     */
+    private static final String SQL_ADJUST_QUANTITY = "INSERT INTO " + LedgerEntry
+            .TABLE_NAME + " (" + LedgerEntry.COLUMN_BOOK_ID + ", " + LedgerEntry
+            .COLUMN_DELTA + ", " + LedgerEntry.COLUMN_TIME + ") SELECT b." +
+            BookEntry._ID + ", ?1 - " + BOOK_QUANTITY + ", ?2 FROM " + BookEntry
+            .TABLE_NAME + " b WHERE b." + BookEntry._ID + " = ?3 AND " +
+            BOOK_QUANTITY + " != ?1 AND ?1 >= " + BOOK_ALLOCATED;
+
+    /**
+     * SQL for a book's quantity and the copies of it held at locations
+     */
+    private static final String SQL_FIND_QUANTITY = "SELECT " + BOOK_QUANTITY + ", " +
+            BOOK_ALLOCATED + " FROM " + BookEntry.TABLE_NAME + " b WHERE b." +
+            BookEntry._ID + " = ?";
+
+    /**
+     * SQL for the copies of a book that can be sold from the catalog: those in
+     * stock, with its pending ledger entries, that aren't held at a location
+     */
+    private static final String SQL_AVAILABLE = "SELECT " + BOOK_QUANTITY + " - " +
+            BOOK_ALLOCATED + " FROM " + BookEntry.TABLE_NAME + " b WHERE b." +
+            BookEntry._ID + " = ?";
+
+    /**
+     * Number of parameters {@link #bindBook} binds
+     */
+    private static final int BOOK_PARAMETERS = 4;
+
+    /**
+     * SQL to look a supplier up by name, through the unique name index
+     */
+    private static final String SQL_FIND_SUPPLIER = "SELECT " + SupplierEntry._ID +
+            ", " + SupplierEntry.COLUMN_PHONE + " FROM " + SupplierEntry.TABLE_NAME +
+            " WHERE " + SupplierEntry.COLUMN_NAME + " = ?";
+
+    /**
+     * SQL to add a supplier
+     */
+    private static final String SQL_INSERT_SUPPLIER = "INSERT INTO " +
+            SupplierEntry.TABLE_NAME + " (" + SupplierEntry.COLUMN_NAME + ", " +
+            SupplierEntry.COLUMN_PHONE + ") VALUES (?, ?)";
+
+    /**
+     * SQL to change a supplier's phone
+     */
+    private static final String SQL_UPDATE_SUPPLIER_PHONE = "UPDATE " +
+            SupplierEntry.TABLE_NAME + " SET " + SupplierEntry.COLUMN_PHONE + " = ? " +
+            "WHERE " + SupplierEntry._ID + " = ?";
+
+    /**
+     * Flags for {@link #mSupplierWrites}: a book write added a supplier, or
+     * changed an existing supplier's phone
+     */
+    private static final int SUPPLIER_ADDED = 1;
+    private static final int SUPPLIER_CHANGED = 2;
+
+    /**
+     * Suppliers written by the book write running on the current thread, as
+     * SUPPLIER_ flags, so they can be notified once the write is done
+     */
+    private final ThreadLocal<Integer> mSupplierWrites = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
+
+    /**
+     * SQL to delete a single book
+     */
+    private static final String SQL_DELETE_BOOK = "DELETE FROM " + BookEntry
+            .TABLE_NAME + " WHERE " + BookEntry._ID + " = ?";
+
+    /**
+     * SQL for the sale and adjustment path, binding the delta, the time and
+     * the book ID. It appends a ledger entry instead of rewriting the book
+     * row. The stock check and the append happen in one statement so
+     * concurrent sales can never read a stale quantity, and nothing is
+     * appended if the book doesn't exist or a negative delta would take it
+     * below the copies held at locations.
+     */
+    private static final String SQL_LOG_ENTRY = "INSERT INTO " + LedgerEntry
+            .TABLE_NAME + " (" + LedgerEntry.COLUMN_BOOK_ID + ", " + LedgerEntry
+            .COLUMN_DELTA + ", " + LedgerEntry.COLUMN_TIME + ") SELECT b." +
+            BookEntry._ID + ", ?1, ?2 FROM " + BookEntry.TABLE_NAME + " b WHERE b." +
+            BookEntry._ID + " = ?3 AND (?1 >= 0 OR " + BOOK_QUANTITY + " + ?1 >= " +
+            BOOK_ALLOCATED + ")";
+
+    /**
+     * SQL for the last ledger entry compaction folded in
+     */
+    private static final String SQL_COMPACTED_THROUGH = "SELECT " + BookDbHelper
+            .COLUMN_COMPACTED_THROUGH + " FROM " + BookDbHelper
+            .LEDGER_STATE_TABLE_NAME;
+
+    /**
+     * SQL that folds the ledger entries up to ?1 into the stored quantities
+     * of the books they are for, found from the entries after ?2, the last
+     * compaction's
+     */
+    private static final String SQL_FOLD_LEDGER = "UPDATE " + BookEntry.TABLE_NAME +
+            " SET " + BookEntry.COLUMN_QUANTITY + " = " + BookEntry.COLUMN_QUANTITY +
+            " + (SELECT IFNULL(SUM(l." + LedgerEntry.COLUMN_DELTA + "), 0) FROM " +
+            LedgerEntry.TABLE_NAME + " l WHERE l." + LedgerEntry.COLUMN_BOOK_ID +
+            " = " + BookEntry.TABLE_NAME + "." + BookEntry._ID + " AND l." +
+            LedgerEntry._ID + " > " + BookEntry.TABLE_NAME + "." + BookEntry
+            .COLUMN_LEDGER_SEQ + " AND l." + LedgerEntry._ID + " <= ?1), " +
+            BookEntry.COLUMN_LEDGER_SEQ + " = ?1 WHERE " + BookEntry._ID + " IN " +
+            "(SELECT " + LedgerEntry.COLUMN_BOOK_ID + " FROM " + LedgerEntry
+            .TABLE_NAME + " WHERE " + LedgerEntry._ID + " > ?2 AND " + LedgerEntry
+            ._ID + " <= ?1) AND " + BookEntry.COLUMN_LEDGER_SEQ + " < ?1";
+
+    /**
+     * SQL that records how far compaction got
+     */
+    private static final String SQL_SET_COMPACTED_THROUGH = "UPDATE " +
+            BookDbHelper.LEDGER_STATE_TABLE_NAME + " SET " + BookDbHelper
+            .COLUMN_COMPACTED_THROUGH + " = ?";
+
+    /**
+     * SQL that moves compaction's mark back to the given entry if it is past
+     * it, for when applying pulled books makes entries up to it pending again
+     */
+    private static final String SQL_REWIND_COMPACTED_THROUGH = "UPDATE " +
+            BookDbHelper.LEDGER_STATE_TABLE_NAME + " SET " + BookDbHelper
+            .COLUMN_COMPACTED_THROUGH + " = MIN(" + BookDbHelper
+            .COLUMN_COMPACTED_THROUGH + ", ?)";
+
+    /**
+     * SQL for the catalog service's version of the book with a UUID
+     */
+    private static final String SQL_FIND_SYNCED_BOOK = "SELECT " + BookEntry
+            .COLUMN_REMOTE_VERSION + " FROM " + BookEntry.TABLE_NAME + " WHERE " +
+            BookEntry.COLUMN_UUID + " = ?";
+
+    /**
+     * SQL that writes a pulled book over the local one, binding the name,
+     * price, quantity and supplier ID like {@link #bindBook}, then the last
+     * ledger entry the service's quantity counts, the service's version and
+     * the UUID. The entries after that one haven't reached the service yet,
+     * so moving ledger_seq back to it keeps them pending on top of the
+     * service's quantity.
+     */
+    private static final String SQL_APPLY_SYNCED_BOOK = "UPDATE " + BookEntry
+            .TABLE_NAME + " SET " + BookEntry.COLUMN_PRODUCT_NAME + " = ?1, " +
+            BookEntry.COLUMN_PRICE + " = ?2, " + BookEntry.COLUMN_QUANTITY + " = ?3, "
+            + BookEntry.COLUMN_SUPPLIER_ID + " = ?4, " + BookEntry.COLUMN_LEDGER_SEQ +
+            " = ?5, " + BookEntry.COLUMN_REMOTE_VERSION + " = ?6 WHERE " + BookEntry
+            .COLUMN_UUID + " = ?7";
+
+    /**
+     * SQL that adds a pulled book, binding the same parameters as
+     * {@link #SQL_APPLY_SYNCED_BOOK}
+     */
+    private static final String SQL_INSERT_SYNCED_BOOK = "INSERT INTO " + BookEntry
+            .TABLE_NAME + " (" + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry
+            .COLUMN_PRICE + ", " + BookEntry.COLUMN_QUANTITY + ", " + BookEntry
+            .COLUMN_SUPPLIER_ID + ", " + BookEntry.COLUMN_LEDGER_SEQ + ", " +
+            BookEntry.COLUMN_REMOTE_VERSION + ", " + BookEntry.COLUMN_UUID + ") " +
+            "VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7)";
+
+    /**
+     * SQL that records the row version a pulled book was just stamped with
+     * as synced, so it doesn't read as a local change
+     */
+    private static final String SQL_MARK_SYNCED = "UPDATE " + BookEntry.TABLE_NAME +
+            " SET " + BookEntry.COLUMN_SYNCED_VERSION + " = " + BookEntry
+            .COLUMN_ROW_VERSION + " WHERE " + BookEntry.COLUMN_UUID + " = ?";
+
+    /**
+     * SQL to delete the book with a UUID
+     */
+    private static final String SQL_DELETE_SYNCED_BOOK = "DELETE FROM " +
+            BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_UUID + " = ?";
+
+    /**
+     * SQL that records a push the service accepted, binding the version the
+     * service gave the book, the UUID and the row version pushed. A book
+     * changed again since it was read for the push still has changes to
+     * push, but against the new version.
+     */
+    private static final String SQL_MARK_PUSHED = "UPDATE " + BookEntry.TABLE_NAME +
+            " SET " + BookEntry.COLUMN_REMOTE_VERSION + " = MAX(" + BookEntry
+            .COLUMN_REMOTE_VERSION + ", ?1), " + BookEntry.COLUMN_SYNCED_VERSION +
+            " = CASE WHEN " + BookEntry.COLUMN_ROW_VERSION + " = ?3 THEN ?3 ELSE " +
+            BookEntry.COLUMN_SYNCED_VERSION + " END WHERE " + BookEntry.COLUMN_UUID +
+            " = ?2";
+
+    /**
+     * Books read when warming up, about a screen and a half of the list
+     */
+    private static final int WARM_UP_ROWS = 50;
+
+    /**
+     * SQL that reads the first page of the list the way the list does
+     */
+    private static final String SQL_WARM_UP_PAGE = "SELECT " + BookEntry._ID + ", "
+            + BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", " +
+            BookEntry.COLUMN_QUANTITY + " FROM " + BookEntry.TABLE_NAME + " ORDER BY "
+            + BookEntry._ID + " LIMIT " + WARM_UP_ROWS;
+
+    /**
+     * SQL that reads the inventory statistics shown above the list
+     */
+    private static final String SQL_WARM_UP_STATS = "SELECT * FROM " + StatsEntry
+            .TABLE_NAME;
+
+    /**
+     * Selection for one stock row
+     */
+    private static final String STOCK_KEY_SELECTION = StockEntry
+            .COLUMN_LOCATION_ID + " = ? AND " + StockEntry.COLUMN_BOOK_ID + " = ?";
+
+    /**
+     * Stock rows joined to the books they are for
+     */
+    private static final String LOCATION_STOCK_TABLES = StockEntry.TABLE_NAME +
+            " JOIN " + BookEntry.TABLE_NAME + " ON " + BookEntry.TABLE_NAME + "." +
+            BookEntry._ID + " = " + StockEntry.TABLE_NAME + "." + StockEntry
+            .COLUMN_BOOK_ID;
+
+    /**
+     * Stock rows joined to the locations they are at
+     */
+    private static final String BOOK_STOCK_TABLES = StockEntry.TABLE_NAME + " " +
+            "JOIN " + LocationEntry.TABLE_NAME + " ON " + LocationEntry.TABLE_NAME +
+            "." + LocationEntry._ID + " = " + StockEntry.TABLE_NAME + "." +
+            StockEntry.COLUMN_LOCATION_ID;
+
+    /**
+     * Columns of a location's stock. Each row is a book, with the book's
+     * details and the location's quantity.
+     */
+    private static final HashMap<String, String> sLocationStockColumns = new
+            HashMap<>();
+
+    /**
+     * Columns of a book's stock. Each row is a location, with its name and
+     * the quantity held there.
+     */
+    private static final HashMap<String, String> sBookStockColumns = new
+            HashMap<>();
+
+    static {
+        putColumn(sLocationStockColumns, BookEntry._ID, StockEntry.TABLE_NAME,
+                StockEntry.COLUMN_BOOK_ID);
+        putColumn(sLocationStockColumns, BookEntry.COLUMN_PRODUCT_NAME, BookEntry
+                .TABLE_NAME, BookEntry.COLUMN_PRODUCT_NAME);
+        putColumn(sLocationStockColumns, BookEntry.COLUMN_PRICE, BookEntry.TABLE_NAME,
+                BookEntry.COLUMN_PRICE);
+        putStockColumns(sLocationStockColumns);
+
+        putColumn(sBookStockColumns, LocationEntry._ID, StockEntry.TABLE_NAME,
+                StockEntry.COLUMN_LOCATION_ID);
+        putColumn(sBookStockColumns, LocationEntry.COLUMN_NAME, LocationEntry
+                .TABLE_NAME, LocationEntry.COLUMN_NAME);
+        putStockColumns(sBookStockColumns);
+    }
+
+    private static void putStockColumns(HashMap<String, String> columns) {
+        putColumn(columns, StockEntry.COLUMN_BOOK_ID, StockEntry.TABLE_NAME,
+                StockEntry.COLUMN_BOOK_ID);
+        putColumn(columns, StockEntry.COLUMN_LOCATION_ID, StockEntry.TABLE_NAME,
+                StockEntry.COLUMN_LOCATION_ID);
+        putColumn(columns, StockEntry.COLUMN_QUANTITY, StockEntry.TABLE_NAME,
+                StockEntry.COLUMN_QUANTITY);
+    }
+
+    private static void putColumn(HashMap<String, String> columns, String name,
+                                  String table, String column) {
+        columns.put(name, table + "." + column + " AS " + name);
+    }
+
+    /**
+     * Set while {@link #applyBatch} is running on the current thread so the
+     * individual operations don't each send a change notification.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
+    /**
+     * Set once {@link #warmUp} has run or is running
+     */
+    private final AtomicBoolean mWarmUpStarted = new AtomicBoolean();
+
     /**
      * Initialize the provider and the database helper object.
      */
     @Override
     public boolean onCreate() {
         mDbHelper = new BookDbHelper(getContext());
+
+        // capturing plans costs an extra statement per slow query, so only do
+        // it in debug builds or when asked to through the log tag
+        if (BuildConfig.DEBUG || Log.isLoggable(SlowQueryLog.LOG_TAG, Log.DEBUG)) {
+            mSlowQueryLog = new SlowQueryLog(SLOW_QUERY_THRESHOLD_MS,
+                    SLOW_QUERY_LOG_SIZE);
+        }
         return true;
     }
 
+    /**
+     * Handles {@link BookContract#METHOD_WARM_UP}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (BookContract.METHOD_WARM_UP.equals(method)) {
+            warmUp();
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Opens the database on a background thread and reads the start of the
+     * list, so the first page the UI asks for doesn't also pay for creating
+     * or upgrading the database and faulting in its pages. A query that
+     * arrives while this is running waits for the open rather than doing it
+     * again.
+     * <p>
+     * Only runs once per process, when the list asks for it. The provider is
+     * also started for sync, imports and exports, which don't need it.
+     */
+    public void warmUp() {
+        if (!mWarmUpStarted.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    SQLiteDatabase database = mDbHelper.getWritableDatabase();
+                    getStatements();
+                    readAll(database.rawQuery(SQL_WARM_UP_PAGE, null));
+                    readAll(database.rawQuery(SQL_WARM_UP_STATS, null));
+                } catch (RuntimeException e) {
+                    // the first real query will run into it again and report it
+                    Log.w(LOG_TAG, "Failed to warm up the database", e);
+                    return;
+                }
+                Log.d(LOG_TAG, "Database warmed up in " + (System.nanoTime() -
+                        start) / 1000000 + " ms");
+
+                // fold in whatever the last process logged but never compacted
+                scheduleCompaction(0);
+            }
+        });
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Release the compiled statements and close the database.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (mCompactionHandler != null) {
+                mCompactionHandler.removeCallbacks(mCompaction);
+                mCompactionScheduled.set(false);
+            }
+            if (mStatements != null) {
+                mStatements.close();
+                mStatements = null;
+            }
+        }
+        mDbHelper.close();
+        // the database has to be opened again, so the next warm-up is worth it
+        mWarmUpStarted.set(false);
+    }
+
+    /**
+     * Returns the compiled statement cache for the writable database.
+     */
+    private synchronized StatementCache getStatements() {
+        if (mStatements == null) {
+            mStatements = new StatementCache(mDbHelper.getWritableDatabase());
+        }
+        return mStatements;
+    }
+
     /**
      * URI matcher code for the content URI for the books table
      */
@@ -44,161 +648,1710 @@ public class BookProvider extends ContentProvider {
     private static final int BOOK_ID = 101;
 
     /**
-     * UriMatcher object to match a content URI to a corresponding code.
+     * URI matcher code for the content URI that sells copies of a single book
      */
-    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher
-            .NO_MATCH);
+    private static final int BOOK_SELL = 102;
 
-    // Static initializer. This is run the first time anything is called from
-    // this class.
-    static {
+    /**
+     * URI matcher code for the content URI that searches the books table
+     */
+    private static final int BOOK_SEARCH = 103;
 
-        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract
-                .PATH_BOOKS, BOOKS);
-        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract
-                .PATH_BOOKS + "/#", BOOK_ID);
-    }
+    /**
+     * URI matcher code for the content URI with the row cache counters
+     */
+    private static final int BOOK_CACHE = 104;
 
     /**
-     * Perform the query for the given URI. Use the given projection,
-     * selection, selection
-     * arguments, and sort order.
+     * URI matcher code for the content URI with the inventory statistics
      */
-    @Override
-    public Cursor query(Uri uri, String[] projection, String selection,
-                        String[] selectionArgs, String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+    private static final int BOOK_STATS = 105;
 
-        // Instantiate cursor object
-        Cursor cursor = null;
+    /**
+     * URI matcher code for the content URI for the books low on stock
+     */
+    private static final int BOOK_LOW_STOCK = 106;
 
-        int match = sUriMatcher.match(uri);
-        switch (match) {
-            case BOOKS:
-                cursor = database.query(BookEntry.TABLE_NAME, projection,
-                        selection, selectionArgs, null, null, sortOrder);
-                break;
-            case BOOK_ID:
-                selection = BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris
-                        .parseId(uri))};
-                cursor = database.query(BookEntry.TABLE_NAME, projection,
-                        selection, selectionArgs, null, null, sortOrder);
-                break;
-            default:
-                throw new IllegalArgumentException("Cannot query unknown URI"
-                        + uri);
+    /**
+     * URI matcher code for the content URI that exports the catalog
+     */
+    private static final int BOOK_EXPORT = 107;
+
+    /**
+     * URI matcher code for the content URI with the provider metrics
+     */
+    private static final int BOOK_METRICS = 108;
+
+    /**
+     * URI matcher code for the content URI with the slow query log
+     */
+    private static final int BOOK_SLOW_QUERIES = 109;
+
+    /**
+     * URI matcher code for the content URI for a book's stock at each location
+     */
+    private static final int BOOK_STOCK = 110;
+
+    /**
+     * URI matcher code for the content URI for a book's ledger entries
+     */
+    private static final int BOOK_LEDGER = 111;
+
+    /**
+     * URI matcher code for the content URI for the change feed
+     */
+    private static final int BOOK_CHANGES = 112;
+
+    /**
+     * URI matcher code for the content URI that records sales
+     */
+    private static final int SALES = 200;
+
+    /**
+     * URI matcher code for the content URI for the ledger
+     */
+    private static final int LEDGER = 500;
+
+    /**
+     * URI matcher code for the content URI for a single ledger entry
+     */
+    private static final int LEDGER_ID = 501;
+
+    /**
+     * URI matcher code for the content URI for the suppliers table
+     */
+    private static final int SUPPLIERS = 400;
+
+    /**
+     * URI matcher code for the content URI for a single supplier
+     */
+    private static final int SUPPLIER_ID = 401;
+
+    /**
+     * URI matcher code for the content URI for the books from a supplier
+     */
+    private static final int SUPPLIER_BOOKS = 402;
+
+    /**
+     * URI matcher code for the content URI for books pulled from the catalog
+     * service
+     */
+    private static final int SYNC_BOOKS = 600;
+
+    /**
+     * URI matcher code for the content URI for a single book by UUID, for
+     * recording pushes
+     */
+    private static final int SYNC_BOOK = 601;
+
+    /**
+     * URI matcher code for the content URI for the locations table
+     */
+    private static final int LOCATIONS = 300;
+
+    /**
+     * URI matcher code for the content URI for a single location
+     */
+    private static final int LOCATION_ID = 301;
+
+    /**
+     * URI matcher code for the content URI for the stock at a location
+     */
+    private static final int LOCATION_STOCK = 302;
+
+    /**
+     * URI matcher code for the content URI for one book's stock at a location
+     */
+    private static final int LOCATION_STOCK_ID = 303;
+
+    /**
+     * UriMatcher object to match a content URI to a corresponding code.
+     */
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher
+            .NO_MATCH);
+
+    /**
+     * Path pattern of each URI matcher code, for the metrics
+     */
+    private static final SparseArray<String> sUriNames = new SparseArray<>();
+
+    // Static initializer. This is run the first time anything is called from
+    // this class.
+    static {
+
+        addUri(BookContract.PATH_BOOKS, BOOKS);
+        addUri(BookContract.PATH_BOOKS + "/#", BOOK_ID);
+        addUri(BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_SELL, BOOK_SELL);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_SEARCH, BOOK_SEARCH);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_CACHE, BOOK_CACHE);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_STATS, BOOK_STATS);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_LOW_STOCK,
+                BOOK_LOW_STOCK);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_EXPORT,
+                BOOK_EXPORT);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_METRICS,
+                BOOK_METRICS);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_SLOW_QUERIES,
+                BOOK_SLOW_QUERIES);
+        addUri(BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_STOCK,
+                BOOK_STOCK);
+        addUri(BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_LEDGER,
+                BOOK_LEDGER);
+        addUri(BookContract.PATH_BOOKS + "/" + BookContract.PATH_CHANGES,
+                BOOK_CHANGES);
+        addUri(BookContract.PATH_SALES, SALES);
+        addUri(BookContract.PATH_LEDGER, LEDGER);
+        addUri(BookContract.PATH_LEDGER + "/#", LEDGER_ID);
+        addUri(BookContract.PATH_SUPPLIERS, SUPPLIERS);
+        addUri(BookContract.PATH_SUPPLIERS + "/#", SUPPLIER_ID);
+        addUri(BookContract.PATH_SUPPLIERS + "/#/" + BookContract.PATH_BOOKS,
+                SUPPLIER_BOOKS);
+        addUri(BookContract.PATH_LOCATIONS, LOCATIONS);
+        addUri(BookContract.PATH_LOCATIONS + "/#", LOCATION_ID);
+        addUri(BookContract.PATH_LOCATIONS + "/#/" + BookContract.PATH_STOCK,
+                LOCATION_STOCK);
+        addUri(BookContract.PATH_LOCATIONS + "/#/" + BookContract.PATH_STOCK + "/#",
+                LOCATION_STOCK_ID);
+        addUri(BookContract.PATH_SYNC + "/" + BookContract.PATH_BOOKS, SYNC_BOOKS);
+        addUri(BookContract.PATH_SYNC + "/" + BookContract.PATH_BOOKS + "/*",
+                SYNC_BOOK);
+
+        // batches, and calls for URIs we don't know
+        sUriNames.put(UriMatcher.NO_MATCH, "*");
+    }
+
+    private static void addUri(String path, int code) {
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, path, code);
+        sUriNames.put(code, path);
+    }
+
+    // Entry points. Each one times the call and records it in mMetrics, then
+    // hands off to the do method that does the work.
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        if (mSlowQueryLog != null) {
+            mQuerySql.remove();
+            mQueryArgs.remove();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        long duration;
+        Cursor cursor;
+        try {
+            cursor = doQuery(uri, projection, selection, selectionArgs, sortOrder);
+            // run the query now instead of on the caller's first read, so the
+            // time it takes is counted here
+            cursor.getCount();
+            failed = false;
+        } finally {
+            duration = System.nanoTime() - start;
+            mMetrics.record(ProviderMetrics.OP_QUERY, sUriMatcher.match(uri),
+                    duration, failed);
+        }
+
+        // queries served from memory have no SQL to explain
+        String sql = mSlowQueryLog == null ? null : mQuerySql.get();
+        if (sql != null && mSlowQueryLog.isSlow(duration)) {
+            try {
+                mSlowQueryLog.add(mDbHelper.getReadableDatabase(), uri.toString(),
+                        duration, sql, mQueryArgs.get());
+            } catch (RuntimeException e) {
+                Log.w(SlowQueryLog.LOG_TAG, "Failed to explain " + sql, e);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Uri result = doInsert(uri, contentValues);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_INSERT, sUriMatcher.match(uri),
+                    System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int result = doBulkInsert(uri, values);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_BULK_INSERT, sUriMatcher.match(uri),
+                    System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation>
+                                                      operations) throws
+            OperationApplicationException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ContentProviderResult[] results = doApplyBatch(operations);
+            failed = false;
+            return results;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_APPLY_BATCH, UriMatcher.NO_MATCH,
+                    System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String selection,
+                      String[] selectionArgs) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int result = doUpdate(uri, contentValues, selection, selectionArgs);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_UPDATE, sUriMatcher.match(uri),
+                    System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int result = doDelete(uri, selection, selectionArgs);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_DELETE, sUriMatcher.match(uri),
+                    System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws
+            FileNotFoundException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ParcelFileDescriptor result = doOpenFile(uri, mode);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_OPEN_FILE, sUriMatcher.match(uri),
+                    System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Perform the query for the given URI. Use the given projection,
+     * selection, selection
+     * arguments, and sort order.
+     */
+    private Cursor doQuery(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        // Get readable database
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        // Instantiate cursor object
+        Cursor cursor = null;
+
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BOOKS:
+                cursor = queryPage(database, BookEntry.VIEW_NAME, uri,
+                        projection, selection, selectionArgs, sortOrder);
+                break;
+            case BOOK_ID:
+                cursor = queryBook(database, ContentUris.parseId(uri),
+                        projection);
+                break;
+            case BOOK_SEARCH:
+                cursor = searchBooks(database, uri, projection, selection,
+                        selectionArgs, sortOrder);
+                break;
+            case BOOK_CACHE:
+                cursor = queryCacheStats();
+                break;
+            case BOOK_LOW_STOCK:
+                cursor = queryLowStock(database, uri, projection, selection,
+                        selectionArgs, sortOrder);
+                break;
+            case BOOK_METRICS:
+                cursor = new MatrixCursor(MetricsEntry.COLUMNS);
+                mMetrics.writeTo((MatrixCursor) cursor, sUriNames);
+                break;
+            case BOOK_SLOW_QUERIES:
+                cursor = new MatrixCursor(SlowQueryEntry.COLUMNS);
+                if (mSlowQueryLog != null) {
+                    mSlowQueryLog.writeTo((MatrixCursor) cursor);
+                }
+                break;
+            case BOOK_STATS:
+                // one row kept current by triggers, so this never scans books
+                cursor = runQuery(database, StatsEntry.TABLE_NAME, projection,
+                        null, null, null, null);
+                break;
+            case SUPPLIERS:
+                cursor = runQuery(database, SupplierEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, null);
+                break;
+            case SUPPLIER_ID:
+                cursor = runQuery(database, SupplierEntry.TABLE_NAME, projection,
+                        SupplierEntry._ID + "=?", new String[]{String.valueOf
+                                (ContentUris.parseId(uri))}, null, null);
+                break;
+            case SUPPLIER_BOOKS:
+                // a range of the supplier index, which is in book ID order
+                // within each supplier, so pages need no sort
+                cursor = queryPage(database, BookEntry.VIEW_NAME, uri, projection,
+                        DatabaseUtils.concatenateWhere(selection, BookEntry
+                                .COLUMN_SUPPLIER_ID + " = ?"), DatabaseUtils
+                                .appendSelectionArgs(selectionArgs, new String[]{uri
+                                        .getPathSegments().get(1)}), sortOrder);
+                break;
+            case LOCATIONS:
+                cursor = runQuery(database, LocationEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, null);
+                break;
+            case LOCATION_ID:
+                cursor = runQuery(database, LocationEntry.TABLE_NAME, projection,
+                        LocationEntry._ID + "=?", new String[]{String.valueOf
+                                (ContentUris.parseId(uri))}, null, null);
+                break;
+            case BOOK_STOCK:
+            case LOCATION_STOCK:
+            case LOCATION_STOCK_ID:
+                cursor = queryStock(database, uri, match, projection, selection,
+                        selectionArgs, sortOrder);
+                break;
+            case BOOK_CHANGES:
+                cursor = queryChanges(database, uri, projection);
+                break;
+            case LEDGER:
+                cursor = queryPage(database, LedgerEntry.TABLE_NAME, uri, projection,
+                        selection, selectionArgs, sortOrder);
+                break;
+            case LEDGER_ID:
+                cursor = runQuery(database, LedgerEntry.TABLE_NAME, projection,
+                        LedgerEntry._ID + "=?", new String[]{String.valueOf
+                                (ContentUris.parseId(uri))}, null, null);
+                break;
+            case BOOK_LEDGER:
+                // a range of the ledger index, in the order entries were logged
+                cursor = queryPage(database, LedgerEntry.TABLE_NAME, uri, projection,
+                        DatabaseUtils.concatenateWhere(selection, LedgerEntry
+                                .COLUMN_BOOK_ID + " = ?"), DatabaseUtils
+                                .appendSelectionArgs(selectionArgs, new String[]{uri
+                                        .getPathSegments().get(1)}), sortOrder);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot query unknown URI"
+                        + uri);
+        }
+
+        // set notification URI on the Cursor. Changes are notified on the
+        // URI of the book that changed, which only reaches observers of that
+        // book and of the books table, so results that aren't under either
+        // watch the whole table.
+        Uri notificationUri = uri;
+        if (match == BOOK_SEARCH || match == BOOK_STATS || match ==
+                BOOK_LOW_STOCK || match == LOCATION_STOCK || match ==
+                LOCATION_STOCK_ID || match == SUPPLIER_BOOKS || match == LEDGER ||
+                match == LEDGER_ID || match == BOOK_CHANGES) {
+            notificationUri = BookEntry.CONTENT_URI;
+        } else if (match == BOOK_STOCK) {
+            notificationUri = LocationEntry.CONTENT_URI;
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                notificationUri);
+
+        return cursor;
+    }
+
+    /**
+     * Query a single book. Rows are served from the row cache when the
+     * projection only asks for book columns, and read into it on a miss.
+     * Anything else goes straight to the database.
+     */
+    private Cursor queryBook(SQLiteDatabase database, long id, String[]
+            projection) {
+        String[] columns = projection == null ? CACHED_COLUMNS : projection;
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = indexOf(CACHED_COLUMNS, columns[i]);
+            if (indices[i] == -1) {
+                return runQuery(database, BookEntry.VIEW_NAME, projection,
+                        BookEntry._ID + "=?", new String[]{String.valueOf(id)}, null,
+                        null);
+            }
+        }
+
+        Object[] row = mRowCache.get(id);
+        if (row == null) {
+            // take the generation first, so a write that lands while we read
+            // stops the row we read from being cached
+            long generation = mRowCache.getGeneration();
+            row = readBookRow(database, id);
+            if (row != null) {
+                mRowCache.put(id, row, generation);
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if (row != null) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = row[indices[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    /**
+     * Reads every cached column of a book from the database.
+     *
+     * @return the row in {@link #CACHED_COLUMNS} order, or null if there is no
+     * such book
+     */
+    private Object[] readBookRow(SQLiteDatabase database, long id) {
+        Cursor cursor = runQuery(database, BookEntry.VIEW_NAME, CACHED_COLUMNS,
+                BookEntry._ID + "=?", new String[]{String.valueOf(id)}, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Object[] row = new Object[CACHED_COLUMNS.length];
+            for (int i = 0; i < CACHED_COLUMNS.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        row[i] = null;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    default:
+                        row[i] = cursor.getString(i);
+                        break;
+                }
+            }
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Run a query on a single table. Equivalent to
+     * {@link SQLiteDatabase#query}, but the SQL is built here so diagnostic
+     * mode can explain it.
+     */
+    private Cursor runQuery(SQLiteDatabase database, String table, String[]
+            projection, String selection, String[] selectionArgs, String
+            sortOrder, String limit) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, table, projection,
+                selection, null, null, sortOrder, limit);
+        return runQuery(database, sql, selectionArgs);
+    }
+
+    /**
+     * Run a query, remembering its SQL for the slow query log in diagnostic
+     * mode.
+     */
+    private Cursor runQuery(SQLiteDatabase database, String sql, String[] args) {
+        if (mSlowQueryLog != null) {
+            mQuerySql.set(sql);
+            mQueryArgs.set(args);
+        }
+        return database.rawQuery(sql, args);
+    }
+
+    /**
+     * Returns a single row with the row cache's counters.
+     */
+    private Cursor queryCacheStats() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{CacheEntry
+                .COLUMN_HITS, CacheEntry.COLUMN_MISSES, CacheEntry
+                .COLUMN_EVICTIONS, CacheEntry.COLUMN_SIZE, CacheEntry
+                .COLUMN_MAX_SIZE}, 1);
+        cursor.addRow(new Object[]{mRowCache.hitCount(), mRowCache.missCount(),
+                mRowCache.evictionCount(), mRowCache.size(), mRowCache.maxSize()});
+        return cursor;
+    }
+
+    /**
+     * Query a table one page at a time. When the after_id or limit query
+     * parameters are present the rows come back in ID order starting after
+     * the given ID, so every page is a seek on the primary key however deep
+     * into the catalog it is. Without them this is a plain query.
+     */
+    private Cursor queryPage(SQLiteDatabase database, String table, Uri uri,
+                             String[] projection, String selection, String[]
+                                     selectionArgs, String sortOrder) {
+        String afterId = getAfterId(uri);
+        String limit = getLimit(uri);
+        if (afterId == null && limit == null) {
+            return runQuery(database, table, projection, selection, selectionArgs,
+                    sortOrder, null);
+        }
+
+        if (afterId != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, BookEntry._ID
+                    + " > ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[]{afterId});
+        }
+
+        // pages are always in ID order, otherwise after_id would not mean
+        // anything
+        return runQuery(database, table, projection, selection, selectionArgs,
+                BookEntry._ID, limit);
+    }
+
+    /**
+     * Returns the after_id paging parameter, or null if the URI has none.
+     */
+    private static String getAfterId(Uri uri) {
+        String afterId = uri.getQueryParameter(BookContract
+                .QUERY_PARAMETER_AFTER_ID);
+        if (afterId != null) {
+            try {
+                Long.parseLong(afterId);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Paging requires a valid " +
+                        "after_id " + uri);
+            }
+        }
+        return afterId;
+    }
+
+    /**
+     * Returns the limit paging parameter, or null if the URI has none.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(BookContract.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                if (Integer.parseInt(limit) <= 0) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Paging requires a valid " +
+                        "limit " + uri);
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Query stock levels: a location's stock by book, one book's stock at a
+     * location, or a book's stock by location. Each is a range of one of the
+     * stock table's indexes, so a location's query never reads another
+     * location's rows. Rows come back in the order of the ID the range is
+     * keyed on, which is also what the paging parameters page by.
+     * <p>
+     * The stock table is joined, so a selection has to qualify any column
+     * name it shares with the books or locations table.
+     */
+    private Cursor queryStock(SQLiteDatabase database, Uri uri, int match,
+                              String[] projection, String selection, String[]
+                                      selectionArgs, String sortOrder) {
+        // the IDs come from the path and are parsed as numbers, so they can go
+        // into the SQL as they are
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        String keyColumn;
+        if (match == BOOK_STOCK) {
+            builder.setTables(BOOK_STOCK_TABLES);
+            builder.setProjectionMap(sBookStockColumns);
+            builder.appendWhere(StockEntry.TABLE_NAME + "." + StockEntry
+                    .COLUMN_BOOK_ID + " = " + id);
+            keyColumn = StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_LOCATION_ID;
+        } else {
+            builder.setTables(LOCATION_STOCK_TABLES);
+            builder.setProjectionMap(sLocationStockColumns);
+            builder.appendWhere(StockEntry.TABLE_NAME + "." + StockEntry
+                    .COLUMN_LOCATION_ID + " = " + id);
+            if (match == LOCATION_STOCK_ID) {
+                builder.appendWhere(" AND " + StockEntry.TABLE_NAME + "." +
+                        StockEntry.COLUMN_BOOK_ID + " = " + ContentUris.parseId(uri));
+            }
+            keyColumn = StockEntry.TABLE_NAME + "." + StockEntry.COLUMN_BOOK_ID;
+        }
+
+        String afterId = getAfterId(uri);
+        String limit = getLimit(uri);
+        if (afterId != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, keyColumn +
+                    " > ?");
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                    new String[]{afterId});
+        }
+        if (sortOrder == null || afterId != null || limit != null) {
+            sortOrder = keyColumn;
+        }
+
+        return runQuery(database, builder.buildQuery(projection, selection, null,
+                null, sortOrder, limit), selectionArgs);
+    }
+
+    /**
+     * Query the books changed since the version in the URI, with a row for
+     * each deleted book, in version order. Both the books and the tombstones
+     * are read through their version indexes, so this costs as much as the
+     * number of changes, not the size of the catalog.
+     * <p>
+     * With ledger_since instead, query the books with ledger entries after
+     * that one, in the order of their last entry. That reads the ledger's
+     * tail by ID, so a sale never has to write a version to its book.
+     */
+    private Cursor queryChanges(SQLiteDatabase database, Uri uri, String[]
+            projection) {
+        String since = uri.getQueryParameter(BookContract.QUERY_PARAMETER_SINCE);
+        String ledgerSince = uri.getQueryParameter(BookContract
+                .QUERY_PARAMETER_LEDGER_SINCE);
+        if (ledgerSince != null) {
+            if (since != null || getAfterId(uri) != null) {
+                throw new IllegalArgumentException("Ledger changes are paged " +
+                        "by ledger_since alone " + uri);
+            }
+            return queryLedgerChanges(database, uri, projection, ledgerSince);
+        }
+        if (since == null) {
+            since = "0";
+        }
+        try {
+            Long.parseLong(since);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Changes require a valid since " +
+                    uri);
+        }
+        String afterId = getAfterId(uri);
+        String limit = getLimit(uri);
+
+        // a page can end part way through the books that share a version, so
+        // the next one starts after the last book read at that version
+        String changed = BookEntry.COLUMN_ROW_VERSION + " > ?1";
+        String[] args = {since};
+        if (afterId != null) {
+            changed = BookEntry.COLUMN_ROW_VERSION + " >= ?1 AND (" + BookEntry
+                    .COLUMN_ROW_VERSION + " > ?1 OR " + BookEntry._ID + " > ?2)";
+            args = new String[]{since, afterId};
+        }
+
+        // the last entry comes off the end of the book's range of the
+        // (book_id, _id) index
+        String ledgerVersion = "IFNULL((SELECT MAX(l." + LedgerEntry._ID + ") FROM "
+                + LedgerEntry.TABLE_NAME + " l WHERE l." + LedgerEntry.COLUMN_BOOK_ID +
+                " = " + BookEntry.VIEW_NAME + "." + BookEntry._ID + "), 0)";
+
+        String sql = "SELECT " + getChangeProjection(projection) + " FROM (SELECT "
+                + TextUtils.join(", ", CHANGE_COLUMNS) + ", 0 AS " + BookEntry
+                .COLUMN_DELETED + ", " + ledgerVersion + " AS " + BookEntry
+                .COLUMN_LEDGER_VERSION + " FROM " + BookEntry.VIEW_NAME + " WHERE " +
+                changed + " UNION ALL SELECT " + BookEntry._ID + ", NULL, NULL, NULL, " +
+                "NULL, NULL, NULL, " + BookEntry.COLUMN_ROW_VERSION + ", " + BookEntry
+                .COLUMN_UUID + ", NULL, NULL, 1, NULL FROM " + BookDbHelper
+                .TOMBSTONE_TABLE_NAME + " WHERE " + changed + ") ORDER BY " +
+                BookEntry.COLUMN_ROW_VERSION + ", " + BookEntry._ID;
+        if (limit != null) {
+            sql += " LIMIT " + limit;
+        }
+        return runQuery(database, sql, args);
+    }
+
+    /**
+     * Returns the columns to select from the change feed, after checking
+     * each one is a column of the feed.
+     */
+    private static String getChangeProjection(String[] projection) {
+        if (projection == null) {
+            return "*";
+        }
+        for (String column : projection) {
+            if (!sChangeColumns.contains(column)) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+        }
+        return TextUtils.join(", ", projection);
+    }
+
+    /**
+     * Query the books with ledger entries after the given one, each with the
+     * ID of its last entry as its ledger version. No two books share a
+     * ledger version, so the last one read is all the next page needs.
+     * Deleted books are left out; their tombstones are on the version feed.
+     */
+    private Cursor queryLedgerChanges(SQLiteDatabase database, Uri uri, String[]
+            projection, String ledgerSince) {
+        try {
+            Long.parseLong(ledgerSince);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Changes require a valid " +
+                    "ledger_since " + uri);
+        }
+        String limit = getLimit(uri);
+
+        String sql = "SELECT " + getChangeProjection(projection) + " FROM (SELECT "
+                + TextUtils.join(", ", CHANGE_COLUMNS) + ", 0 AS " + BookEntry
+                .COLUMN_DELETED + ", " + BookEntry.COLUMN_LEDGER_VERSION + " FROM " +
+                "(SELECT " + LedgerEntry.COLUMN_BOOK_ID + ", MAX(" + LedgerEntry._ID +
+                ") AS " + BookEntry.COLUMN_LEDGER_VERSION + " FROM " + LedgerEntry
+                .TABLE_NAME + " WHERE " + LedgerEntry._ID + " > ?1 GROUP BY " +
+                LedgerEntry.COLUMN_BOOK_ID + ") JOIN " + BookEntry.VIEW_NAME + " ON " +
+                BookEntry._ID + " = " + LedgerEntry.COLUMN_BOOK_ID + ") ORDER BY " +
+                BookEntry.COLUMN_LEDGER_VERSION;
+        if (limit != null) {
+            sql += " LIMIT " + limit;
+        }
+        return runQuery(database, sql, new String[]{ledgerSince});
+    }
+
+    /**
+     * Query the books with fewer copies than the threshold query parameter,
+     * lowest stock first. Takes the same paging parameters as the books
+     * table.
+     */
+    private Cursor queryLowStock(SQLiteDatabase database, Uri uri, String[]
+            projection, String selection, String[] selectionArgs, String
+            sortOrder) {
+        int threshold = StatsEntry.LOW_STOCK_THRESHOLD;
+        String thresholdParameter = uri.getQueryParameter(BookContract
+                .QUERY_PARAMETER_THRESHOLD);
+        if (thresholdParameter != null) {
+            try {
+                threshold = Integer.parseInt(thresholdParameter);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Low stock requires a valid " +
+                        "threshold " + uri);
+            }
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Low stock requires a valid " +
+                    "threshold " + uri);
+        }
+
+        // The quantity a read returns adds in the pending ledger entries, so
+        // no index has it. A book can only be low if its stored quantity is,
+        // or if it has entries compaction hasn't folded in yet, so only those
+        // books are looked at. The stored quantity goes through the indexes.
+        //
+        // Repeat the partial index's own condition so the planner can see the
+        // index covers every row asked for. It only matches literally, so it
+        // can't be a bound argument. Above the ceiling the full quantity index
+        // is used instead.
+        String storedLow = BookEntry.COLUMN_QUANTITY + " < ?";
+        if (threshold <= BookDbHelper.LOW_STOCK_INDEX_CEILING) {
+            storedLow = BookEntry.COLUMN_QUANTITY + " < " + BookDbHelper
+                    .LOW_STOCK_INDEX_CEILING + " AND " + storedLow;
+        }
+        String lowStock = BookEntry.COLUMN_QUANTITY + " < ? AND " + BookEntry._ID +
+                " IN (SELECT " + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME +
+                " WHERE " + storedLow + " UNION SELECT " + LedgerEntry
+                .COLUMN_BOOK_ID + " FROM " + LedgerEntry.TABLE_NAME + " WHERE " +
+                LedgerEntry._ID + " > (" + SQL_COMPACTED_THROUGH + "))";
+        selection = DatabaseUtils.concatenateWhere(selection, lowStock);
+        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, new
+                String[]{String.valueOf(threshold), String.valueOf(threshold)});
+
+        if (sortOrder == null) {
+            sortOrder = BookEntry.COLUMN_QUANTITY + ", " + BookEntry._ID;
+        }
+
+        // a paged request is sorted by ID, which only costs a sort over the
+        // few rows the index range returns
+        return queryPage(database, BookEntry.VIEW_NAME, uri, projection,
+                selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Search the full-text index for the text in the q query parameter. Every
+     * word is matched as a prefix, and all words must match. Books whose
+     * title matches come first, then books that only match on supplier, each
+     * group ordered by title unless a sort order is given.
+     */
+    private Cursor searchBooks(SQLiteDatabase database, Uri uri, String[]
+            projection, String selection, String[] selectionArgs, String
+            sortOrder) {
+        String query = uri.getQueryParameter(BookContract.QUERY_PARAMETER_QUERY);
+
+        // turn the user's text into FTS prefix terms, dropping anything that
+        // would be read as FTS syntax
+        StringBuilder titleMatch = new StringBuilder();
+        StringBuilder anyMatch = new StringBuilder();
+        if (query != null) {
+            for (String term : query.split("[^\\p{L}\\p{N}]+")) {
+                if (term.isEmpty()) {
+                    continue;
+                }
+                if (anyMatch.length() > 0) {
+                    titleMatch.append(' ');
+                    anyMatch.append(' ');
+                }
+                titleMatch.append(BookEntry.COLUMN_PRODUCT_NAME).append(':')
+                        .append(term).append('*');
+                anyMatch.append(term).append('*');
+            }
+        }
+
+        // nothing to search for, so return an empty result with the
+        // requested columns
+        if (anyMatch.length() == 0) {
+            return runQuery(database, BookEntry.VIEW_NAME, projection, "0", null,
+                    null, null);
+        }
+
+        // rank 0 for title matches, rank 1 for supplier-only matches
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(BookEntry.VIEW_NAME + " JOIN (SELECT docid, MIN" +
+                "(rank) AS " + BookEntry.COLUMN_SEARCH_RANK + " FROM (SELECT " +
+                "docid, 0 AS rank FROM " + BookEntry.SEARCH_TABLE_NAME + " WHERE "
+                + BookEntry.SEARCH_TABLE_NAME + " MATCH ? UNION ALL SELECT docid, "
+                + "1 AS rank FROM " + BookEntry.SEARCH_TABLE_NAME + " WHERE " +
+                BookEntry.SEARCH_TABLE_NAME + " MATCH ?) GROUP BY docid) AS hits " +
+                "ON " + BookEntry.VIEW_NAME + "." + BookEntry._ID + " = hits.docid");
+
+        // the match arguments come first because they appear in the FROM
+        // clause, ahead of any caller selection
+        int callerArgs = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[callerArgs + 2];
+        args[0] = titleMatch.toString();
+        args[1] = anyMatch.toString();
+        if (callerArgs > 0) {
+            System.arraycopy(selectionArgs, 0, args, 2, callerArgs);
+        }
+
+        if (sortOrder == null) {
+            sortOrder = BookEntry.COLUMN_SEARCH_RANK + ", " + BookEntry
+                    .COLUMN_PRODUCT_NAME;
+        }
+
+        return runQuery(database, builder.buildQuery(projection, selection, null,
+                null, sortOrder, null), args);
+    }
+
+    /**
+     * Insert new data into the provider with the given ContentValues.
+     */
+    private Uri doInsert(Uri uri, ContentValues contentValues) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BOOKS:
+                return insertBook(uri, contentValues);
+            case SALES:
+                return insertSale(contentValues);
+            case LEDGER:
+                return insertLedgerEntry(contentValues);
+            case SUPPLIERS:
+                return insertSupplier(uri, contentValues);
+            case LOCATIONS:
+                return insertLocation(uri, contentValues);
+            case LOCATION_STOCK:
+                return insertStock(uri, contentValues);
+            default:
+                throw new IllegalArgumentException("Insertion is not " +
+                        "supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert a book into the database with the given content values. Return the
+     * new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertBook(Uri uri, ContentValues values) {
+        // check the values before touching the database
+        validateBook(values);
+
+        // Insert a new book into the database with the given ContentValues
+        long id = insertValidatedBook(values);
+
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // IDs are never reused, so the row cache can't hold anything for the
+        // new book. Notify listeners of the new book's own URI so they can
+        // pick up the one row instead of requerying everything
+        Uri bookUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(bookUri);
+        notifySupplierWrites();
+
+        // return the new URI with the ID appended to the end of it
+        return bookUri;
+    }
+
+    /**
+     * Insert a location. Location names are unique, so adding one that
+     * already exists fails.
+     */
+    private Uri insertLocation(Uri uri, ContentValues values) {
+        validateLocation(values);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insert(LocationEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        Uri locationUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(locationUri);
+        return locationUri;
+    }
+
+    private static void validateLocation(ContentValues values) {
+        String name = values.getAsString(LocationEntry.COLUMN_NAME);
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("Location requires a name.");
+        }
+    }
+
+    /**
+     * Set the stock of the book given in the values at the location in the
+     * URI, whether or not the location held the book before.
+     *
+     * @return the URI of the book's stock at the location
+     */
+    private Uri insertStock(Uri uri, ContentValues values) {
+        long locationId = Long.parseLong(uri.getPathSegments().get(1));
+        Long bookId = values.getAsLong(StockEntry.COLUMN_BOOK_ID);
+        if (bookId == null) {
+            throw new IllegalArgumentException("Stock requires a book ID.");
+        }
+        setStock(locationId, bookId, getStockQuantity(values));
+        return LocationEntry.buildStockUri(locationId, bookId);
+    }
+
+    private static int getStockQuantity(ContentValues values) {
+        Integer quantity = values.getAsInteger(StockEntry.COLUMN_QUANTITY);
+        if (quantity == null || quantity < 0) {
+            throw new IllegalArgumentException("Stock requires a valid quantity.");
+        }
+        return quantity;
+    }
+
+    /**
+     * Set the stock of a book at a location, adding the stock row if there
+     * isn't one. The book's total follows through the stock triggers.
+     */
+    private void setStock(long locationId, long bookId, int quantity) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(StockEntry.COLUMN_QUANTITY, quantity);
+
+        database.beginTransactionNonExclusive();
+        try {
+            int rowsUpdated = database.update(StockEntry.TABLE_NAME, values,
+                    STOCK_KEY_SELECTION, new String[]{String.valueOf(locationId),
+                            String.valueOf(bookId)});
+            if (rowsUpdated == 0) {
+                // nothing enforces the keys, so check them before adding a row
+                if (!exists(database, LocationEntry.TABLE_NAME, locationId)) {
+                    throw new IllegalArgumentException("Unknown location " +
+                            locationId);
+                }
+                if (!exists(database, BookEntry.TABLE_NAME, bookId)) {
+                    throw new IllegalArgumentException("Unknown book " + bookId);
+                }
+                values.put(StockEntry.COLUMN_LOCATION_ID, locationId);
+                values.put(StockEntry.COLUMN_BOOK_ID, bookId);
+                database.insertOrThrow(StockEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // the trigger changed the book's total
+        mRowCache.invalidate(bookId);
+        notifyChange(ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId));
+        notifyChange(LocationEntry.buildStockUri(locationId, bookId));
+    }
+
+    private static boolean exists(SQLiteDatabase database, String table, long id) {
+        return DatabaseUtils.queryNumEntries(database, table, BaseColumns._ID +
+                "=?", new String[]{String.valueOf(id)}) != 0;
+    }
+
+    /**
+     * Insert a book that has already been validated. A book with just the
+     * usual columns goes through the compiled insert statement, anything
+     * else falls back to a regular insert.
+     *
+     * @return the new row ID, or -1 if the insert failed
+     */
+    private long insertValidatedBook(ContentValues values) {
+        if (!hasOnlyBookColumns(values)) {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            return database.insert(BookEntry.TABLE_NAME, null, toBookRow(values,
+                    true));
+        }
+
+        long supplierId = internSupplier(values);
+        SQLiteStatement statement = getStatements().get(SQL_INSERT_BOOK);
+        bindBook(statement, values, supplierId);
+        statement.bindString(BOOK_PARAMETERS + 1, newUuid());
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Failed to insert book", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns whether the values only set columns from {@link #BOOK_COLUMNS}.
+     */
+    private static boolean hasOnlyBookColumns(ContentValues values) {
+        int matched = 0;
+        for (String column : BOOK_COLUMNS) {
+            if (values.containsKey(column)) {
+                matched++;
+            }
+        }
+        return matched == values.size();
+    }
+
+    /**
+     * Binds the name, price and quantity to the first parameters of the given
+     * statement, followed by the supplier ID. A missing name is bound as null,
+     * and a missing price or quantity as 0 like the columns default to.
+     */
+    private static void bindBook(SQLiteStatement statement, ContentValues values,
+                                 long supplierId) {
+        String name = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
+        if (name == null) {
+            statement.bindNull(1);
+        } else {
+            statement.bindString(1, name);
+        }
+        Integer price = values.getAsInteger(BookEntry.COLUMN_PRICE);
+        statement.bindLong(2, price == null ? 0 : price);
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_QUANTITY);
+        statement.bindLong(3, quantity == null ? 0 : quantity);
+        statement.bindLong(4, supplierId);
+    }
+
+    /**
+     * Turns the values a caller wrote into values for the books table, with
+     * the supplier name and phone replaced by the supplier's ID. A new book
+     * gets a UUID unless it has one. An update leaves the quantity out, as
+     * that is changed through the ledger.
+     */
+    private ContentValues toBookRow(ContentValues values, boolean insert) {
+        ContentValues row = new ContentValues(values);
+        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_NAME)) {
+            row.remove(BookEntry.COLUMN_SUPPLIER_NAME);
+            row.remove(BookEntry.COLUMN_SUPPLIER_PHONE);
+            row.put(BookEntry.COLUMN_SUPPLIER_ID, internSupplier(values));
+        }
+        if (!insert) {
+            row.remove(BookEntry.COLUMN_QUANTITY);
+        } else if (!row.containsKey(BookEntry.COLUMN_UUID)) {
+            row.put(BookEntry.COLUMN_UUID, newUuid());
+        }
+        return row;
+    }
+
+    /**
+     * Returns a new random UUID for a book, in the same form the database
+     * upgrade gave the books that were already there.
+     */
+    private static String newUuid() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Returns the ID of the supplier named in a book's values, adding the
+     * supplier if there isn't one. A phone is only checked when it is new to
+     * its supplier, so it is validated once per supplier instead of on every
+     * write of one of its books. An empty phone never replaces the phone a
+     * supplier already has.
+     */
+    private long internSupplier(ContentValues values) {
+        String name = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
+        String phone = values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
+        if (phone == null) {
+            phone = "";
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Cursor cursor = database.rawQuery(SQL_FIND_SUPPLIER, new String[]{name});
+        try {
+            if (cursor.moveToFirst()) {
+                long id = cursor.getLong(0);
+                if (!phone.isEmpty() && !phone.equals(cursor.getString(1))) {
+                    validateSupplierPhone(phone);
+                    SQLiteStatement statement = getStatements().get
+                            (SQL_UPDATE_SUPPLIER_PHONE);
+                    statement.bindString(1, phone);
+                    statement.bindLong(2, id);
+                    statement.executeUpdateDelete();
+                    mSupplierWrites.set(mSupplierWrites.get() | SUPPLIER_CHANGED);
+                }
+                return id;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        validateSupplierPhone(phone);
+        SQLiteStatement statement = getStatements().get(SQL_INSERT_SUPPLIER);
+        statement.bindString(1, name);
+        statement.bindString(2, phone);
+        try {
+            long id = statement.executeInsert();
+            mSupplierWrites.set(mSupplierWrites.get() | SUPPLIER_ADDED);
+            return id;
+        } catch (SQLiteConstraintException e) {
+            // another thread added the supplier since we looked
+        }
+        return DatabaseUtils.longForQuery(database, SQL_FIND_SUPPLIER, new
+                String[]{name});
+    }
+
+    /**
+     * Notify listeners of the suppliers the current thread's book write added
+     * or changed. A changed phone shows on every book from the supplier, so
+     * all cached rows go.
+     */
+    private void notifySupplierWrites() {
+        int writes = mSupplierWrites.get();
+        if (writes == 0) {
+            return;
+        }
+        mSupplierWrites.set(0);
+        if ((writes & SUPPLIER_CHANGED) != 0) {
+            mRowCache.invalidateAll();
+            notifyChange(BookEntry.CONTENT_URI);
+        }
+        notifyChange(SupplierEntry.CONTENT_URI);
+    }
+
+    /**
+     * Insert a supplier. Supplier names are unique, so adding one that
+     * already exists fails.
+     */
+    private Uri insertSupplier(Uri uri, ContentValues values) {
+        validateSupplier(values);
+        if (values.getAsString(SupplierEntry.COLUMN_NAME) == null) {
+            throw new IllegalArgumentException("Supplier requires a name.");
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insert(SupplierEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        Uri supplierUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(supplierUri);
+        return supplierUri;
+    }
+
+    /**
+     * Checks the supplier columns present in the values.
+     */
+    private static void validateSupplier(ContentValues values) {
+        if (values.containsKey(SupplierEntry.COLUMN_NAME)) {
+            String name = values.getAsString(SupplierEntry.COLUMN_NAME);
+            if (name == null || name.trim().isEmpty()) {
+                throw new IllegalArgumentException("Supplier requires a name.");
+            }
+        }
+        if (values.containsKey(SupplierEntry.COLUMN_PHONE)) {
+            validateSupplierPhone(values.getAsString(SupplierEntry.COLUMN_PHONE));
+        }
+    }
+
+    /**
+     * Checks that a supplier phone is either empty or a valid number. Used
+     * by {@link CatalogImporter} once for each supplier in a catalog.
+     */
+    static void validateSupplierPhone(String phone) {
+        if (phone != null && !phone.equals("") && !BookEntry.validPhone(phone)) {
+            throw new IllegalArgumentException("Book requires a valid " +
+                    "supplier phone");
+        }
+    }
+
+    /**
+     * Checks that the given content values describe a complete, valid book,
+     * apart from the supplier phone. Used for every row that goes through
+     * insert or bulkInsert, and by {@link CatalogImporter} to sort out bad
+     * rows before they are sent.
+     */
+    static void validateBook(ContentValues values) {
+        // check that name is not null
+        String name = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Book requires a name.");
+        }
+
+        // check price
+        Integer price = values.getAsInteger(BookEntry.COLUMN_PRICE);
+        if (price == null || price < 0) {
+            throw new IllegalArgumentException("Book requires a valid price.");
+        }
+
+        // check quantity
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_QUANTITY);
+        if (quantity == null || quantity < 0) {
+            throw new IllegalArgumentException("Book requires a valid " +
+                    "quantity.");
+        }
+
+        // check that supplier name is not null
+        String supplierName = values.getAsString(BookEntry
+                .COLUMN_SUPPLIER_NAME);
+        if (supplierName == null) {
+            throw new IllegalArgumentException("Book requires a supplier " +
+                    "name" + ".");
+        }
+
+        // the phone belongs to the supplier, and is checked when it is new
+        // to the supplier
+    }
+
+    /**
+     * Insert a batch of books, or record a batch of sales, in a single
+     * transaction. Every book is checked
+     * with the same rules as {@link #insertBook} before anything is written,
+     * and listeners are notified once at the end instead of once per row.
+     *
+     * @return number of rows inserted
+     */
+    private int doBulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BOOKS:
+                return bulkInsertBooks(uri, values);
+            case SALES:
+                return applySales(values, new int[values.length]);
+            case SYNC_BOOKS:
+                return applySyncedBooks(uri, values);
+            default:
+                throw new IllegalArgumentException("Bulk insertion is not " +
+                        "supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert a batch of books in a single transaction.
+     *
+     * @return number of rows inserted
+     */
+    private int bulkInsertBooks(Uri uri, ContentValues[] values) {
+        // validate the whole batch up front so a bad row can't leave half
+        // a catalog behind
+        for (ContentValues value : values) {
+            validateBook(value);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int rowsInserted = 0;
+        database.beginTransactionNonExclusive();
+        try {
+            for (ContentValues value : values) {
+                if (insertValidatedBook(value) != -1) {
+                    rowsInserted++;
+                } else {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsInserted != 0) {
+            notifyChange(uri);
+        }
+        notifySupplierWrites();
+
+        return rowsInserted;
+    }
+
+    /**
+     * Apply a batch of operations in a single transaction. Change
+     * notifications from the individual operations are held back and a
+     * single notification for the books table is sent once the batch has
+     * been committed.
+     */
+    private ContentProviderResult[] doApplyBatch(ArrayList<ContentProviderOperation>
+                                                         operations) throws
+            OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        ContentProviderResult[] results;
+        mApplyingBatch.set(Boolean.TRUE);
+        database.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mApplyingBatch.set(Boolean.FALSE);
+
+            // the operations invalidated their rows as they ran, but other
+            // threads could still read the old rows until the commit, and a
+            // rollback leaves rows read inside the batch behind
+            mRowCache.invalidateAll();
+        }
+
+        notifyChange(BookEntry.CONTENT_URI);
+
+        return results;
+    }
+
+    /**
+     * Notify listeners that the data at the given URI has changed, unless we
+     * are in the middle of a batch which will notify once it is done. Changes
+     * to a single book are notified on that book's URI, and changes to many
+     * books on {@link BookEntry#CONTENT_URI}.
+     */
+    private void notifyChange(Uri uri) {
+        if (mApplyingBatch.get()) {
+            return;
+        }
+        long start = System.nanoTime();
+        getContext().getContentResolver().notifyChange(uri, null);
+        mMetrics.record(ProviderMetrics.OP_NOTIFY, sUriMatcher.match(uri), System
+                .nanoTime() - start, false);
+    }
+
+    /**
+     * Updates the data at the given selection and selection arguments, with
+     * the new ContentValues.
+     */
+    private int doUpdate(Uri uri, ContentValues contentValues, String selection,
+                         String[] selectionArgs) {
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case BOOKS:
+                return updateBook(uri, contentValues, selection, selectionArgs);
+            case BOOK_ID:
+                return updateBookById(uri, contentValues, ContentUris.parseId
+                        (uri));
+            case BOOK_SELL:
+                return sellBook(uri);
+            case SYNC_BOOK:
+                return markPushed(uri, contentValues);
+            case SUPPLIER_ID:
+                return updateSupplier(uri, contentValues, ContentUris.parseId(uri));
+            case LOCATION_ID:
+                return updateLocation(uri, contentValues, ContentUris.parseId(uri));
+            case LOCATION_STOCK_ID:
+                if (contentValues.size() != 1) {
+                    throw new IllegalArgumentException("Only the quantity of " +
+                            "stock can be updated " + uri);
+                }
+                setStock(Long.parseLong(uri.getPathSegments().get(1)), ContentUris
+                        .parseId(uri), getStockQuantity(contentValues));
+                return 1;
+            default:
+                throw new IllegalArgumentException("Cannot update unknown " +
+                        "URI" + " " + uri);
+        }
+    }
+
+    /**
+     * Update a supplier's name or phone, which changes them on every book
+     * from the supplier.
+     *
+     * @return number of rows successfully updated
+     */
+    private int updateSupplier(Uri uri, ContentValues values, long id) {
+        if (values.size() == 0) {
+            return 0;
+        }
+        validateSupplier(values);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = database.update(SupplierEntry.TABLE_NAME, values,
+                SupplierEntry._ID + "=?", new String[]{String.valueOf(id)});
+        if (rowsUpdated != 0) {
+            mRowCache.invalidateAll();
+            notifyChange(uri);
+            notifyChange(BookEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Rename a location.
+     *
+     * @return number of rows successfully updated
+     */
+    private int updateLocation(Uri uri, ContentValues values, long id) {
+        if (values.size() == 0) {
+            return 0;
+        }
+        validateLocation(values);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = database.update(LocationEntry.TABLE_NAME, values,
+                LocationEntry._ID + "=?", new String[]{String.valueOf(id)});
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Update books in the database with the given content values
+     *
+     * @return number of rows successfully updated
+     */
+    private int updateBook(Uri uri, ContentValues values, String selection,
+                           String[] selectionArgs) {
+        validateBookUpdate(values);
+
+        // If there are no values to update, then don't try to update the
+        // database
+        if (values.size() == 0) {
+            return 0;
         }
 
-        // set notification URI on the Cursor
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // Otherwise, get writeable database to update the data
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_QUANTITY);
+        ContentValues row = toBookRow(values, false);
 
-        return cursor;
+        int rowsUpdated;
+        database.beginTransactionNonExclusive();
+        try {
+            if (quantity == null) {
+                rowsUpdated = database.update(BookEntry.TABLE_NAME, row,
+                        selectBooks(selection), selectionArgs);
+            } else {
+                // the row update and the adjustments are two statements, and
+                // the first could change which books the selection matches,
+                // so both go by the IDs it matched to begin with
+                String matched = matchBooks(database, selection, selectionArgs);
+                rowsUpdated = matched == null ? 0 : adjustQuantities(database,
+                        matched, quantity);
+                if (matched != null && row.size() != 0) {
+                    database.update(BookEntry.TABLE_NAME, row, matched, null);
+                }
+                database.delete(MATCHED_TABLE_NAME, null, null);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // the selection could have matched any book
+        if (rowsUpdated != 0) {
+            mRowCache.invalidateAll();
+        }
+        // If 1 or more rows were updated, then notify all listeners that the
+        // data at the
+        // given URI has changed
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+        notifySupplierWrites();
+
+        // Returns the number of database rows affected by the update statement
+        return rowsUpdated;
     }
 
     /**
-     * Insert new data into the provider with the given ContentValues.
+     * Turns a selection over the books view, which callers write against,
+     * into one over the books table.
      */
-    @Override
-    public Uri insert(Uri uri, ContentValues contentValues) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case BOOKS:
-                return insertBook(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not " +
-                        "supported for " + uri);
+    private static String selectBooks(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return selection;
         }
+        return BookEntry._ID + " IN (SELECT " + BookEntry._ID + " FROM " +
+                BookEntry.VIEW_NAME + " WHERE " + selection + ")";
     }
 
     /**
-     * Insert a book into the database with the given content values. Return the
-     * new content URI
-     * for that specific row in the database.
+     * Stages the IDs of the books a caller's selection matches in
+     * {@link #MATCHED_TABLE_NAME} and returns a selection for them, or null
+     * if it matches none. The IDs stay in SQLite, so a selection matching
+     * the whole catalog costs no more than one matching a single book. Must
+     * be called inside the write transaction, which the table belongs to.
      */
-    private Uri insertBook(Uri uri, ContentValues values) {
-        // check that name is not null
-        String name = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Book requires a name.");
-        }
-
-        // check price
-        Integer price = values.getAsInteger(BookEntry.COLUMN_PRICE);
-        if (price == null || price < 0) {
-            throw new IllegalArgumentException("Book requires a valid price.");
+    private static String matchBooks(SQLiteDatabase database, String selection,
+                                     String[] selectionArgs) {
+        database.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + MATCHED_TABLE_NAME +
+                " (" + BookEntry._ID + " INTEGER PRIMARY KEY)");
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " +
+                MATCHED_TABLE_NAME + " SELECT " + BookEntry._ID + " FROM " +
+                BookEntry.VIEW_NAME + (TextUtils.isEmpty(selection) ? "" : " WHERE " +
+                selection));
+        try {
+            if (selectionArgs != null) {
+                statement.bindAllArgsAsStrings(selectionArgs);
+            }
+            if (statement.executeUpdateDelete() == 0) {
+                return null;
+            }
+        } finally {
+            statement.close();
         }
+        return BookEntry._ID + " IN (SELECT " + BookEntry._ID + " FROM " +
+                MATCHED_TABLE_NAME + ")";
+    }
 
-        // check quantity
-        Integer quantity = values.getAsInteger(BookEntry.COLUMN_PRICE);
-        if (quantity == null || quantity < 0) {
-            throw new IllegalArgumentException("Book requires a valid " +
-                    "quantity.");
+    /**
+     * Set the quantity of every book the selection matches, which must be on
+     * the books table, by logging the differences as adjustments.
+     *
+     * @return number of books matched
+     */
+    private int adjustQuantities(SQLiteDatabase database, String selection, int
+            quantity) {
+        if (DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM " + BookEntry
+                .TABLE_NAME + " b WHERE " + BOOK_QUANTITY + " != ?1 AND ?1 < " +
+                BOOK_ALLOCATED + " AND b." + selection, new String[]{String.valueOf
+                (quantity)}) != 0) {
+            throw new IllegalArgumentException("Quantity can't be less than the " +
+                    "copies held at locations.");
         }
-
-        // check that supplier name is not null
-        String supplierName = values.getAsString(BookEntry
-                .COLUMN_SUPPLIER_NAME);
-        if (supplierName == null) {
-            throw new IllegalArgumentException("Book requires a supplier " +
-                    "name" + ".");
+        SQLiteStatement statement = database.compileStatement("INSERT INTO " +
+                LedgerEntry.TABLE_NAME + " (" + LedgerEntry.COLUMN_BOOK_ID + ", " +
+                LedgerEntry.COLUMN_DELTA + ", " + LedgerEntry.COLUMN_TIME + ") " +
+                "SELECT b." + BookEntry._ID + ", ?1 - " + BOOK_QUANTITY + ", ?2 FROM " +
+                BookEntry.TABLE_NAME + " b WHERE " + BOOK_QUANTITY + " != ?1 AND b." +
+                selection);
+        try {
+            statement.bindLong(1, quantity);
+            statement.bindLong(2, System.currentTimeMillis());
+            int entries = statement.executeUpdateDelete();
+            if (entries != 0) {
+                scheduleCompaction(entries);
+            }
+        } finally {
+            statement.close();
         }
+        return (int) DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME,
+                selection);
+    }
 
-        // check that phone number is valid if not null
-        String phone = values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
-        if (!phone.equals("")  && !BookEntry.validPhone(phone)) {
-            throw new IllegalArgumentException("Book requires a valid " +
-                    "supplier phone");
+    /**
+     * Set the quantity of a single book by logging the difference as an
+     * adjustment.
+     *
+     * @return 1 if the book exists, 0 otherwise
+     * @throws IllegalArgumentException if the quantity is less than the copies
+     *                                  of the book held at locations
+     */
+    private int adjustQuantity(long id, int quantity) {
+        long entryId;
+        SQLiteStatement statement = getStatements().get(SQL_ADJUST_QUANTITY);
+        statement.bindLong(1, quantity);
+        statement.bindLong(2, System.currentTimeMillis());
+        statement.bindLong(3, id);
+        entryId = statement.executeInsert();
+        if (entryId != -1) {
+            scheduleCompaction(1);
+            return 1;
         }
 
-        // get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-
-        // Insert a new book into the database with the given ContentValues
-        long id = database.insert(BookEntry.TABLE_NAME, null, values);
-
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        // nothing to log if the quantity was already right
+        Cursor cursor = mDbHelper.getWritableDatabase().rawQuery(SQL_FIND_QUANTITY,
+                new String[]{String.valueOf(id)});
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            if (cursor.getLong(0) != quantity) {
+                throw new IllegalArgumentException("Quantity can't be less than " +
+                        "the " + cursor.getLong(1) + " copies held at locations.");
+            }
+            return 1;
+        } finally {
+            cursor.close();
         }
-
-        getContext().getContentResolver().notifyChange(uri, null);
-
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
     }
 
     /**
-     * Updates the data at the given selection and selection arguments, with
-     * the new ContentValues.
+     * Update a single book with the given content values. A full edit and a
+     * quantity change go through compiled statements, any other set of
+     * columns falls back to a regular update. The quantity is set by logging
+     * an adjustment, in the same transaction as the other columns.
+     *
+     * @return number of rows successfully updated
      */
-    @Override
-    public int update(Uri uri, ContentValues contentValues, String selection,
-                      String[] selectionArgs) {
+    private int updateBookById(Uri uri, ContentValues values, long id) {
+        validateBookUpdate(values);
 
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case BOOKS:
-                return updateBook(uri, contentValues, selection, selectionArgs);
-            case BOOK_ID:
-                selection = BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris
-                        .parseId(uri))};
-                return updateBook(uri, contentValues, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Cannot update unknown " +
-                        "URI" + " " + uri);
+        if (values.size() == 0) {
+            return 0;
         }
+
+        Integer quantity = values.getAsInteger(BookEntry.COLUMN_QUANTITY);
+        int rowsUpdated;
+        if (values.size() == 1 && quantity != null) {
+            rowsUpdated = adjustQuantity(id, quantity);
+        } else {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            database.beginTransactionNonExclusive();
+            try {
+                if (values.size() == BOOK_COLUMNS.length && hasOnlyBookColumns
+                        (values)) {
+                    long supplierId = internSupplier(values);
+                    SQLiteStatement statement = getStatements().get(SQL_UPDATE_BOOK);
+                    bindBook(statement, values, supplierId);
+                    statement.bindLong(BOOK_PARAMETERS + 1, id);
+                    rowsUpdated = statement.executeUpdateDelete();
+                } else {
+                    rowsUpdated = database.update(BookEntry.TABLE_NAME, toBookRow
+                            (values, false), BookEntry._ID + "=?", new String[]{String
+                            .valueOf(id)});
+                }
+                if (rowsUpdated != 0 && quantity != null) {
+                    adjustQuantity(id, quantity);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        if (rowsUpdated != 0) {
+            mRowCache.invalidate(id);
+            notifyChange(uri);
+        }
+        notifySupplierWrites();
+
+        return rowsUpdated;
     }
 
     /**
-     * Update books in the database with the given content values
-     *
-     * @return number of rows successfully updated
+     * Checks the columns present in an update. Only the columns being
+     * changed need to be valid.
      */
-    private int updateBook(Uri uri, ContentValues values, String selection,
-                           String[] selectionArgs) {
+    private void validateBookUpdate(ContentValues values) {
         // validate data if present
         if (values.containsKey(BookEntry.COLUMN_PRODUCT_NAME)) {
             String name = values.getAsString(BookEntry.COLUMN_PRODUCT_NAME);
@@ -235,42 +2388,410 @@ public class BookProvider extends ContentProvider {
             }
         }
 
-        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_PHONE)) {
-            // check that phone number is valid
-            String phone = values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE);
-            if (!phone.equals("") && !BookEntry.validPhone(phone)) {
-                throw new IllegalArgumentException("Book requires a valid " +
-                        "supplier phone");
+        // the phone is stored with the supplier, so there has to be one to
+        // store it with. It is checked when it is new to the supplier.
+        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_PHONE) && !values
+                .containsKey(BookEntry.COLUMN_SUPPLIER_NAME)) {
+            throw new IllegalArgumentException("Supplier phone can only be " +
+                    "changed with the supplier name");
+        }
+    }
+
+    /**
+     * Sell copies of the book given by the ID in the URI. The number of copies
+     * comes from the count query parameter and defaults to one.
+     *
+     * @return 1 if the sale was applied, 0 if there was not enough stock
+     */
+    private int sellBook(Uri uri) {
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+
+        int count = 1;
+        String countParameter = uri.getQueryParameter(BookContract
+                .QUERY_PARAMETER_COUNT);
+        if (countParameter != null) {
+            try {
+                count = Integer.parseInt(countParameter);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Sale requires a valid " +
+                        "count " + uri);
             }
         }
+        if (count <= 0) {
+            throw new IllegalArgumentException("Sale requires a valid count " +
+                    uri);
+        }
 
-        // If there are no values to update, then don't try to update the
-        // database
-        if (values.size() == 0) {
+        int rowsUpdated = sell(id, count);
+
+        if (rowsUpdated != 0) {
+            notifyChange(ContentUris.withAppendedId(BookEntry.CONTENT_URI, id));
+        }
+
+        return rowsUpdated;
+    }
+
+    /**
+     * Log the sale of copies of a book if there are enough copies.
+     *
+     * @return 1 if the sale was applied, 0 if there was not enough stock
+     */
+    private int sell(long id, int count) {
+        return logEntry(id, -count) == -1 ? 0 : 1;
+    }
+
+    /**
+     * Log the sale of up to the given number of copies of a book, as many as
+     * are in stock. Must be called inside a transaction, so the stock can't
+     * change between reading it and selling it.
+     *
+     * @return the number of copies sold
+     */
+    private int sellAvailable(SQLiteDatabase database, long id, int count) {
+        if (sell(id, count) != 0) {
+            return count;
+        }
+        long available;
+        try {
+            available = DatabaseUtils.longForQuery(database, SQL_AVAILABLE, new
+                    String[]{String.valueOf(id)});
+        } catch (SQLiteDoneException e) {
+            // no such book
+            return 0;
+        }
+        if (available <= 0 || sell(id, (int) available) == 0) {
             return 0;
         }
+        return (int) available;
+    }
 
-        // Otherwise, get writeable database to update the data
+    /**
+     * Append a ledger entry changing a book's quantity by the delta, unless
+     * there is no such book or it would take the quantity below zero.
+     *
+     * @return the ID of the new entry, or -1 if none was logged
+     */
+    private long logEntry(long bookId, int delta) {
+        long entryId;
+        SQLiteStatement statement = getStatements().get(SQL_LOG_ENTRY);
+        statement.bindLong(1, delta);
+        statement.bindLong(2, System.currentTimeMillis());
+        statement.bindLong(3, bookId);
+        entryId = statement.executeInsert();
+        if (entryId != -1) {
+            mRowCache.invalidate(bookId);
+            scheduleCompaction(1);
+        }
+        return entryId;
+    }
+
+    /**
+     * Log an adjustment to a book's quantity, such as a delivery or a
+     * write-off.
+     */
+    private Uri insertLedgerEntry(ContentValues values) {
+        Long bookId = values.getAsLong(LedgerEntry.COLUMN_BOOK_ID);
+        Integer delta = values.getAsInteger(LedgerEntry.COLUMN_DELTA);
+        if (bookId == null) {
+            throw new IllegalArgumentException("Ledger entry requires a book ID.");
+        }
+        if (delta == null || delta == 0) {
+            throw new IllegalArgumentException("Ledger entry requires a valid " +
+                    "delta.");
+        }
+
+        long entryId = logEntry(bookId, delta);
+        if (entryId == -1) {
+            if (!exists(mDbHelper.getReadableDatabase(), BookEntry.TABLE_NAME,
+                    bookId)) {
+                throw new IllegalArgumentException("Unknown book " + bookId);
+            }
+            Log.w(LOG_TAG, "Not enough stock to adjust book " + bookId + " by " +
+                    delta);
+            return null;
+        }
+
+        notifyChange(ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId));
+        return ContentUris.withAppendedId(LedgerEntry.CONTENT_URI, entryId);
+    }
+
+    /**
+     * Make sure a compaction runs soon, counting the ledger entries just
+     * logged towards running it straight away.
+     */
+    private void scheduleCompaction(int entries) {
+        Handler handler;
+        synchronized (this) {
+            if (mCompactionHandler == null) {
+                HandlerThread thread = new HandlerThread("BookLedgerCompaction");
+                thread.start();
+                mCompactionHandler = new Handler(thread.getLooper());
+            }
+            handler = mCompactionHandler;
+        }
+
+        if (mUncompacted.addAndGet(entries) >= COMPACTION_BATCH) {
+            handler.removeCallbacks(mCompaction);
+            mCompactionScheduled.set(true);
+            handler.post(mCompaction);
+        } else if (mCompactionScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(mCompaction, COMPACTION_DELAY_MS);
+        }
+    }
+
+    /**
+     * Fold every ledger entry logged so far into the stored quantities of
+     * the books they are for. Reads already add the pending entries in, so
+     * this changes no book's quantity, and the statistics stay the same. It
+     * only keeps the entries a read has to add up few. Runs on the
+     * compaction thread, or can be called directly to compact now.
+     *
+     * @return number of books whose stored quantity was updated
+     */
+    public int compactLedger() {
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long start = System.nanoTime();
+        long to;
+        int books = 0;
+        database.beginTransactionNonExclusive();
+        try {
+            long from = DatabaseUtils.longForQuery(database, SQL_COMPACTED_THROUGH,
+                    null);
+            to = DatabaseUtils.longForQuery(database, SQL_LEDGER_HEAD, null);
+            if (to > from) {
+                SQLiteStatement statement = getStatements().get(SQL_FOLD_LEDGER);
+                statement.bindLong(1, to);
+                statement.bindLong(2, from);
+                books = statement.executeUpdateDelete();
+                database.execSQL(SQL_SET_COMPACTED_THROUGH, new Object[]{to});
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
 
-        int rowsUpdated = database.update(BookEntry.TABLE_NAME, values,
-                selection, selectionArgs);
-        // If 1 or more rows were updated, then notify all listeners that the
-        // data at the
-        // given URI has changed
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (books != 0) {
+            Log.d(LOG_TAG, "Compacted the ledger through entry " + to + " into " +
+                    books + " books in " + (System.nanoTime() - start) / 1000 +
+                    " us");
+        }
+        return books;
+    }
+
+    /**
+     * Apply one sale, selling as many of its copies as there are in stock.
+     *
+     * @return the sell URI of the copies sold, or null if none were
+     */
+    private Uri insertSale(ContentValues values) {
+        int[] sold = new int[1];
+        applySales(new ContentValues[]{values}, sold);
+        return sold[0] == 0 ? null : BookEntry.buildSellUri(values.getAsLong
+                (BookContract.SaleEntry.COLUMN_BOOK_ID), sold[0]);
+    }
+
+    /**
+     * Apply a batch of sales in a single transaction, then notify each book
+     * that sold. A sale for more copies than are in stock sells the copies
+     * there are, so queued sales are never dropped whole.
+     *
+     * @param sold filled in with the copies sold for each sale
+     * @return number of sales that sold at least one copy
+     */
+    private int applySales(ContentValues[] values, int[] sold) {
+        long[] ids = new long[values.length];
+        int[] counts = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            Long id = values[i].getAsLong(BookContract.SaleEntry.COLUMN_BOOK_ID);
+            Integer count = values[i].getAsInteger(BookContract.SaleEntry
+                    .COLUMN_COUNT);
+            if (id == null) {
+                throw new IllegalArgumentException("Sale requires a book ID.");
+            }
+            if (count == null || count <= 0) {
+                throw new IllegalArgumentException("Sale requires a valid " +
+                        "count.");
+            }
+            ids[i] = id;
+            counts[i] = count;
         }
 
-        // Returns the number of database rows affected by the update statement
-        return rowsUpdated;
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int salesApplied = 0;
+        database.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                sold[i] = sellAvailable(database, ids[i], counts[i]);
+                if (sold[i] != 0) {
+                    salesApplied++;
+                }
+                if (sold[i] < counts[i]) {
+                    Log.w(LOG_TAG, "Only enough stock to sell " + sold[i] + " of " +
+                            counts[i] + " copies of book " + ids[i]);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // invalidate again now the sales are committed, in case another
+        // thread cached a row it read before the commit
+        for (int i = 0; i < values.length; i++) {
+            if (sold[i] != 0) {
+                mRowCache.invalidate(ids[i]);
+                notifyChange(ContentUris.withAppendedId(BookEntry.CONTENT_URI,
+                        ids[i]));
+            }
+        }
+
+        return salesApplied;
+    }
+
+    /**
+     * Apply a page of books pulled from the catalog service in a single
+     * transaction. Books are matched by UUID: a newer version than the local
+     * book has replaces it, or adds the book if there is none, a version the
+     * book already has is skipped, and deleted books are deleted. The
+     * service's quantity counts the ledger entries up to the one in the URI,
+     * and the local entries after it are kept on top. A book the service
+     * sent that isn't valid here is skipped instead of holding up the rest.
+     *
+     * @return number of books added, changed or deleted
+     */
+    private int applySyncedBooks(Uri uri, ContentValues[] values) {
+        long ledgerThrough;
+        try {
+            ledgerThrough = Long.parseLong(uri.getQueryParameter(BookContract
+                    .QUERY_PARAMETER_LEDGER_THROUGH));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Sync requires a valid " +
+                    "ledger_through " + uri);
+        }
+        for (ContentValues value : values) {
+            if (value.getAsString(BookEntry.COLUMN_UUID) == null || value.getAsLong
+                    (BookEntry.COLUMN_REMOTE_VERSION) == null) {
+                throw new IllegalArgumentException("Synced book requires a UUID " +
+                        "and version.");
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int applied = 0;
+        database.beginTransactionNonExclusive();
+        try {
+            for (ContentValues value : values) {
+                try {
+                    if (applySyncedBook(database, value, ledgerThrough)) {
+                        applied++;
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Skipped invalid book " + value.getAsString
+                            (BookEntry.COLUMN_UUID) + " from the catalog service", e);
+                }
+            }
+            // compaction has to look at the entries that are pending again
+            database.execSQL(SQL_REWIND_COMPACTED_THROUGH, new Object[]{
+                    ledgerThrough});
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mRowCache.invalidateAll();
+        }
+
+        if (applied != 0) {
+            notifyChange(BookEntry.CONTENT_URI);
+        }
+        notifySupplierWrites();
+
+        return applied;
+    }
+
+    /**
+     * Apply one pulled book.
+     *
+     * @return whether the local catalog changed
+     */
+    private boolean applySyncedBook(SQLiteDatabase database, ContentValues values,
+                                    long ledgerThrough) {
+        String uuid = values.getAsString(BookEntry.COLUMN_UUID);
+        Integer deleted = values.getAsInteger(BookEntry.COLUMN_DELETED);
+        if (deleted != null && deleted != 0) {
+            SQLiteStatement statement = getStatements().get(SQL_DELETE_SYNCED_BOOK);
+            statement.bindString(1, uuid);
+            return statement.executeUpdateDelete() != 0;
+        }
+
+        validateSyncedBook(values);
+        long version = values.getAsLong(BookEntry.COLUMN_REMOTE_VERSION);
+        Cursor cursor = database.rawQuery(SQL_FIND_SYNCED_BOOK, new String[]{uuid});
+        boolean found;
+        try {
+            found = cursor.moveToFirst();
+            if (found && cursor.getLong(0) >= version) {
+                return false;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long supplierId = internSupplier(values);
+        SQLiteStatement statement = getStatements().get(found ?
+                SQL_APPLY_SYNCED_BOOK : SQL_INSERT_SYNCED_BOOK);
+        bindBook(statement, values, supplierId);
+        statement.bindLong(5, ledgerThrough);
+        statement.bindLong(6, version);
+        statement.bindString(7, uuid);
+        statement.executeUpdateDelete();
+        statement = getStatements().get(SQL_MARK_SYNCED);
+        statement.bindString(1, uuid);
+        statement.executeUpdateDelete();
+        return true;
+    }
+
+    /**
+     * Checks a book pulled from the catalog service. The rules are those of
+     * {@link #validateBook}, except that the quantity may be negative: two
+     * branches can sell the last copy at the same time, and the service
+     * counts both sales.
+     */
+    private static void validateSyncedBook(ContentValues values) {
+        if (values.getAsInteger(BookEntry.COLUMN_QUANTITY) == null) {
+            throw new IllegalArgumentException("Book requires a valid quantity.");
+        }
+        ContentValues book = new ContentValues(values);
+        book.put(BookEntry.COLUMN_QUANTITY, 0);
+        validateBook(book);
+        validateSupplierPhone(values.getAsString(BookEntry.COLUMN_SUPPLIER_PHONE));
+    }
+
+    /**
+     * Record that the catalog service accepted a push of the book with the
+     * UUID in the URI, with the version the service gave it and the row
+     * version that was pushed in the values.
+     *
+     * @return number of rows successfully updated
+     */
+    private int markPushed(Uri uri, ContentValues values) {
+        Long version = values.getAsLong(BookEntry.COLUMN_REMOTE_VERSION);
+        Long rowVersion = values.getAsLong(BookEntry.COLUMN_ROW_VERSION);
+        if (version == null || rowVersion == null) {
+            throw new IllegalArgumentException("Pushed book requires its version " +
+                    "and row version.");
+        }
+        SQLiteStatement statement = getStatements().get(SQL_MARK_PUSHED);
+        statement.bindLong(1, version);
+        statement.bindString(2, uri.getLastPathSegment());
+        statement.bindLong(3, rowVersion);
+        return statement.executeUpdateDelete();
     }
 
     /**
      * Delete the data at the given selection and selection arguments.
      */
-    @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
+    private int doDelete(Uri uri, String selection, String[] selectionArgs) {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
@@ -282,15 +2803,50 @@ public class BookProvider extends ContentProvider {
             case BOOKS:
                 // Delete all rows that match the selection and selection args
                 rowsDeleted = database.delete(BookEntry.TABLE_NAME,
-                        selection, selectionArgs);
+                        selectBooks(selection), selectionArgs);
+                if (rowsDeleted != 0) {
+                    mRowCache.invalidateAll();
+                }
                 break;
             case BOOK_ID:
                 // Delete a single row given by the ID in the URI
-                selection = BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris
-                        .parseId(uri))};
-                rowsDeleted = database.delete(BookEntry.TABLE_NAME,
-                        selection, selectionArgs);
+                long id = ContentUris.parseId(uri);
+                SQLiteStatement statement = getStatements().get(SQL_DELETE_BOOK);
+                statement.bindLong(1, id);
+                rowsDeleted = statement.executeUpdateDelete();
+                if (rowsDeleted != 0) {
+                    mRowCache.invalidate(id);
+                }
+                break;
+            case SUPPLIER_ID:
+                // a supplier that still has books stays
+                rowsDeleted = database.delete(SupplierEntry.TABLE_NAME, SupplierEntry
+                        ._ID + "=? AND NOT EXISTS (SELECT 1 FROM " + BookEntry
+                        .TABLE_NAME + " WHERE " + BookEntry.COLUMN_SUPPLIER_ID + " = "
+                        + SupplierEntry.TABLE_NAME + "." + SupplierEntry._ID + ")", new
+                        String[]{String.valueOf(ContentUris.parseId(uri))});
+                break;
+            case LOCATION_ID:
+                // the location's stock goes with it, taking it off the totals
+                // of every book it held
+                rowsDeleted = database.delete(LocationEntry.TABLE_NAME, LocationEntry
+                        ._ID + "=?", new String[]{String.valueOf(ContentUris.parseId
+                        (uri))});
+                if (rowsDeleted != 0) {
+                    mRowCache.invalidateAll();
+                    notifyChange(BookEntry.CONTENT_URI);
+                }
+                break;
+            case LOCATION_STOCK_ID:
+                long bookId = ContentUris.parseId(uri);
+                rowsDeleted = database.delete(StockEntry.TABLE_NAME,
+                        STOCK_KEY_SELECTION, new String[]{uri.getPathSegments().get
+                                (1), String.valueOf(bookId)});
+                if (rowsDeleted != 0) {
+                    mRowCache.invalidate(bookId);
+                    notifyChange(ContentUris.withAppendedId(BookEntry.CONTENT_URI,
+                            bookId));
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not " +
@@ -299,12 +2855,46 @@ public class BookProvider extends ContentProvider {
 
         // If 1 or more rows were deleted notify listeners
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsDeleted;
     }
 
+    /**
+     * Open the catalog export for reading. The export is written into a pipe
+     * on a background thread while the caller reads the other end, so it is
+     * never built up in memory on either side.
+     */
+    private ParcelFileDescriptor doOpenFile(Uri uri, String mode) throws
+            FileNotFoundException {
+        if (sUriMatcher.match(uri) != BOOK_EXPORT) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Export is read only " + uri);
+        }
+        String format = getExportFormat(uri);
+        return openPipeHelper(uri, getType(uri), null, format, new CatalogExporter
+                (mDbHelper, getContext().getCacheDir()));
+    }
+
+    /**
+     * Returns the export format asked for by the format query parameter,
+     * which defaults to CSV.
+     */
+    private static String getExportFormat(Uri uri) {
+        String format = uri.getQueryParameter(BookContract.QUERY_PARAMETER_FORMAT);
+        if (format == null) {
+            return BookContract.FORMAT_CSV;
+        }
+        if (!format.equals(BookContract.FORMAT_CSV) && !format.equals(BookContract
+                .FORMAT_JSON_LINES)) {
+            throw new IllegalArgumentException("Unknown export format " + uri);
+        }
+        return format;
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -313,9 +2903,50 @@ public class BookProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
+            case BOOK_SEARCH:
+            case BOOK_LOW_STOCK:
+            case BOOK_CHANGES:
                 return BookEntry.CONTENT_LIST_TYPE;
             case BOOK_ID:
+            case BOOK_SELL:
                 return BookEntry.CONTENT_ITEM_TYPE;
+            case SALES:
+                return BookContract.SaleEntry.CONTENT_LIST_TYPE;
+            case SYNC_BOOKS:
+                return SyncEntry.CONTENT_LIST_TYPE;
+            case SYNC_BOOK:
+                return SyncEntry.CONTENT_ITEM_TYPE;
+            case LEDGER:
+            case BOOK_LEDGER:
+                return LedgerEntry.CONTENT_LIST_TYPE;
+            case LEDGER_ID:
+                return LedgerEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIERS:
+                return SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_ID:
+                return SupplierEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIER_BOOKS:
+                return BookEntry.CONTENT_LIST_TYPE;
+            case LOCATIONS:
+                return LocationEntry.CONTENT_LIST_TYPE;
+            case LOCATION_ID:
+                return LocationEntry.CONTENT_ITEM_TYPE;
+            case BOOK_STOCK:
+            case LOCATION_STOCK:
+                return StockEntry.CONTENT_LIST_TYPE;
+            case LOCATION_STOCK_ID:
+                return StockEntry.CONTENT_ITEM_TYPE;
+            case BOOK_CACHE:
+                return CacheEntry.CONTENT_ITEM_TYPE;
+            case BOOK_STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case BOOK_METRICS:
+                return MetricsEntry.CONTENT_LIST_TYPE;
+            case BOOK_SLOW_QUERIES:
+                return SlowQueryEntry.CONTENT_LIST_TYPE;
+            case BOOK_EXPORT:
+                return BookContract.FORMAT_JSON_LINES.equals(getExportFormat(uri)) ?
+                        BookEntry.EXPORT_JSON_LINES_TYPE : BookEntry.EXPORT_CSV_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " " +
                         "with" + " match " + match);
@@ -0,0 +1,84 @@
+package com.willmcintosh.bookstore.data;
+
+import android.util.LruCache;
+
+/**
+ * Bounded LRU cache of single book rows, keyed by book ID. Each row holds the
+ * values of {@link BookProvider}'s cached columns in order.
+ * <p>
+ * Every write bumps a generation counter. A reader takes the generation
+ * before it goes to the database and can only store the row it read if no
+ * write has happened since, so a row read just before a write can never be
+ * cached after the write has invalidated it.
+ */
+final class BookRowCache {
+
+    private final LruCache<Long, Object[]> mRows;
+
+    private long mGeneration;
+
+    BookRowCache(int maxRows) {
+        mRows = new LruCache<>(maxRows);
+    }
+
+    /**
+     * Returns the cached row for the given book, or null on a miss.
+     */
+    Object[] get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Returns the current generation. Take it before reading a row from the
+     * database and pass it to {@link #put}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a row read from the database, unless something has been written
+     * since the given generation was taken.
+     */
+    synchronized void put(long id, Object[] row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(id, row);
+        }
+    }
+
+    /**
+     * Drops the row for a book that has been written.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        mRows.remove(id);
+    }
+
+    /**
+     * Drops every row, for writes that may have touched any book.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    int evictionCount() {
+        return mRows.evictionCount();
+    }
+
+    int size() {
+        return mRows.size();
+    }
+
+    int maxSize() {
+        return mRows.maxSize();
+    }
+}
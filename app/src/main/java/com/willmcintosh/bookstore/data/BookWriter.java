@@ -0,0 +1,168 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Runs inserts, updates and deletes on a single background thread, so the UI
+ * never waits on the disk. Writes run one at a time in the order they were
+ * started, and each result is handed back on the main thread.
+ * <p>
+ * A write the provider rejects is reported as a failure, the same as one
+ * that changed nothing, rather than taking down the writer thread.
+ */
+public final class BookWriter {
+
+    public static final String LOG_TAG = BookWriter.class.getSimpleName();
+
+    /**
+     * Receives the result of an insert on the main thread.
+     */
+    public interface InsertCallback {
+        /**
+         * @param newUri URI of the new row, or null if the insert failed
+         */
+        void onInsertComplete(Uri newUri);
+    }
+
+    /**
+     * Receives the result of an update or delete on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param rows number of rows changed, 0 if the write failed
+         */
+        void onWriteComplete(int rows);
+    }
+
+    private static BookWriter sInstance;
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Returns the writer for this process, creating it the first time.
+     */
+    public static synchronized BookWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BookWriter(Context context) {
+        mResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Inserts a row.
+     *
+     * @param callback receives the new row's URI, may be null
+     */
+    public void insert(final Uri uri, final ContentValues values,
+                       final InsertCallback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Uri newUri = null;
+                try {
+                    newUri = mResolver.insert(uri, values);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to insert into " + uri, e);
+                }
+                if (callback != null) {
+                    final Uri result = newUri;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onInsertComplete(result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates the rows at the given URI.
+     *
+     * @param callback receives the number of rows updated, may be null
+     */
+    public void update(final Uri uri, final ContentValues values, final String
+            selection, final String[] selectionArgs, Callback callback) {
+        post(callback, new Write() {
+            @Override
+            public int run() {
+                return mResolver.update(uri, values, selection, selectionArgs);
+            }
+
+            @Override
+            public String toString() {
+                return "update of " + uri;
+            }
+        });
+    }
+
+    /**
+     * Deletes the rows at the given URI.
+     *
+     * @param callback receives the number of rows deleted, may be null
+     */
+    public void delete(final Uri uri, final String selection, final String[]
+            selectionArgs, Callback callback) {
+        post(callback, new Write() {
+            @Override
+            public int run() {
+                return mResolver.delete(uri, selection, selectionArgs);
+            }
+
+            @Override
+            public String toString() {
+                return "delete of " + uri;
+            }
+        });
+    }
+
+    /**
+     * An update or delete, run on the writer thread
+     */
+    private interface Write {
+        int run();
+    }
+
+    private void post(final Callback callback, final Write write) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int rows = 0;
+                try {
+                    rows = write.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed " + write, e);
+                }
+                if (callback != null) {
+                    final int result = rows;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onWriteComplete(result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,205 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the whole catalog into the pipe handed out by
+ * {@link BookProvider#openFile}. Books are read in ID order one page at a
+ * time, so nothing ever holds more than a page of the catalog in memory,
+ * however big the store is.
+ * <p>
+ * Every page is read in one transaction, so the export is the catalog as it
+ * stood at one moment even while sales, compaction and edits carry on. The
+ * transaction holds the database's write connection, so the pages go to a
+ * spool file at disk speed rather than straight into the pipe, where a slow
+ * reader could keep every sale waiting. The spool is copied into the pipe
+ * once the transaction has ended.
+ */
+final class CatalogExporter implements ContentProvider.PipeDataWriter<String> {
+
+    public static final String LOG_TAG = CatalogExporter.class.getSimpleName();
+
+    /**
+     * Books read per query. Each page is a seek on the primary key, which
+     * stays cheap all the way through the catalog, unlike one long cursor
+     * that re-steps the query from the start to fill each window.
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Columns written for each book, in order
+     */
+    private static final String[] COLUMNS = {BookEntry._ID, BookEntry
+            .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NAME, BookEntry.COLUMN_SUPPLIER_PHONE};
+
+    private static final String SELECTION = BookEntry._ID + " > ?";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final BookDbHelper mDbHelper;
+
+    /**
+     * Directory the spool file is created in
+     */
+    private final File mSpoolDir;
+
+    CatalogExporter(BookDbHelper dbHelper, File spoolDir) {
+        mDbHelper = dbHelper;
+        mSpoolDir = spoolDir;
+    }
+
+    /**
+     * Runs on a background thread for each export. The format is passed as
+     * the args.
+     */
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String
+            mimeType, Bundle opts, String format) {
+        boolean json = BookContract.FORMAT_JSON_LINES.equals(format);
+        File spool = null;
+        try {
+            spool = File.createTempFile("export", null, mSpoolDir);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new
+                    FileOutputStream(spool), UTF_8), 64 * 1024);
+            try {
+                writeCatalog(writer, json);
+            } finally {
+                writer.close();
+            }
+            copySpool(spool, output);
+        } catch (IOException e) {
+            // most likely the reader closed its end early
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the header, if any, and every book, reading all the pages in
+     * one transaction.
+     */
+    private void writeCatalog(Writer writer, boolean json) throws IOException {
+        StringBuilder line = new StringBuilder(256);
+        if (!json) {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                line.append(COLUMNS[i]);
+            }
+            writer.write(line.append('\n').toString());
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransactionNonExclusive();
+        try {
+            String[] args = new String[1];
+            long lastId = 0;
+            int rows;
+            do {
+                args[0] = String.valueOf(lastId);
+                Cursor cursor = database.query(BookEntry.VIEW_NAME, COLUMNS,
+                        SELECTION, args, null, null, BookEntry._ID, String.valueOf
+                                (PAGE_SIZE));
+                try {
+                    rows = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        line.setLength(0);
+                        if (json) {
+                            appendJson(line, cursor);
+                        } else {
+                            appendCsv(line, cursor);
+                        }
+                        writer.write(line.append('\n').toString());
+                        lastId = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while (rows == PAGE_SIZE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Copies the spooled export into the pipe. The pipe is closed by the
+     * caller once we return, so the stream is only flushed, never closed.
+     */
+    private static void copySpool(File spool, ParcelFileDescriptor output) throws
+            IOException {
+        OutputStream out = new FileOutputStream(output.getFileDescriptor());
+        InputStream in = new FileInputStream(spool);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void appendCsv(StringBuilder line, Cursor cursor) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                line.append(cursor.getLong(i));
+            } else if (!cursor.isNull(i)) {
+                CsvReader.appendField(line, cursor.getString(i));
+            }
+        }
+    }
+
+    private static void appendJson(StringBuilder line, Cursor cursor) {
+        line.append('{');
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append('"').append(COLUMNS[i]).append("\":");
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    line.append("null");
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    line.append(cursor.getLong(i));
+                    break;
+                default:
+                    line.append(JSONObject.quote(cursor.getString(i)));
+                    break;
+            }
+        }
+        line.append('}');
+    }
+}
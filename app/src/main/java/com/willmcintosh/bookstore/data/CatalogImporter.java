@@ -0,0 +1,342 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Imports a supplier catalog from CSV. The file is read one record at a time
+ * and written to the provider in chunks, each chunk a single bulk insert
+ * transaction, so memory use stays flat however long the catalog is.
+ * <p>
+ * The first record must be a header naming the book columns, in any order.
+ * Every row is checked with the same rules the provider applies to inserts.
+ * Rows that fail are written to an error report along with the reason and
+ * the rest of the catalog carries on.
+ */
+public final class CatalogImporter {
+
+    public static final String LOG_TAG = CatalogImporter.class.getSimpleName();
+
+    /**
+     * Books written per transaction
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * Columns every catalog must have
+     */
+    private static final String[] REQUIRED_COLUMNS = {BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY, BookEntry
+            .COLUMN_SUPPLIER_NAME};
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives progress reports while an import runs. Called on the importing
+     * thread after each chunk is written.
+     */
+    public interface ProgressListener {
+        /**
+         * @param rowsRead number of data rows read so far
+         * @param percent  how far through the file the import is, or -1 if the
+         *                 file's length isn't known
+         */
+        void onProgress(int rowsRead, int percent);
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class Result {
+
+        /**
+         * Number of books added
+         */
+        public final int imported;
+
+        /**
+         * Number of rows that were not added
+         */
+        public final int rejected;
+
+        /**
+         * CSV file listing the rejected rows and why, or null if every row
+         * was imported
+         */
+        public final File errorReport;
+
+        Result(int imported, int rejected, File errorReport) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.errorReport = errorReport;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    public CatalogImporter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Imports a catalog. Must not be called on the main thread.
+     *
+     * @param in          the CSV file, which is closed when the import ends
+     * @param length      length of the file in bytes, or -1 if not known
+     * @param errorReport where to write the rejected rows. Only created if a
+     *                    row is rejected.
+     * @param listener    receives progress reports, may be null
+     * @throws IOException if the file can't be read, or its header doesn't
+     *                     name the book columns
+     */
+    public Result importCsv(InputStream in, long length, File errorReport,
+                            ProgressListener listener) throws IOException {
+        CountingInputStream counter = new CountingInputStream(in);
+        CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader
+                (counter, UTF_8)));
+        Writer errors = null;
+        try {
+            ArrayList<String> fields = new ArrayList<>();
+            if (!reader.readRecord(fields)) {
+                throw new IOException("Catalog is empty");
+            }
+            ArrayList<String> header = new ArrayList<>(fields);
+            int[] columns = mapColumns(header);
+
+            ArrayList<ContentValues> chunk = new ArrayList<>(CHUNK_SIZE);
+            // a catalog repeats the same few suppliers on every row, so each
+            // phone is only checked the first time it turns up
+            HashSet<String> validPhones = new HashSet<>();
+            int rowsRead = 0;
+            int imported = 0;
+            int rejected = 0;
+            while (reader.readRecord(fields)) {
+                rowsRead++;
+                String error = null;
+                ContentValues values = null;
+                if (fields.size() != header.size()) {
+                    error = "Expected " + header.size() + " fields but found " +
+                            fields.size();
+                } else {
+                    try {
+                        values = toBook(fields, columns);
+                        BookProvider.validateBook(values);
+                        String phone = values.getAsString(BookEntry
+                                .COLUMN_SUPPLIER_PHONE);
+                        if (phone != null && !validPhones.contains(phone)) {
+                            BookProvider.validateSupplierPhone(phone);
+                            validPhones.add(phone);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        error = e.getMessage();
+                    }
+                }
+
+                if (error != null) {
+                    if (errors == null) {
+                        errors = openErrorReport(errorReport, header);
+                    }
+                    writeError(errors, reader.getRecordLineNumber(), error, fields);
+                    rejected++;
+                    continue;
+                }
+
+                chunk.add(values);
+                if (chunk.size() == CHUNK_SIZE) {
+                    int inserted = insertChunk(chunk);
+                    imported += inserted;
+                    rejected += chunk.size() - inserted;
+                    chunk.clear();
+                    reportProgress(listener, rowsRead, counter.getCount(), length);
+                }
+            }
+
+            if (!chunk.isEmpty()) {
+                int inserted = insertChunk(chunk);
+                imported += inserted;
+                rejected += chunk.size() - inserted;
+            }
+            reportProgress(listener, rowsRead, length, length);
+
+            return new Result(imported, rejected, errors == null ? null : errorReport);
+        } finally {
+            if (errors != null) {
+                errors.close();
+            }
+            in.close();
+        }
+    }
+
+    /**
+     * Finds each book column in the header.
+     *
+     * @return the field index of each of {@link #REQUIRED_COLUMNS} followed
+     * by the supplier phone, which is -1 if the catalog doesn't have one
+     */
+    private static int[] mapColumns(ArrayList<String> header) throws IOException {
+        int[] columns = new int[REQUIRED_COLUMNS.length + 1];
+        for (int i = 0; i < REQUIRED_COLUMNS.length; i++) {
+            columns[i] = indexOfColumn(header, REQUIRED_COLUMNS[i]);
+            if (columns[i] == -1) {
+                throw new IOException("Catalog header has no " + REQUIRED_COLUMNS[i] +
+                        " column");
+            }
+        }
+        columns[REQUIRED_COLUMNS.length] = indexOfColumn(header, BookEntry
+                .COLUMN_SUPPLIER_PHONE);
+        return columns;
+    }
+
+    private static int indexOfColumn(ArrayList<String> header, String column) {
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).trim().toLowerCase(Locale.US).equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Turns a record into book values. Numbers that don't parse are left out
+     * so validation rejects the row with the provider's own message.
+     */
+    private static ContentValues toBook(ArrayList<String> fields, int[] columns) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, emptyToNull(fields.get(columns[0])));
+        putInteger(values, BookEntry.COLUMN_PRICE, fields.get(columns[1]));
+        putInteger(values, BookEntry.COLUMN_QUANTITY, fields.get(columns[2]));
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, emptyToNull(fields.get
+                (columns[3])));
+        int phone = columns[REQUIRED_COLUMNS.length];
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, phone == -1 ? "" : fields.get
+                (phone).trim());
+        return values;
+    }
+
+    /**
+     * Returns the trimmed field, or null if it is blank, so a missing name is
+     * rejected just like it is in the editor.
+     */
+    private static String emptyToNull(String field) {
+        String trimmed = field.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    private static void putInteger(ContentValues values, String column, String
+            field) {
+        try {
+            values.put(column, Integer.parseInt(field.trim()));
+        } catch (NumberFormatException e) {
+            values.putNull(column);
+        }
+    }
+
+    /**
+     * Writes one chunk of validated books in a single transaction.
+     *
+     * @return number of books inserted
+     */
+    private int insertChunk(ArrayList<ContentValues> chunk) {
+        int inserted = mResolver.bulkInsert(BookEntry.CONTENT_URI, chunk.toArray(new
+                ContentValues[chunk.size()]));
+        if (inserted < chunk.size()) {
+            Log.w(LOG_TAG, (chunk.size() - inserted) + " of " + chunk.size() +
+                    " books failed to insert");
+        }
+        return inserted;
+    }
+
+    private static void reportProgress(ProgressListener listener, int rowsRead,
+                                       long bytesRead, long length) {
+        if (listener == null) {
+            return;
+        }
+        int percent = length <= 0 ? -1 : (int) Math.min(100, bytesRead * 100 /
+                length);
+        listener.onProgress(rowsRead, percent);
+    }
+
+    private static Writer openErrorReport(File file, ArrayList<String> header)
+            throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new
+                FileOutputStream(file), UTF_8));
+        StringBuilder line = new StringBuilder("line,error");
+        for (String column : header) {
+            line.append(',');
+            CsvReader.appendField(line, column);
+        }
+        writer.write(line.append('\n').toString());
+        return writer;
+    }
+
+    private static void writeError(Writer writer, int lineNumber, String error,
+                                   ArrayList<String> fields) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append(lineNumber).append(',');
+        CsvReader.appendField(line, error == null ? "" : error);
+        for (String field : fields) {
+            line.append(',');
+            CsvReader.appendField(line, field);
+        }
+        writer.write(line.append('\n').toString());
+    }
+
+    /**
+     * Counts the bytes read through it, for progress reports.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.willmcintosh.bookstore.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Streaming reader for RFC 4180 style CSV. Fields may be quoted, quoted
+ * fields may hold commas, doubled quotes and line breaks, and records may end
+ * in either LF or CRLF. Only the current record is held in memory.
+ */
+final class CsvReader {
+
+    private final Reader mReader;
+
+    private final StringBuilder mField = new StringBuilder();
+
+    /**
+     * Character read ahead of the current record, or -2 if there is none
+     */
+    private int mPeeked = -2;
+
+    private int mLineNumber = 1;
+
+    private int mRecordLineNumber;
+
+    private boolean mFirstRecord = true;
+
+    /**
+     * @param reader source of the CSV text. Wrap it in a BufferedReader, as
+     *               this reads one character at a time.
+     */
+    CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Returns the line the last record read started on, counting from 1.
+     */
+    int getRecordLineNumber() {
+        return mRecordLineNumber;
+    }
+
+    /**
+     * Reads the next record into the given list, replacing what it held.
+     * Blank lines are skipped.
+     *
+     * @return false at the end of the input
+     */
+    boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        int c = read();
+        // skip blank lines between records
+        while (c == '\r' || c == '\n') {
+            if (c == '\r' && peek() == '\n') {
+                read();
+            }
+            mLineNumber++;
+            c = read();
+        }
+        if (c == -1) {
+            return false;
+        }
+        mRecordLineNumber = mLineNumber;
+
+        // spreadsheets like to start the file with a byte order mark
+        if (mFirstRecord) {
+            mFirstRecord = false;
+            if (c == '\uFEFF') {
+                c = read();
+            }
+        }
+
+        mField.setLength(0);
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field starting on " +
+                            "line " + mRecordLineNumber);
+                }
+                if (c == '"') {
+                    if (peek() == '"') {
+                        read();
+                        mField.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    if (c == '\n') {
+                        mLineNumber++;
+                    }
+                    mField.append((char) c);
+                }
+            } else if (c == '"' && mField.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(mField.toString());
+                mField.setLength(0);
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                if (c != -1) {
+                    mLineNumber++;
+                }
+                fields.add(mField.toString());
+                return true;
+            } else {
+                mField.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPeeked != -2) {
+            int c = mPeeked;
+            mPeeked = -2;
+            return c;
+        }
+        return mReader.read();
+    }
+
+    private int peek() throws IOException {
+        if (mPeeked == -2) {
+            mPeeked = mReader.read();
+        }
+        return mPeeked;
+    }
+
+    /**
+     * Appends a field to a CSV line, quoting it if it needs to be.
+     */
+    static void appendField(StringBuilder line, String field) {
+        if (field.indexOf(',') == -1 && field.indexOf('"') == -1 && field.indexOf
+                ('\n') == -1 && field.indexOf('\r') == -1) {
+            line.append(field);
+            return;
+        }
+        line.append('"').append(field.replace("\"", "\"\"")).append('"');
+    }
+}
@@ -0,0 +1,133 @@
+package com.willmcintosh.bookstore.data;
+
+import android.database.MatrixCursor;
+import android.util.SparseArray;
+
+/**
+ * Call counts, error counts and latency histograms for the provider's entry
+ * points, kept per operation and URI match code. Recording a call only
+ * bumps a few counters, so it is cheap enough to leave on all the time.
+ */
+final class ProviderMetrics {
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_BULK_INSERT = 2;
+    static final int OP_APPLY_BATCH = 3;
+    static final int OP_UPDATE = 4;
+    static final int OP_DELETE = 5;
+    static final int OP_OPEN_FILE = 6;
+    static final int OP_NOTIFY = 7;
+
+    private static final String[] OPERATION_NAMES = {"query", "insert",
+            "bulkInsert", "applyBatch", "update", "delete", "openFile", "notify"};
+
+    /**
+     * Upper bounds of the histogram buckets, in microseconds. A last bucket
+     * catches everything slower.
+     */
+    private static final long[] BUCKET_BOUNDS_US = {100, 250, 500, 1000, 2500,
+            5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000};
+
+    /**
+     * Match codes are offset by this so {@link android.content.UriMatcher
+     * #NO_MATCH} still makes a valid key
+     */
+    private static final int MATCH_OFFSET = 1;
+
+    private static final int KEYS_PER_OPERATION = 1000;
+
+    /**
+     * Counters for one operation on one kind of URI
+     */
+    private static final class Timer {
+        long count;
+        long errors;
+        long totalNanos;
+        long maxNanos;
+        final long[] buckets = new long[BUCKET_BOUNDS_US.length + 1];
+    }
+
+    private final SparseArray<Timer> mTimers = new SparseArray<>();
+
+    /**
+     * Records one call.
+     *
+     * @param operation one of the OP_ constants
+     * @param match     the URI match code of the call
+     * @param nanos     how long the call took
+     * @param failed    whether the call threw
+     */
+    synchronized void record(int operation, int match, long nanos, boolean failed) {
+        int key = operation * KEYS_PER_OPERATION + match + MATCH_OFFSET;
+        Timer timer = mTimers.get(key);
+        if (timer == null) {
+            timer = new Timer();
+            mTimers.put(key, timer);
+        }
+        timer.count++;
+        if (failed) {
+            timer.errors++;
+        }
+        timer.totalNanos += nanos;
+        timer.maxNanos = Math.max(timer.maxNanos, nanos);
+        timer.buckets[bucketFor(nanos / 1000)]++;
+    }
+
+    private static int bucketFor(long micros) {
+        for (int i = 0; i < BUCKET_BOUNDS_US.length; i++) {
+            if (micros <= BUCKET_BOUNDS_US[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_US.length;
+    }
+
+    /**
+     * Adds a row per operation and URI to the given cursor, which must have
+     * the {@link BookContract.MetricsEntry} columns in the order of
+     * {@link BookContract.MetricsEntry#COLUMNS}.
+     *
+     * @param uriNames name of each URI match code
+     */
+    synchronized void writeTo(MatrixCursor cursor, SparseArray<String> uriNames) {
+        for (int i = 0; i < mTimers.size(); i++) {
+            int key = mTimers.keyAt(i);
+            Timer timer = mTimers.valueAt(i);
+            int match = key % KEYS_PER_OPERATION - MATCH_OFFSET;
+            String uriName = uriNames.get(match, "unknown");
+
+            StringBuilder histogram = new StringBuilder();
+            for (int b = 0; b < timer.buckets.length; b++) {
+                if (b > 0) {
+                    histogram.append(',');
+                }
+                histogram.append(b < BUCKET_BOUNDS_US.length ? String.valueOf
+                        (BUCKET_BOUNDS_US[b]) : "inf").append(':').append(timer
+                        .buckets[b]);
+            }
+
+            cursor.addRow(new Object[]{OPERATION_NAMES[key / KEYS_PER_OPERATION],
+                    uriName, timer.count, timer.errors, timer.totalNanos / 1000 /
+                    Math.max(1, timer.count), timer.maxNanos / 1000, percentile
+                    (timer, 50), percentile(timer, 90), percentile(timer, 99),
+                    histogram.toString()});
+        }
+    }
+
+    /**
+     * Estimates a percentile from the histogram, as the upper bound of the
+     * bucket it falls in. For the last bucket the maximum is used instead.
+     */
+    private static long percentile(Timer timer, int percentile) {
+        long rank = (timer.count * percentile + 99) / 100;
+        long seen = 0;
+        for (int b = 0; b < BUCKET_BOUNDS_US.length; b++) {
+            seen += timer.buckets[b];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_US[b], timer.maxNanos / 1000);
+            }
+        }
+        return timer.maxNanos / 1000;
+    }
+}
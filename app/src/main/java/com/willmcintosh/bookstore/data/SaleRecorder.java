@@ -0,0 +1,434 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.willmcintosh.bookstore.data.BookContract.SaleEntry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Write-behind queue for the sale button. Each sale is counted against its
+ * book straight away, so the list can show it immediately, and appended to a
+ * small journal file before the tap returns. The journal is kept open by the
+ * recorder's own thread, so a tap costs one write into the kernel's page
+ * cache and never opens a file or waits for the disk to sync. The pending
+ * sales are then flushed to {@link SaleEntry#CONTENT_URI} in one transaction,
+ * either after a short delay or once enough have built up, so a burst of
+ * taps costs one commit instead of one per tap.
+ * <p>
+ * A flush sells as many of each book's queued copies as are in stock. Copies
+ * there wasn't stock for are dropped rather than sold against a later
+ * delivery, and the {@link OnFlushListener} hears how many there were.
+ * <p>
+ * The journal survives the process being killed: any sales still in it are
+ * replayed the next time the recorder is created. A sale could only be
+ * applied twice if the process died in the moment between the flush
+ * committing and the flushed journal being deleted.
+ */
+public final class SaleRecorder {
+
+    public static final String LOG_TAG = SaleRecorder.class.getSimpleName();
+
+    /**
+     * Flush once this many sales are pending
+     */
+    private static final int FLUSH_THRESHOLD = 20;
+
+    /**
+     * Flush this long after the first pending sale, in milliseconds
+     */
+    private static final long FLUSH_DELAY_MS = 500;
+
+    /**
+     * Journal of sales that have not been flushed yet, one book ID per line
+     */
+    private static final String JOURNAL_NAME = "sales.journal";
+
+    /**
+     * Journal of the sales currently being flushed
+     */
+    private static final String FLUSHING_JOURNAL_NAME = "sales.journal.flushing";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Told on the main thread when a flush has been written
+     */
+    public interface OnFlushListener {
+
+        /**
+         * @param rejected copies queued for sale that weren't in stock, which
+         *                 were dropped. Includes any from flushes that
+         *                 finished while no listener was set.
+         */
+        void onSalesFlushed(int rejected);
+    }
+
+    private static SaleRecorder sInstance;
+
+    private final Context mContext;
+
+    private final File mJournal;
+
+    private final File mFlushingJournal;
+
+    private final Handler mHandler;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Open journal the next sale is appended to. Guarded by the recorder's
+     * lock.
+     */
+    private FileOutputStream mJournalStream;
+
+    /**
+     * Copies sold per book that have not been written to the database yet
+     */
+    private final LongSparseArray<Integer> mPending = new LongSparseArray<>();
+
+    private int mPendingTotal;
+
+    /**
+     * Copies dropped for lack of stock that no listener has heard about yet
+     */
+    private int mUnreportedRejects;
+
+    private boolean mFlushScheduled;
+
+    private OnFlushListener mListener;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    /**
+     * Returns the recorder for this process, creating it the first time. Any
+     * journal left over from the last run is replayed on the recorder's
+     * thread.
+     */
+    public static synchronized SaleRecorder getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SaleRecorder(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SaleRecorder(Context context) {
+        mContext = context;
+        mJournal = new File(context.getFilesDir(), JOURNAL_NAME);
+        mFlushingJournal = new File(context.getFilesDir(), FLUSHING_JOURNAL_NAME);
+
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // sales from a flush that never finished go first, then whatever was
+        // still waiting in the journal
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                LongSparseArray<Integer> replayed = new LongSparseArray<>();
+                readJournal(mFlushingJournal, replayed);
+                readJournal(mJournal, replayed);
+                synchronized (SaleRecorder.this) {
+                    for (int i = 0; i < replayed.size(); i++) {
+                        addPending(replayed.keyAt(i), replayed.valueAt(i));
+                    }
+                    openJournal();
+                    if (mPendingTotal > 0) {
+                        scheduleFlush(0);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the listener told about each flush, or clears it with null. A new
+     * listener hears straight away about copies dropped while there was none.
+     */
+    public synchronized void setOnFlushListener(OnFlushListener listener) {
+        mListener = listener;
+        if (listener != null && mUnreportedRejects > 0) {
+            postFlushed(listener);
+        }
+    }
+
+    /**
+     * Records the sale of one copy of the given book. The sale is in the
+     * journal by the time this returns, so it survives the process being
+     * killed.
+     */
+    public synchronized void recordSale(long bookId) {
+        addPending(bookId, 1);
+        appendJournal(bookId + "\n");
+        scheduleFlush(mPendingTotal >= FLUSH_THRESHOLD ? 0 : FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Returns the number of copies of the given book sold but not yet written
+     * to the database.
+     */
+    public synchronized int getPendingCount(long bookId) {
+        Integer count = mPending.get(bookId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Writes the pending sales to the database soon, without waiting for the
+     * delay or threshold.
+     */
+    public synchronized void flush() {
+        if (mPendingTotal > 0) {
+            scheduleFlush(0);
+        }
+    }
+
+    private void scheduleFlush(long delay) {
+        if (delay == 0) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+            mFlushScheduled = true;
+        } else if (!mFlushScheduled) {
+            mHandler.postDelayed(mFlushRunnable, delay);
+            mFlushScheduled = true;
+        }
+    }
+
+    /**
+     * Writes every pending sale to the provider in one batch, and takes the
+     * flushed copies off the pending counts once the batch has committed.
+     * Runs on the recorder's own thread.
+     */
+    private void flushNow() {
+        LongSparseArray<Integer> flushing;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingTotal == 0) {
+                return;
+            }
+            // The sales being flushed are exactly the ones in the journal
+            // being moved aside, so both happen under the lock and new sales
+            // start a fresh journal. If an earlier flush failed its journal
+            // is still there, and its sales are still part of the pending
+            // counts, so the two are merged.
+            flushing = mPending.clone();
+            try {
+                if (mJournalStream != null) {
+                    mJournalStream.close();
+                    mJournalStream = null;
+                }
+                if (mFlushingJournal.exists()) {
+                    appendFile(mJournal, mFlushingJournal);
+                    mJournal.delete();
+                } else if (mJournal.exists() && !mJournal.renameTo(mFlushingJournal)) {
+                    throw new IOException("Failed to move " + mJournal);
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to rotate sales journal", e);
+                scheduleFlush(FLUSH_DELAY_MS);
+                return;
+            } finally {
+                openJournal();
+            }
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < flushing.size(); i++) {
+            operations.add(ContentProviderOperation.newInsert(SaleEntry.CONTENT_URI)
+                    .withValue(SaleEntry.COLUMN_BOOK_ID, flushing.keyAt(i))
+                    .withValue(SaleEntry.COLUMN_COUNT, flushing.valueAt(i))
+                    .build());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = mContext.getContentResolver().applyBatch(BookContract
+                    .CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | RuntimeException
+                e) {
+            // keep the flushing journal and the pending counts so the sales
+            // are retried with the next flush
+            Log.e(LOG_TAG, "Failed to flush sales", e);
+            synchronized (this) {
+                scheduleFlush(FLUSH_DELAY_MS);
+            }
+            return;
+        }
+
+        // copies that weren't in stock are dropped along with the ones that
+        // sold, so they can't take stock from a delivery the clerk never sold
+        int rejected = 0;
+        synchronized (this) {
+            for (int i = 0; i < flushing.size(); i++) {
+                int queued = flushing.valueAt(i);
+                addPending(flushing.keyAt(i), -queued);
+                rejected += queued - getSoldCount(results[i].uri);
+            }
+            mFlushingJournal.delete();
+            if (rejected > 0) {
+                Log.w(LOG_TAG, rejected + " copies queued for sale were not in " +
+                        "stock");
+                mUnreportedRejects += rejected;
+            }
+            if (mListener != null) {
+                postFlushed(mListener);
+            }
+        }
+    }
+
+    /**
+     * Tells the listener on the main thread about a flush and the copies
+     * dropped since it was last told. Must hold the recorder's lock.
+     */
+    private void postFlushed(final OnFlushListener listener) {
+        final int rejected = mUnreportedRejects;
+        mUnreportedRejects = 0;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SaleRecorder.this) {
+                    // the listener may have been cleared since, in which case
+                    // the next one hears about the copies instead
+                    if (mListener != listener) {
+                        mUnreportedRejects += rejected;
+                        return;
+                    }
+                }
+                listener.onSalesFlushed(rejected);
+            }
+        });
+    }
+
+    /**
+     * Returns the copies sold by a sale insert, from the sell URI it returned.
+     */
+    private static int getSoldCount(Uri uri) {
+        if (uri == null) {
+            return 0;
+        }
+        return Integer.parseInt(uri.getQueryParameter(BookContract
+                .QUERY_PARAMETER_COUNT));
+    }
+
+    private void addPending(long bookId, int count) {
+        Integer current = mPending.get(bookId);
+        int updated = (current == null ? 0 : current) + count;
+        if (updated == 0) {
+            mPending.remove(bookId);
+        } else {
+            mPending.put(bookId, updated);
+        }
+        mPendingTotal += count;
+    }
+
+    /**
+     * Opens the journal for appending, so a sale doesn't have to. Runs on the
+     * recorder's thread and must hold the recorder's lock.
+     */
+    private void openJournal() {
+        if (mJournalStream != null) {
+            return;
+        }
+        try {
+            mJournalStream = new FileOutputStream(mJournal, true);
+        } catch (IOException e) {
+            // appendJournal tries again with the next sale
+            Log.e(LOG_TAG, "Failed to open sales journal", e);
+        }
+    }
+
+    /**
+     * Appends lines to the journal. Must hold the recorder's lock.
+     */
+    private void appendJournal(String lines) {
+        try {
+            if (mJournalStream == null) {
+                mJournalStream = new FileOutputStream(mJournal, true);
+            }
+            // the write goes straight to the file, so it survives the process
+            // being killed
+            mJournalStream.write(lines.getBytes(UTF_8));
+        } catch (IOException e) {
+            // the sales are still pending in memory and go out with the next
+            // flush, they just wouldn't survive the process dying first
+            Log.e(LOG_TAG, "Failed to journal sales", e);
+        }
+    }
+
+    /**
+     * Adds the sales in a journal file to the given counts.
+     */
+    private static void readJournal(File journal, LongSparseArray<Integer> counts) {
+        if (!journal.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journal));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    long bookId = Long.parseLong(line.trim());
+                    Integer count = counts.get(bookId);
+                    counts.put(bookId, count == null ? 1 : count + 1);
+                } catch (NumberFormatException e) {
+                    // a line cut short by the process dying mid-write
+                    Log.w(LOG_TAG, "Skipping bad journal line " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read sales journal " + journal, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close sales journal", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the contents of one file to another.
+     */
+    private static void appendFile(File source, File destination) throws IOException {
+        if (!source.exists()) {
+            return;
+        }
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(destination, true);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
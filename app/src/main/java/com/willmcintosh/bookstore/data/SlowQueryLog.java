@@ -0,0 +1,141 @@
+package com.willmcintosh.bookstore.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Ring buffer of the most recent queries that took longer than a threshold,
+ * each with the plan SQLite chose for it. Only used in diagnostic mode, as
+ * capturing a plan costs an extra statement per slow query.
+ */
+final class SlowQueryLog {
+
+    /**
+     * Tag for the log messages. Setting it loggable at DEBUG turns on
+     * diagnostic mode in a release build:
+     * {@code adb shell setprop log.tag.BookSlowQuery DEBUG}
+     */
+    static final String LOG_TAG = "BookSlowQuery";
+
+    /**
+     * A logged query
+     */
+    private static final class Entry {
+        final long timeMillis;
+        final long durationNanos;
+        final String uri;
+        final String sql;
+        final String args;
+        final String plan;
+        final boolean fullScan;
+
+        Entry(long timeMillis, long durationNanos, String uri, String sql, String
+                args, String plan, boolean fullScan) {
+            this.timeMillis = timeMillis;
+            this.durationNanos = durationNanos;
+            this.uri = uri;
+            this.sql = sql;
+            this.args = args;
+            this.plan = plan;
+            this.fullScan = fullScan;
+        }
+    }
+
+    private static final Comparator<Entry> SLOWEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return b.durationNanos < a.durationNanos ? -1 : (b.durationNanos ==
+                    a.durationNanos ? 0 : 1);
+        }
+    };
+
+    private final long mThresholdNanos;
+
+    private final Entry[] mEntries;
+
+    /**
+     * Slot the next entry goes in, overwriting the oldest once the buffer is
+     * full
+     */
+    private int mNext;
+
+    SlowQueryLog(long thresholdMillis, int capacity) {
+        mThresholdNanos = thresholdMillis * 1000000L;
+        mEntries = new Entry[capacity];
+    }
+
+    /**
+     * Returns whether a query that took this long should be logged.
+     */
+    boolean isSlow(long durationNanos) {
+        return durationNanos >= mThresholdNanos;
+    }
+
+    /**
+     * Captures the plan for a slow query and adds it to the buffer. Must be
+     * called on a connection that can run the query again.
+     */
+    void add(SQLiteDatabase database, String uri, long durationNanos, String sql,
+             String[] args) {
+        StringBuilder plan = new StringBuilder();
+        boolean fullScan = false;
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                String step = cursor.getString(detail);
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(step);
+                // a scan that isn't driven by an index or the full-text
+                // index reads every row of the table
+                if (step.startsWith("SCAN ") && !step.contains(" USING ") && !step
+                        .contains("VIRTUAL TABLE")) {
+                    fullScan = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.w(LOG_TAG, uri + " took " + durationNanos / 1000 + " us" + (fullScan ?
+                " with a full table scan" : "") + ": " + sql + "\n" + plan);
+
+        Entry entry = new Entry(System.currentTimeMillis(), durationNanos, uri, sql,
+                args == null ? "" : Arrays.toString(args), plan.toString(), fullScan);
+        synchronized (this) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % mEntries.length;
+        }
+    }
+
+    /**
+     * Adds a row per logged query to the given cursor, slowest first. The
+     * cursor must have the {@link BookContract.SlowQueryEntry#COLUMNS}.
+     */
+    void writeTo(MatrixCursor cursor) {
+        Entry[] entries;
+        synchronized (this) {
+            entries = mEntries.clone();
+        }
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry != null) {
+                entries[count++] = entry;
+            }
+        }
+        Arrays.sort(entries, 0, count, SLOWEST_FIRST);
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[i];
+            cursor.addRow(new Object[]{entry.timeMillis, entry.durationNanos / 1000,
+                    entry.uri, entry.sql, entry.args, entry.plan, entry.fullScan ? 1 :
+                    0});
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.willmcintosh.bookstore.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Cache of compiled statements for one database, keyed by their SQL. Each
+ * statement is compiled the first time it is asked for and reused after that,
+ * so callers only bind arguments and execute.
+ * <p>
+ * A {@link SQLiteStatement} holds its bindings, so every thread gets its own
+ * copy of each statement and callers never lock one. A lock held around
+ * executing a statement would deadlock: executing waits for the primary
+ * connection, which another thread's open transaction may hold while it waits
+ * for the same lock.
+ * <p>
+ * Callers come from the binder pool but also from short-lived threads in the
+ * app's own process. A thread's statements are closed once it has died, the
+ * next time a new thread starts using the cache, so the cache only ever holds
+ * statements for threads that are still running.
+ */
+final class StatementCache {
+
+    private final SQLiteDatabase mDatabase;
+
+    /**
+     * The calling thread's statements, or null if it hasn't used the cache yet
+     */
+    private final ThreadLocal<HashMap<String, SQLiteStatement>> mStatements = new
+            ThreadLocal<>();
+
+    /**
+     * The statements of every thread that has used the cache, so dead threads'
+     * statements and, on close, everyone's can be released. Only changed with
+     * the lock held.
+     */
+    private final HashMap<Thread, HashMap<String, SQLiteStatement>> mThreads = new
+            HashMap<>();
+
+    private boolean mClosed;
+
+    StatementCache(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Returns the calling thread's compiled statement for the given SQL,
+     * compiling it if this is the first time the thread has used it.
+     */
+    SQLiteStatement get(String sql) {
+        HashMap<String, SQLiteStatement> statements = mStatements.get();
+        if (statements == null) {
+            statements = register();
+            mStatements.set(statements);
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            // compiling takes a connection, so it happens outside the lock
+            statement = mDatabase.compileStatement(sql);
+            synchronized (this) {
+                if (mClosed) {
+                    statement.close();
+                    throw new IllegalStateException("Statement cache is closed");
+                }
+                statements.put(sql, statement);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * Releases every compiled statement. The cache can't be used after this.
+     */
+    synchronized void close() {
+        mClosed = true;
+        for (HashMap<String, SQLiteStatement> statements : mThreads.values()) {
+            closeAll(statements);
+        }
+        mThreads.clear();
+    }
+
+    /**
+     * Adds the calling thread's statements, releasing those of any thread that
+     * has died since the last thread was added.
+     */
+    private synchronized HashMap<String, SQLiteStatement> register() {
+        if (mClosed) {
+            throw new IllegalStateException("Statement cache is closed");
+        }
+        Iterator<Map.Entry<Thread, HashMap<String, SQLiteStatement>>> threads =
+                mThreads.entrySet().iterator();
+        while (threads.hasNext()) {
+            Map.Entry<Thread, HashMap<String, SQLiteStatement>> entry = threads
+                    .next();
+            if (!entry.getKey().isAlive()) {
+                closeAll(entry.getValue());
+                threads.remove();
+            }
+        }
+        HashMap<String, SQLiteStatement> statements = new HashMap<>();
+        mThreads.put(Thread.currentThread(), statements);
+        return statements;
+    }
+
+    private static void closeAll(HashMap<String, SQLiteStatement> statements) {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.willmcintosh.bookstore.sync;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends requests to the catalog service over HTTP. Bodies both ways are
+ * JSON objects, gzip compressed, since a page of books is mostly the same
+ * few keys over and over and shrinks to a fraction of its size.
+ * <p>
+ * Every call blocks, so this must only be used off the main thread.
+ * Responses are read to the end so the connection can be reused for the
+ * next page.
+ */
+public class CatalogClient {
+
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private static final String GZIP = "gzip";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final URL mBaseUrl;
+
+    /**
+     * @param baseUrl URL the service's paths are relative to, ending in a
+     *                slash
+     */
+    public CatalogClient(URL baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    /**
+     * Posts a JSON object to the given path and returns the response.
+     *
+     * @throws IOException if the service can't be reached, or answers with
+     *                     an error or something that isn't a JSON object
+     */
+    public JSONObject post(String path, JSONObject body) throws IOException {
+        byte[] bytes = gzip(body.toString().getBytes(UTF_8));
+        HttpURLConnection connection = open(path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+        connection.setRequestProperty("Content-Encoding", GZIP);
+        connection.setFixedLengthStreamingMode(bytes.length);
+        OutputStream output = connection.getOutputStream();
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+        return readResponse(connection);
+    }
+
+    /**
+     * Gets the JSON object at the given path, which may have a query.
+     *
+     * @throws IOException if the service can't be reached, or answers with
+     *                     an error or something that isn't a JSON object
+     */
+    public JSONObject get(String path) throws IOException {
+        return readResponse(open(path));
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl, path)
+                .openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // asking for gzip ourselves means the response isn't decompressed
+        // for us, whichever HTTP stack is underneath
+        connection.setRequestProperty("Accept-Encoding", GZIP);
+        return connection;
+    }
+
+    private static JSONObject readResponse(HttpURLConnection connection) throws
+            IOException {
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            throw new IOException(connection.getURL() + " returned " + code);
+        }
+
+        InputStream input = connection.getInputStream();
+        try {
+            if (GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+                input = new GZIPInputStream(input);
+            }
+            String text = new String(readAll(input), UTF_8);
+            return new JSONObject(text);
+        } catch (JSONException e) {
+            throw new IOException("Bad response from " + connection.getURL(), e);
+        } finally {
+            input.close();
+        }
+    }
+
+    static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length /
+                4 + 64);
+        GZIPOutputStream output = new GZIPOutputStream(compressed);
+        output.write(bytes);
+        output.close();
+        return compressed.toByteArray();
+    }
+
+    static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
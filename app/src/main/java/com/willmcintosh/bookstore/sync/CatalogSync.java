@@ -0,0 +1,475 @@
+package com.willmcintosh.bookstore.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.willmcintosh.bookstore.data.BookContract;
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.LedgerEntry;
+import com.willmcintosh.bookstore.data.BookContract.SyncEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Keeps this device's catalog in step with the catalog service, so every
+ * branch sees the same books. A sync pushes what changed here, then pulls
+ * what changed on the service, a page at a time:
+ * <ol>
+ * <li>Books changed since the last push are read from the change feed and
+ * posted to {@code books}. Each one carries the service version it was
+ * last synced at, and the service only takes the edit if it still has that
+ * version. Otherwise another branch got there first, its edit stands and
+ * this one is dropped when the book is pulled.</li>
+ * <li>Ledger entries logged since the last push are posted to
+ * {@code ledger}, numbered by their local ID. Sales, deliveries, stock
+ * moves and quantities typed into the editor are all entries, so the
+ * service adds up every branch's changes to a quantity instead of keeping
+ * whichever arrived last. It remembers the last entry it counted from each
+ * device, so an entry sent twice is only counted once.</li>
+ * <li>Books the service changed since the last pull are read from
+ * {@code changes} and applied through {@link SyncEntry}. The service's
+ * quantity counts this device's entries up to the last one it took, and
+ * any logged here since stay pending on top of it.</li>
+ * </ol>
+ * Each step saves its checkpoint after every page, so a sync that fails
+ * part way picks up where it stopped next time. Every step is also safe to
+ * repeat, so losing a checkpoint only costs sending a page again.
+ * <p>
+ * Every call blocks on the network, so this must only be used off the main
+ * thread.
+ */
+public final class CatalogSync {
+
+    public static final String LOG_TAG = CatalogSync.class.getSimpleName();
+
+    /**
+     * Paths of the service's endpoints
+     */
+    static final String PATH_BOOKS = "books";
+    static final String PATH_LEDGER = "ledger";
+    static final String PATH_CHANGES = "changes";
+
+    /**
+     * Query parameters of the changes endpoint
+     */
+    static final String PARAMETER_SINCE = "since";
+    static final String PARAMETER_LIMIT = "limit";
+    static final String PARAMETER_DEVICE = "device";
+
+    /**
+     * Keys of the request and response objects. Books are sent with the
+     * same keys as the {@link BookEntry} columns.
+     */
+    static final String KEY_DEVICE = "device";
+    static final String KEY_BOOKS = "books";
+    static final String KEY_ENTRIES = "entries";
+    static final String KEY_VERSION = "version";
+    static final String KEY_BASE_VERSION = "base_version";
+    static final String KEY_CONFLICT = "conflict";
+    static final String KEY_SEQ = "seq";
+    static final String KEY_THROUGH = "through";
+    static final String KEY_LEDGER_THROUGH = "ledger_through";
+
+    /**
+     * Books or ledger entries sent or asked for per request
+     */
+    static final int PAGE_SIZE = 500;
+
+    private static final String PREFERENCES = "catalog_sync";
+
+    private static final String PREF_DEVICE_ID = "device_id";
+
+    /**
+     * Row version and ID of the last change feed row pushed
+     */
+    private static final String PREF_PUSHED_VERSION = "pushed_version";
+    private static final String PREF_PUSHED_ID = "pushed_id";
+
+    /**
+     * ID of the last ledger entry the service has counted
+     */
+    private static final String PREF_LEDGER_THROUGH = "ledger_through";
+
+    /**
+     * Service version of the last change pulled
+     */
+    private static final String PREF_PULLED_VERSION = "pulled_version";
+
+    private static final String[] PUSH_COLUMNS = {BookEntry._ID, BookEntry
+            .COLUMN_UUID, BookEntry.COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY, BookEntry.COLUMN_SUPPLIER_NAME, BookEntry
+            .COLUMN_SUPPLIER_PHONE, BookEntry.COLUMN_ROW_VERSION, BookEntry
+            .COLUMN_REMOTE_VERSION, BookEntry.COLUMN_SYNCED_VERSION, BookEntry
+            .COLUMN_DELETED};
+
+    private static final String[] LEDGER_COLUMNS = {LedgerEntry._ID, LedgerEntry
+            .COLUMN_BOOK_ID, LedgerEntry.COLUMN_DELTA};
+
+    /**
+     * What one sync did
+     */
+    public static final class Result {
+
+        /**
+         * Books sent to the service, including deletes
+         */
+        public int pushedBooks;
+
+        /**
+         * Ledger entries the service counted
+         */
+        public int pushedEntries;
+
+        /**
+         * Books added, changed or deleted here from the service
+         */
+        public int pulledBooks;
+
+        /**
+         * Edits the service turned down because the book had changed there
+         */
+        public int conflicts;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "pushed %d books and %d entries, " +
+                    "pulled %d books, %d conflicts", pushedBooks, pushedEntries,
+                    pulledBooks, conflicts);
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final SharedPreferences mPreferences;
+
+    private final CatalogClient mClient;
+
+    private final String mDeviceId;
+
+    public CatalogSync(Context context, CatalogClient client) {
+        mResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context
+                .MODE_PRIVATE);
+        mClient = client;
+
+        String deviceId = mPreferences.getString(PREF_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            mPreferences.edit().putString(PREF_DEVICE_ID, deviceId).commit();
+        }
+        mDeviceId = deviceId;
+    }
+
+    /**
+     * Returns the ID this device is known to the service by.
+     */
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    /**
+     * Pushes local changes and pulls the service's.
+     *
+     * @throws IOException if the service can't be reached or a page fails.
+     *                     The pages done so far are kept.
+     */
+    public synchronized Result sync() throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        try {
+            pushBooks(result);
+            pushLedger(result);
+            pullBooks(result);
+        } catch (JSONException e) {
+            throw new IOException("Bad response from the catalog service", e);
+        }
+        Log.d(LOG_TAG, "Synced in " + (System.nanoTime() - start) / 1000000 + " ms: "
+                + result);
+        return result;
+    }
+
+    /**
+     * Pushes the books changed since the last push, a page of the change
+     * feed at a time.
+     */
+    private void pushBooks(Result result) throws IOException, JSONException {
+        long version = mPreferences.getLong(PREF_PUSHED_VERSION, 0);
+        long afterId = mPreferences.getLong(PREF_PUSHED_ID, 0);
+        long ledgerThrough = mPreferences.getLong(PREF_LEDGER_THROUGH, 0);
+
+        int rows;
+        do {
+            JSONArray books = new JSONArray();
+            HashMap<String, Long> rowVersions = new HashMap<>();
+            Cursor cursor = mResolver.query(BookEntry.buildChangesUri(version,
+                    afterId, PAGE_SIZE), PUSH_COLUMNS, null, null, null);
+            try {
+                rows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    version = cursor.getLong(7);
+                    afterId = cursor.getLong(0);
+                    JSONObject book = toJson(cursor, ledgerThrough);
+                    if (book != null) {
+                        books.put(book);
+                        if (!book.has(BookEntry.COLUMN_DELETED)) {
+                            rowVersions.put(cursor.getString(1), version);
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (books.length() != 0) {
+                JSONObject response = mClient.post(PATH_BOOKS, new JSONObject()
+                        .put(KEY_DEVICE, mDeviceId)
+                        .put(KEY_BOOKS, books));
+                markPushed(response.getJSONArray(KEY_BOOKS), rowVersions, result);
+                result.pushedBooks += books.length();
+            }
+
+            mPreferences.edit()
+                    .putLong(PREF_PUSHED_VERSION, version)
+                    .putLong(PREF_PUSHED_ID, afterId)
+                    .apply();
+        } while (rows == PAGE_SIZE);
+    }
+
+    /**
+     * Returns a change feed row as the service takes it, or null if there
+     * is nothing to push: the book was deleted before it got a UUID, or its
+     * last change was the sync engine's own.
+     */
+    private JSONObject toJson(Cursor cursor, long ledgerThrough) throws
+            JSONException {
+        String uuid = cursor.getString(1);
+        if (uuid == null) {
+            return null;
+        }
+        JSONObject book = new JSONObject().put(BookEntry.COLUMN_UUID, uuid);
+        if (cursor.getInt(10) != 0) {
+            return book.put(BookEntry.COLUMN_DELETED, 1);
+        }
+        if (cursor.getLong(7) == cursor.getLong(9)) {
+            return null;
+        }
+
+        long remoteVersion = cursor.getLong(8);
+        book.put(BookEntry.COLUMN_PRODUCT_NAME, cursor.getString(2))
+                .put(BookEntry.COLUMN_PRICE, cursor.getLong(3))
+                .put(BookEntry.COLUMN_SUPPLIER_NAME, cursor.getString(5))
+                .put(BookEntry.COLUMN_SUPPLIER_PHONE, cursor.getString(6))
+                .put(KEY_BASE_VERSION, remoteVersion);
+        if (remoteVersion == 0) {
+            // a new book starts at its quantity before the entries the
+            // ledger push is about to send, so they aren't counted twice
+            book.put(BookEntry.COLUMN_QUANTITY, cursor.getLong(4) - unpushed(cursor
+                    .getLong(0), ledgerThrough));
+        }
+        return book;
+    }
+
+    /**
+     * Returns the sum of a book's ledger entries after the given one.
+     */
+    private long unpushed(long bookId, long ledgerThrough) {
+        Cursor cursor = mResolver.query(LedgerEntry.buildBookUri(bookId), new
+                String[]{"IFNULL(SUM(" + LedgerEntry.COLUMN_DELTA + "), 0)"},
+                LedgerEntry._ID + " > ?", new String[]{String.valueOf(ledgerThrough)},
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Records the versions the service gave the pushed books, in one batch.
+     */
+    private void markPushed(JSONArray books, HashMap<String, Long> rowVersions,
+                            Result result) throws IOException, JSONException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < books.length(); i++) {
+            JSONObject book = books.getJSONObject(i);
+            String uuid = book.getString(BookEntry.COLUMN_UUID);
+            if (book.optBoolean(KEY_CONFLICT)) {
+                // the pull that follows brings the service's version in
+                Log.i(LOG_TAG, "Edit of book " + uuid + " lost to a newer one");
+                result.conflicts++;
+                continue;
+            }
+            Long rowVersion = rowVersions.get(uuid);
+            if (rowVersion == null) {
+                continue;
+            }
+            operations.add(ContentProviderOperation.newUpdate(SyncEntry
+                    .buildBookUri(uuid))
+                    .withValue(BookEntry.COLUMN_REMOTE_VERSION, book.getLong
+                            (KEY_VERSION))
+                    .withValue(BookEntry.COLUMN_ROW_VERSION, rowVersion)
+                    .build());
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mResolver.applyBatch(BookContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Failed to record the pushed books", e);
+        }
+    }
+
+    /**
+     * Pushes the ledger entries logged since the service last counted one,
+     * a page at a time. Stops early at an entry for a book the service
+     * doesn't have yet, which happens when the book was added after its
+     * page of the change feed was read. The next sync pushes the book first.
+     */
+    private void pushLedger(Result result) throws IOException, JSONException {
+        long through = mPreferences.getLong(PREF_LEDGER_THROUGH, 0);
+
+        while (true) {
+            long[] ids = new long[PAGE_SIZE];
+            long[] bookIds = new long[PAGE_SIZE];
+            long[] deltas = new long[PAGE_SIZE];
+            int rows = 0;
+            Cursor cursor = mResolver.query(BookEntry.buildPageUri(LedgerEntry
+                    .CONTENT_URI, through, PAGE_SIZE), LEDGER_COLUMNS, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids[rows] = cursor.getLong(0);
+                    bookIds[rows] = cursor.getLong(1);
+                    deltas[rows] = cursor.getLong(2);
+                    rows++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows == 0) {
+                return;
+            }
+
+            // entries for books deleted here go with a null UUID, so the
+            // service can count past them
+            LongSparseArray<String> uuids = findUuids(bookIds, rows);
+            JSONArray entries = new JSONArray();
+            for (int i = 0; i < rows; i++) {
+                String uuid = uuids.get(bookIds[i]);
+                entries.put(new JSONObject()
+                        .put(KEY_SEQ, ids[i])
+                        .put(BookEntry.COLUMN_UUID, uuid == null ? JSONObject.NULL :
+                                uuid)
+                        .put(LedgerEntry.COLUMN_DELTA, deltas[i]));
+            }
+
+            JSONObject response = mClient.post(PATH_LEDGER, new JSONObject()
+                    .put(KEY_DEVICE, mDeviceId)
+                    .put(KEY_ENTRIES, entries));
+            long accepted = response.getLong(KEY_THROUGH);
+            for (int i = 0; i < rows && ids[i] <= accepted; i++) {
+                if (ids[i] > through) {
+                    result.pushedEntries++;
+                }
+            }
+            if (accepted > through) {
+                through = accepted;
+                mPreferences.edit().putLong(PREF_LEDGER_THROUGH, through).apply();
+            }
+
+            if (accepted < ids[rows - 1] || rows < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the UUIDs of the given books, leaving out any that don't
+     * exist.
+     */
+    private LongSparseArray<String> findUuids(long[] bookIds, int count) {
+        StringBuilder selection = new StringBuilder(BookEntry._ID + " IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "" : ",").append(bookIds[i]);
+        }
+        selection.append(')');
+
+        LongSparseArray<String> uuids = new LongSparseArray<>();
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry
+                ._ID, BookEntry.COLUMN_UUID}, selection.toString(), null, null);
+        try {
+            while (cursor.moveToNext()) {
+                uuids.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return uuids;
+    }
+
+    /**
+     * Pulls the books the service changed since the last pull, a page at a
+     * time, and applies each page in one transaction.
+     */
+    private void pullBooks(Result result) throws IOException, JSONException {
+        long version = mPreferences.getLong(PREF_PULLED_VERSION, 0);
+
+        JSONArray books;
+        do {
+            JSONObject response = mClient.get(PATH_CHANGES + "?" + PARAMETER_SINCE +
+                    "=" + version + "&" + PARAMETER_LIMIT + "=" + PAGE_SIZE + "&" +
+                    PARAMETER_DEVICE + "=" + URLEncoder.encode(mDeviceId, "UTF-8"));
+            books = response.getJSONArray(KEY_BOOKS);
+
+            ContentValues[] values = new ContentValues[books.length()];
+            for (int i = 0; i < values.length; i++) {
+                JSONObject book = books.getJSONObject(i);
+                values[i] = toValues(book);
+                version = Math.max(version, book.getLong(KEY_VERSION));
+            }
+            if (values.length != 0) {
+                Uri uri = SyncEntry.buildApplyUri(response.getLong(KEY_LEDGER_THROUGH));
+                result.pulledBooks += mResolver.bulkInsert(uri, values);
+            }
+
+            mPreferences.edit().putLong(PREF_PULLED_VERSION, version).apply();
+        } while (books.length() == PAGE_SIZE);
+    }
+
+    private static ContentValues toValues(JSONObject book) throws JSONException {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_UUID, book.getString(BookEntry.COLUMN_UUID));
+        values.put(BookEntry.COLUMN_REMOTE_VERSION, book.getLong(KEY_VERSION));
+        if (book.optInt(BookEntry.COLUMN_DELETED) != 0) {
+            values.put(BookEntry.COLUMN_DELETED, 1);
+            return values;
+        }
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, book.getString(BookEntry
+                .COLUMN_PRODUCT_NAME));
+        values.put(BookEntry.COLUMN_PRICE, book.getInt(BookEntry.COLUMN_PRICE));
+        values.put(BookEntry.COLUMN_QUANTITY, book.getInt(BookEntry.COLUMN_QUANTITY));
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, book.getString(BookEntry
+                .COLUMN_SUPPLIER_NAME));
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, book.optString(BookEntry
+                .COLUMN_SUPPLIER_PHONE));
+        return values;
+    }
+}
@@ -0,0 +1,111 @@
+package com.willmcintosh.bookstore.benchmark;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Small JMH-style harness for the data layer benchmarks. An operation is run
+ * a number of times untimed to warm up the JIT, the statement caches and
+ * SQLite's page cache, then timed one call at a time so the results carry a
+ * latency distribution as well as a throughput.
+ */
+public final class Benchmark {
+
+    /**
+     * The code being measured. Called once per iteration, with the iteration
+     * number counting up from 0 across the warmup and measured runs.
+     */
+    public interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Runs an operation and prints its results.
+     *
+     * @param name       shown in the report
+     * @param warmup     number of untimed iterations
+     * @param iterations number of timed iterations
+     * @param opsPerCall number of operations each call performs, such as the
+     *                   rows in one bulk insert, so throughput is per row
+     */
+    public static Result run(String name, int warmup, int iterations, int opsPerCall,
+                             Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+
+        long[] latencies = new long[iterations];
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long callStart = System.nanoTime();
+            operation.run(warmup + i);
+            latencies[i] = System.nanoTime() - callStart;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Result result = new Result(name, latencies, elapsed, opsPerCall);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Runs an operation that performs one operation per call.
+     */
+    public static Result run(String name, int warmup, int iterations, Operation
+            operation) throws Exception {
+        return run(name, warmup, iterations, 1, operation);
+    }
+
+    /**
+     * Timings from one benchmark run.
+     */
+    public static final class Result {
+
+        public final String name;
+
+        private final long[] mSortedLatencies;
+
+        private final long mElapsedNanos;
+
+        private final int mOpsPerCall;
+
+        Result(String name, long[] latencies, long elapsedNanos, int opsPerCall) {
+            this.name = name;
+            mSortedLatencies = latencies.clone();
+            Arrays.sort(mSortedLatencies);
+            mElapsedNanos = elapsedNanos;
+            mOpsPerCall = opsPerCall;
+        }
+
+        /**
+         * Returns the number of operations per second over the timed run.
+         */
+        public double opsPerSecond() {
+            return (double) mSortedLatencies.length * mOpsPerCall * 1e9 /
+                    mElapsedNanos;
+        }
+
+        /**
+         * Returns the latency of one call at the given percentile, in
+         * nanoseconds.
+         */
+        public long percentile(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * mSortedLatencies.length)
+                    - 1;
+            return mSortedLatencies[Math.max(0, Math.min(index, mSortedLatencies
+                    .length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-32s %12.0f ops/s   p50 %9.1f us   " +
+                            "p90 %9.1f us   p99 %9.1f us   max %9.1f us", name,
+                    opsPerSecond(), percentile(50) / 1e3, percentile(90) / 1e3,
+                    percentile(99) / 1e3, mSortedLatencies[mSortedLatencies.length -
+                            1] / 1e3);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.willmcintosh.bookstore.benchmark;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v7.widget.RecyclerView;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.willmcintosh.bookstore.BookCursorAdapter;
+import com.willmcintosh.bookstore.R;
+import com.willmcintosh.bookstore.data.BookContract;
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cost of binding a list row in {@link BookCursorAdapter}, which runs for
+ * every row that scrolls onto the screen.
+ * <p>
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmarks --tests
+ * '*BookCursorAdapterBenchmark'}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookCursorAdapterBenchmark {
+
+    private static final String[] PROJECTION = {BookEntry._ID, BookEntry
+            .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY};
+
+    /**
+     * Views in the pool, about what a phone keeps for one screen of rows
+     */
+    private static final int HOLDERS = 12;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mContext = new ContextThemeWrapper(RuntimeEnvironment.application, R.style
+                .AppTheme);
+
+        ContentValues[] books = new ContentValues[BookCursorAdapter.PAGE_SIZE];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = BookProviderBenchmark.book(i);
+        }
+        mContext.getContentResolver().bulkInsert(BookEntry.CONTENT_URI, books);
+    }
+
+    // the holder type is private to the adapter's package, so bind through
+    // the raw type like RecyclerView itself does
+    @SuppressWarnings("unchecked")
+    @Test
+    public void bindViewHolder() throws Exception {
+        Cursor cursor = mContext.getContentResolver().query(BookEntry.buildPageUri
+                (0, BookCursorAdapter.PAGE_SIZE), PROJECTION, null, null, null);
+        final BookCursorAdapter bookAdapter = new BookCursorAdapter(mContext, new
+                BookCursorAdapter.OnBookClickListener() {
+            @Override
+            public void onBookClick(long id) {
+            }
+        });
+        bookAdapter.swapPage(0, cursor, 1);
+        assertEquals(BookCursorAdapter.PAGE_SIZE, bookAdapter.getItemCount());
+
+        final RecyclerView.Adapter adapter = bookAdapter;
+        FrameLayout parent = new FrameLayout(mContext);
+        final RecyclerView.ViewHolder[] holders = new RecyclerView.ViewHolder[HOLDERS];
+        for (int i = 0; i < HOLDERS; i++) {
+            holders[i] = adapter.createViewHolder(parent, 0);
+        }
+
+        Benchmark.run("bindViewHolder", 5000, 50000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                adapter.bindViewHolder(holders[iteration % HOLDERS], iteration %
+                        BookCursorAdapter.PAGE_SIZE);
+            }
+        });
+
+        bookAdapter.swapPage(0, null, 0);
+        cursor.close();
+    }
+}
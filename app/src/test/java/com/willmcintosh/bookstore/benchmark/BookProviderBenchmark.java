@@ -0,0 +1,200 @@
+package com.willmcintosh.bookstore.benchmark;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.willmcintosh.bookstore.data.BookContract;
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and latency of the main {@link BookProvider} paths, run on the
+ * JVM against Robolectric's SQLite. The numbers are only comparable between
+ * runs on the same machine, so watch them for regressions rather than
+ * reading them as device timings.
+ * <p>
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmarks --tests '*Benchmark'}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookProviderBenchmark {
+
+    /**
+     * Books in the catalog the read and sale benchmarks run against
+     */
+    private static final int CATALOG_SIZE = 5000;
+
+    /**
+     * Rows per call in the bulk insert benchmark
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private static final String[] LIST_PROJECTION = {BookEntry._ID, BookEntry
+            .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY};
+
+    private static final String[] EDITOR_PROJECTION = {BookEntry._ID, BookEntry
+            .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NAME, BookEntry.COLUMN_SUPPLIER_PHONE};
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void insert() throws Exception {
+        Benchmark.run("insert", 500, 5000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                assertNotNull(mResolver.insert(BookEntry.CONTENT_URI, book
+                        (iteration)));
+            }
+        });
+    }
+
+    @Test
+    public void bulkInsert() throws Exception {
+        Benchmark.run("bulkInsert (rows)", 10, 100, BATCH_SIZE, new Benchmark
+                .Operation() {
+            @Override
+            public void run(int iteration) {
+                ContentValues[] batch = new ContentValues[BATCH_SIZE];
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    batch[i] = book(iteration * BATCH_SIZE + i);
+                }
+                assertEquals(BATCH_SIZE, mResolver.bulkInsert(BookEntry.CONTENT_URI,
+                        batch));
+            }
+        });
+    }
+
+    @Test
+    public void queryById() throws Exception {
+        final long[] ids = seedCatalog();
+
+        // every query a different book, so nearly all of them miss the row
+        // cache and read SQLite
+        Benchmark.run("query BOOK_ID (cold)", 500, 5000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                readBook(ids[(iteration * 7919) % ids.length]);
+            }
+        });
+
+        // the same few books over and over, like reopening recent edits
+        Benchmark.run("query BOOK_ID (warm)", 500, 5000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                readBook(ids[iteration % 16]);
+            }
+        });
+    }
+
+    @Test
+    public void queryFullList() throws Exception {
+        seedCatalog();
+
+        Benchmark.run("query list + iterate (" + CATALOG_SIZE + ")", 5, 50, new
+                Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                Cursor cursor = mResolver.query(BookEntry.CONTENT_URI,
+                        LIST_PROJECTION, null, null, null);
+                try {
+                    int rows = 0;
+                    while (cursor.moveToNext()) {
+                        cursor.getLong(0);
+                        cursor.getString(1);
+                        cursor.getInt(2);
+                        cursor.getInt(3);
+                        rows++;
+                    }
+                    assertEquals(CATALOG_SIZE, rows);
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void sell() throws Exception {
+        final long[] ids = seedCatalog();
+
+        Benchmark.run("sell", 500, 5000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                mResolver.update(BookEntry.buildSellUri(ids[iteration % ids.length],
+                        1), null, null, null);
+            }
+        });
+    }
+
+    /**
+     * Reads every column of one book, the way the editor does.
+     */
+    private void readBook(long id) {
+        Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+        Cursor cursor = mResolver.query(uri, EDITOR_PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            for (int i = 0; i < EDITOR_PROJECTION.length; i++) {
+                cursor.getString(i);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Fills the catalog and returns the IDs of the new books.
+     */
+    private long[] seedCatalog() {
+        ContentValues[] books = new ContentValues[CATALOG_SIZE];
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            books[i] = book(i);
+        }
+        assertEquals(CATALOG_SIZE, mResolver.bulkInsert(BookEntry.CONTENT_URI,
+                books));
+
+        long[] ids = new long[CATALOG_SIZE];
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry
+                ._ID}, null, null, BookEntry._ID);
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    static ContentValues book(int i) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, "Book " + i);
+        values.put(BookEntry.COLUMN_PRICE, 500 + i % 1000);
+        // plenty of stock so the sale benchmark never runs out
+        values.put(BookEntry.COLUMN_QUANTITY, 1000 + i % 20);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + i % 40);
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "");
+        return values;
+    }
+}
@@ -0,0 +1,144 @@
+package com.willmcintosh.bookstore.benchmark;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.willmcintosh.bookstore.data.BookContract;
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookProvider;
+import com.willmcintosh.bookstore.sync.CatalogClient;
+import com.willmcintosh.bookstore.sync.CatalogSync;
+import com.willmcintosh.bookstore.sync.MockCatalogServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput of {@link CatalogSync} against {@link MockCatalogServer} on
+ * loopback, so it measures the provider and the encoding rather than a
+ * network.
+ * <p>
+ * Run with {@code ./gradlew testDebugUnitTest -Pbenchmarks --tests '*SyncBenchmark'}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SyncBenchmark {
+
+    private static final int CATALOG_SIZE = 5000;
+
+    /**
+     * Sales logged between syncs in the steady state benchmark
+     */
+    private static final int SALES_PER_SYNC = 100;
+
+    private ContentResolver mResolver;
+
+    private MockCatalogServer mServer;
+
+    private CatalogSync mSync;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mServer = new MockCatalogServer();
+        mSync = new CatalogSync(RuntimeEnvironment.application, new CatalogClient
+                (mServer.getUrl()));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void initialPush() throws Exception {
+        ContentValues[] books = new ContentValues[CATALOG_SIZE];
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            books[i] = new ContentValues();
+            books[i].put(BookEntry.COLUMN_PRODUCT_NAME, "Book " + i);
+            books[i].put(BookEntry.COLUMN_PRICE, 500 + i);
+            books[i].put(BookEntry.COLUMN_QUANTITY, 10 + i % 10);
+            books[i].put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + i % 50);
+            books[i].put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        }
+        assertEquals(CATALOG_SIZE, mResolver.bulkInsert(BookEntry.CONTENT_URI, books));
+
+        long start = System.nanoTime();
+        CatalogSync.Result result = mSync.sync();
+        report("initial push", CATALOG_SIZE, System.nanoTime() - start);
+        assertEquals(CATALOG_SIZE, result.pushedBooks);
+    }
+
+    @Test
+    public void initialPull() throws Exception {
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            mServer.addBook("Book " + i, 500 + i, 10 + i % 10, "Supplier " + i % 50,
+                    "+1-555-555-1234");
+        }
+
+        long start = System.nanoTime();
+        CatalogSync.Result result = mSync.sync();
+        report("initial pull", CATALOG_SIZE, System.nanoTime() - start);
+        assertEquals(CATALOG_SIZE, result.pulledBooks);
+    }
+
+    @Test
+    public void salesBetweenSyncs() throws Exception {
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            mServer.addBook("Book " + i, 500 + i, 1000, "Supplier " + i % 50,
+                    "+1-555-555-1234");
+        }
+        mSync.sync();
+
+        final long[] ids = new long[CATALOG_SIZE];
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry
+                ._ID}, null, null, BookEntry._ID);
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // each round also pulls back the books its own sales changed
+        Benchmark.run(SALES_PER_SYNC + " sales + sync", 3, 30, new Benchmark
+                .Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                for (int i = 0; i < SALES_PER_SYNC; i++) {
+                    mResolver.update(BookEntry.buildSellUri(ids[(iteration *
+                            SALES_PER_SYNC + i) * 7919 % ids.length], 1), null, null,
+                            null);
+                }
+                mSync.sync();
+            }
+        });
+
+        Benchmark.run("idle sync", 10, 100, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                mSync.sync();
+            }
+        });
+    }
+
+    private void report(String name, int books, long nanos) {
+        System.out.println(String.format(Locale.US, "%-32s %7.1f ms   %8.0f books/s" +
+                "   %.1fx compression", name, nanos / 1e6, books * 1e9 / nanos, (double)
+                mServer.getBytesRaw() / mServer.getBytesSent()));
+    }
+}
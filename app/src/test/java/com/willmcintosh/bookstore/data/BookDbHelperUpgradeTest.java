@@ -0,0 +1,173 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.StatsEntry;
+import com.willmcintosh.bookstore.data.BookContract.SupplierEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upgrades a populated version 1 database, as shipped before migrations
+ * existed, to the current version.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookDbHelperUpgradeTest {
+
+    private static final String DATABASE_NAME = "upgrade-test.db";
+
+    private Context mContext;
+
+    private BookDbHelper mHelper;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+
+        // the version 1 schema, straight from the original onCreate
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(mContext
+                .getDatabasePath(DATABASE_NAME), null);
+        try {
+            v1.execSQL("CREATE TABLE books (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "product_name TEXT NOT NULL, price INTEGER NOT NULL, quantity " +
+                    "INTEGER NOT NULL DEFAULT 0, supplier_name TEXT NOT NULL, " +
+                    "supplier_phone TEXT);");
+            insertV1Book(v1, "Dune", 999, 12, "Ace Books", "+1-555-555-0100");
+            insertV1Book(v1, "Emma", 550, 3, "Penguin", "+1-555-555-0200");
+            insertV1Book(v1, "Ulysses", 1250, 0, "Penguin", "");
+            insertV1Book(v1, "Beloved", 800, 7, "Ace Books", null);
+            // the highest ID handed out is gone, but must not be handed out again
+            v1.execSQL("DELETE FROM books WHERE _id = 4");
+            v1.setVersion(1);
+        } finally {
+            v1.close();
+        }
+
+        mHelper = new BookDbHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void keepsBooks() {
+        Cursor cursor = mDatabase.rawQuery("SELECT " + BookEntry._ID + ", " +
+                BookEntry.COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", " +
+                BookEntry.COLUMN_QUANTITY + ", " + BookEntry.COLUMN_SUPPLIER_NAME +
+                ", " + BookEntry.COLUMN_SUPPLIER_PHONE + " FROM " + BookEntry
+                .VIEW_NAME + " ORDER BY " + BookEntry._ID, null);
+        try {
+            assertEquals(3, cursor.getCount());
+            assertBook(cursor, 1, "Dune", 999, 12, "Ace Books", "+1-555-555-0100");
+            assertBook(cursor, 2, "Emma", 550, 3, "Penguin", "+1-555-555-0200");
+            // the supplier keeps the phone another of its books had
+            assertBook(cursor, 3, "Ulysses", 1250, 0, "Penguin", "+1-555-555-0200");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void mergesSuppliers() {
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDatabase, SupplierEntry
+                .TABLE_NAME));
+        assertEquals(2, DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM " +
+                BookEntry.TABLE_NAME + " b JOIN " + SupplierEntry.TABLE_NAME + " s ON" +
+                " s." + SupplierEntry._ID + " = b." + BookEntry.COLUMN_SUPPLIER_ID +
+                " WHERE s." + SupplierEntry.COLUMN_NAME + " = 'Penguin'", null));
+    }
+
+    @Test
+    public void indexesBooksForSearch() {
+        assertEquals(3, DatabaseUtils.longForQuery(mDatabase, "SELECT docid FROM " +
+                BookEntry.SEARCH_TABLE_NAME + " WHERE " + BookEntry.SEARCH_TABLE_NAME +
+                " MATCH 'ulysses'", null));
+        assertEquals(2, DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM " +
+                BookEntry.SEARCH_TABLE_NAME + " WHERE " + BookEntry.SEARCH_TABLE_NAME +
+                " MATCH 'penguin'", null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM " +
+                BookEntry.SEARCH_TABLE_NAME + " WHERE " + BookEntry.SEARCH_TABLE_NAME +
+                " MATCH 'beloved'", null));
+    }
+
+    @Test
+    public void seedsStats() {
+        Cursor cursor = mDatabase.rawQuery("SELECT " + StatsEntry.COLUMN_TITLE_COUNT +
+                ", " + StatsEntry.COLUMN_TOTAL_UNITS + ", " + StatsEntry
+                .COLUMN_TOTAL_VALUE + ", " + StatsEntry.COLUMN_LOW_STOCK_COUNT +
+                " FROM " + StatsEntry.TABLE_NAME, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getLong(0));
+            assertEquals(15, cursor.getLong(1));
+            assertEquals(999 * 12 + 550 * 3, cursor.getLong(2));
+            assertEquals(2, cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void keepsAutoincrementCounter() {
+        assertEquals(4, DatabaseUtils.longForQuery(mDatabase, "SELECT seq FROM " +
+                "sqlite_sequence WHERE name = ?", new String[]{BookEntry.TABLE_NAME}));
+
+        long supplierId = DatabaseUtils.longForQuery(mDatabase, "SELECT " +
+                SupplierEntry._ID + " FROM " + SupplierEntry.TABLE_NAME + " LIMIT 1",
+                null);
+        mDatabase.execSQL("INSERT INTO " + BookEntry.TABLE_NAME + " (" + BookEntry
+                .COLUMN_PRODUCT_NAME + ", " + BookEntry.COLUMN_PRICE + ", " +
+                BookEntry.COLUMN_QUANTITY + ", " + BookEntry.COLUMN_SUPPLIER_ID +
+                ") VALUES ('Middlemarch', 700, 1, ?)", new Object[]{supplierId});
+        assertEquals(5, DatabaseUtils.longForQuery(mDatabase, "SELECT MAX(" +
+                BookEntry._ID + ") FROM " + BookEntry.TABLE_NAME, null));
+    }
+
+    @Test
+    public void backfillsSyncColumns() {
+        assertEquals(3, DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(DISTINCT "
+                + BookEntry.COLUMN_UUID + ") FROM " + BookEntry.TABLE_NAME, null));
+        assertEquals(3, DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM " +
+                BookEntry.TABLE_NAME + " WHERE " + BookEntry.COLUMN_ROW_VERSION +
+                " = 1 AND " + BookEntry.COLUMN_SYNCED_VERSION + " = 0", null));
+    }
+
+    private static void insertV1Book(SQLiteDatabase db, String name, int price, int
+            quantity, String supplierName, String supplierPhone) {
+        db.execSQL("INSERT INTO books (product_name, price, quantity, supplier_name, " +
+                "supplier_phone) VALUES (?, ?, ?, ?, ?)", new Object[]{name, price,
+                quantity, supplierName, supplierPhone});
+    }
+
+    private static void assertBook(Cursor cursor, long id, String name, int price,
+                                   int quantity, String supplierName, String
+                                           supplierPhone) {
+        assertTrue(cursor.moveToNext());
+        assertEquals(id, cursor.getLong(0));
+        assertEquals(name, cursor.getString(1));
+        assertEquals(price, cursor.getInt(2));
+        assertEquals(quantity, cursor.getInt(3));
+        assertEquals(supplierName, cursor.getString(4));
+        assertEquals(supplierPhone, cursor.getString(5));
+    }
+}
@@ -0,0 +1,266 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.CacheEntry;
+import com.willmcintosh.bookstore.data.BookContract.LedgerEntry;
+import com.willmcintosh.bookstore.data.BookContract.LocationEntry;
+import com.willmcintosh.bookstore.data.BookContract.StockEntry;
+import com.willmcintosh.bookstore.data.BookContract.SupplierEntry;
+import com.willmcintosh.bookstore.data.BookContract.SyncEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Single book reads served from the row cache never return a row older than
+ * the last write to the book, whichever way the write came in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookProviderCacheTest {
+
+    private static final String[] BOOK_PROJECTION = {BookEntry.COLUMN_PRODUCT_NAME,
+            BookEntry.COLUMN_PRICE, BookEntry.COLUMN_QUANTITY, BookEntry
+            .COLUMN_SUPPLIER_PHONE};
+
+    private static final String[] CACHE_PROJECTION = {CacheEntry.COLUMN_HITS,
+            CacheEntry.COLUMN_MISSES, CacheEntry.COLUMN_EVICTIONS, CacheEntry
+            .COLUMN_SIZE, CacheEntry.COLUMN_MAX_SIZE};
+
+    private ContentResolver mResolver;
+
+    private long mBookId;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues book = new ContentValues();
+        book.put(BookEntry.COLUMN_PRODUCT_NAME, "Dune");
+        book.put(BookEntry.COLUMN_PRICE, 999);
+        book.put(BookEntry.COLUMN_QUANTITY, 10);
+        book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+        book.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        mBookId = ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, book));
+
+        // the first read fills the cache and the second is served from it
+        assertRead(false, BookEntry.COLUMN_QUANTITY, 10);
+        assertRead(true, BookEntry.COLUMN_QUANTITY, 10);
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        long[] counts = getCacheCounts();
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(0, counts[2]);
+        assertEquals(1, counts[3]);
+        assertTrue(counts[4] > 0);
+
+        // a book that isn't there is a miss and caches nothing
+        Cursor cursor = mResolver.query(bookUri(mBookId + 1), BOOK_PROJECTION, null,
+                null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        counts = getCacheCounts();
+        assertEquals(2, counts[1]);
+        assertEquals(1, counts[3]);
+    }
+
+    @Test
+    public void update() {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRICE, 1299);
+        assertEquals(1, mResolver.update(bookUri(mBookId), values, null, null));
+
+        assertFreshRead(BookEntry.COLUMN_PRICE, 1299);
+    }
+
+    @Test
+    public void sell() {
+        assertEquals(1, mResolver.update(BookEntry.buildSellUri(mBookId, 3), new
+                ContentValues(), null, null));
+
+        assertFreshRead(BookEntry.COLUMN_QUANTITY, 7);
+    }
+
+    @Test
+    public void ledgerInsert() {
+        ContentValues entry = new ContentValues();
+        entry.put(LedgerEntry.COLUMN_BOOK_ID, mBookId);
+        entry.put(LedgerEntry.COLUMN_DELTA, 5);
+        assertNotNull(mResolver.insert(LedgerEntry.CONTENT_URI, entry));
+
+        assertFreshRead(BookEntry.COLUMN_QUANTITY, 15);
+    }
+
+    @Test
+    public void stockChange() {
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_NAME, "Front table");
+        long locationId = ContentUris.parseId(mResolver.insert(LocationEntry
+                .CONTENT_URI, location));
+        ContentValues stock = new ContentValues();
+        stock.put(StockEntry.COLUMN_BOOK_ID, mBookId);
+        stock.put(StockEntry.COLUMN_QUANTITY, 4);
+        assertNotNull(mResolver.insert(LocationEntry.buildStockUri(locationId), stock));
+        assertFreshRead(BookEntry.COLUMN_QUANTITY, 14);
+
+        stock.clear();
+        stock.put(StockEntry.COLUMN_QUANTITY, 1);
+        assertEquals(1, mResolver.update(LocationEntry.buildStockUri(locationId,
+                mBookId), stock, null, null));
+        assertFreshRead(BookEntry.COLUMN_QUANTITY, 11);
+    }
+
+    @Test
+    public void supplierPhoneChange() {
+        long supplierId;
+        Cursor cursor = mResolver.query(SupplierEntry.CONTENT_URI, new String[]{
+                SupplierEntry._ID}, SupplierEntry.COLUMN_NAME + " = ?", new
+                String[]{"Random House"}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            supplierId = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(SupplierEntry.COLUMN_PHONE, "+1-555-555-9876");
+        assertEquals(1, mResolver.update(ContentUris.withAppendedId(SupplierEntry
+                .CONTENT_URI, supplierId), values, null, null));
+
+        assertFreshRead(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-9876");
+    }
+
+    @Test
+    public void applyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(bookUri(mBookId))
+                .withValue(BookEntry.COLUMN_PRODUCT_NAME, "Dune Messiah")
+                .build());
+        mResolver.applyBatch(BookContract.CONTENT_AUTHORITY, operations);
+
+        assertFreshRead(BookEntry.COLUMN_PRODUCT_NAME, "Dune Messiah");
+    }
+
+    @Test
+    public void syncApply() {
+        assertEquals(1, mResolver.update(BookEntry.buildSellUri(mBookId, 1), new
+                ContentValues(), null, null));
+        assertFreshRead(BookEntry.COLUMN_QUANTITY, 9);
+        long ledgerThrough;
+        Cursor cursor = mResolver.query(LedgerEntry.CONTENT_URI, new String[]{
+                LedgerEntry._ID}, null, null, LedgerEntry._ID + " DESC");
+        try {
+            assertTrue(cursor.moveToFirst());
+            ledgerThrough = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues book = new ContentValues();
+        book.put(BookEntry.COLUMN_UUID, getUuid());
+        book.put(BookEntry.COLUMN_REMOTE_VERSION, 1);
+        book.put(BookEntry.COLUMN_PRODUCT_NAME, "Dune");
+        book.put(BookEntry.COLUMN_PRICE, 1099);
+        book.put(BookEntry.COLUMN_QUANTITY, 6);
+        book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+        book.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        assertEquals(1, mResolver.bulkInsert(SyncEntry.buildApplyUri(ledgerThrough),
+                new ContentValues[]{book}));
+
+        assertFreshRead(BookEntry.COLUMN_QUANTITY, 6);
+        assertRead(true, BookEntry.COLUMN_PRICE, 1099);
+    }
+
+    /**
+     * Checks the first read after a write goes to the database and sees the
+     * write, and the read after it is served from the cache.
+     */
+    private void assertFreshRead(String column, Object expected) {
+        assertRead(false, column, expected);
+        assertRead(true, column, expected);
+    }
+
+    /**
+     * Reads the book, checks one of its columns and checks whether the read
+     * was served from the cache.
+     */
+    private void assertRead(boolean hit, String column, Object expected) {
+        long[] before = getCacheCounts();
+        Cursor cursor = mResolver.query(bookUri(mBookId), BOOK_PROJECTION, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            int index = cursor.getColumnIndexOrThrow(column);
+            if (expected instanceof Integer) {
+                assertEquals(expected, cursor.getInt(index));
+            } else {
+                assertEquals(expected, cursor.getString(index));
+            }
+        } finally {
+            cursor.close();
+        }
+        long[] after = getCacheCounts();
+        assertEquals("hits", before[0] + (hit ? 1 : 0), after[0]);
+        assertEquals("misses", before[1] + (hit ? 0 : 1), after[1]);
+    }
+
+    /**
+     * Returns the cache's hits, misses, evictions, size and maximum size.
+     */
+    private long[] getCacheCounts() {
+        Cursor cursor = mResolver.query(CacheEntry.CONTENT_URI, CACHE_PROJECTION, null,
+                null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            long[] counts = new long[CACHE_PROJECTION.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = cursor.getLong(cursor.getColumnIndexOrThrow
+                        (CACHE_PROJECTION[i]));
+            }
+            return counts;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getUuid() {
+        // the UUID isn't a cached column, so this read skips the cache
+        Cursor cursor = mResolver.query(bookUri(mBookId), new String[]{BookEntry
+                .COLUMN_UUID}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri bookUri(long id) {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+}
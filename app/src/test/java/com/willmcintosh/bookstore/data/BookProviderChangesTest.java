@@ -0,0 +1,148 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * The change feed's two checkpoints: row versions for edits and ledger
+ * versions for sales.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookProviderChangesTest {
+
+    private static final String[] PROJECTION = {BookEntry._ID, BookEntry
+            .COLUMN_QUANTITY, BookEntry.COLUMN_ROW_VERSION, BookEntry
+            .COLUMN_LEDGER_VERSION};
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void saleKeepsRowVersion() {
+        long id = insertBook("Dune", 10);
+        long version = getRowVersion(id);
+
+        assertEquals(1, sell(id, 2));
+
+        assertEquals(version, getRowVersion(id));
+        Cursor cursor = mResolver.query(BookEntry.buildChangesUri(version),
+                PROJECTION, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void ledgerChangesPageBySale() {
+        long first = insertBook("Dune", 10);
+        long second = insertBook("Emma", 10);
+        long third = insertBook("Ulysses", 10);
+        assertEquals(1, sell(second, 1));
+        assertEquals(1, sell(first, 1));
+        assertEquals(1, sell(second, 1));
+
+        // start after anything the inserts logged
+        long since = getLedgerVersion(third);
+        Cursor cursor = mResolver.query(BookEntry.buildLedgerChangesUri(since, 1),
+                PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(first, cursor.getLong(0));
+            assertEquals(9, cursor.getInt(1));
+            since = cursor.getLong(3);
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mResolver.query(BookEntry.buildLedgerChangesUri(since, 1),
+                PROJECTION, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(second, cursor.getLong(0));
+            assertEquals(8, cursor.getInt(1));
+            since = cursor.getLong(3);
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mResolver.query(BookEntry.buildLedgerChangesUri(since, 1),
+                PROJECTION, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownColumns() {
+        insertBook("Dune", 10);
+
+        mResolver.query(BookEntry.buildChangesUri(0), new String[]{BookEntry._ID,
+                "(SELECT COUNT(*) FROM sqlite_master)"}, null, null, null);
+    }
+
+    private long insertBook(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(BookEntry.COLUMN_PRICE, 999);
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        return ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, values));
+    }
+
+    private int sell(long id, int count) {
+        return mResolver.update(BookEntry.buildSellUri(id, count), new
+                ContentValues(), null, null);
+    }
+
+    private long getRowVersion(long id) {
+        return getChange(id)[0];
+    }
+
+    private long getLedgerVersion(long id) {
+        return getChange(id)[1];
+    }
+
+    /**
+     * Returns the book's row and ledger versions from the change feed.
+     */
+    private long[] getChange(long id) {
+        Cursor cursor = mResolver.query(BookEntry.buildChangesUri(0), PROJECTION,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(0) == id) {
+                    return new long[]{cursor.getLong(2), cursor.getLong(3)};
+                }
+            }
+            throw new AssertionError("Book " + id + " isn't on the change feed");
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.LedgerEntry;
+import com.willmcintosh.bookstore.data.BookContract.StatsEntry;
+import com.willmcintosh.bookstore.data.BookContract.SyncEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compacting the ledger changes how quantities are stored, never what any
+ * read returns.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookProviderCompactionTest {
+
+    private BookProvider mProvider;
+
+    private ContentResolver mResolver;
+
+    private long mDune;
+
+    private long mEmma;
+
+    private long mUlysses;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(BookProvider.class).create
+                (BookContract.CONTENT_AUTHORITY).get();
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        mDune = insertBook("Dune", 10);
+        mEmma = insertBook("Emma", 6);
+        mUlysses = insertBook("Ulysses", 3);
+    }
+
+    @Test
+    public void keepsReadsAcrossCompaction() {
+        assertEquals(1, sell(mDune, 2));
+        assertEquals(1, sell(mEmma, 2));
+        assertCompactionKeepsReads();
+
+        // sales on either side of each compaction
+        assertEquals(1, sell(mDune, 1));
+        assertNotNull(adjust(mUlysses, 4));
+        assertCompactionKeepsReads();
+        assertEquals(1, sell(mEmma, 1));
+        assertCompactionKeepsReads();
+        assertEquals(1, sell(mEmma, 1));
+        assertEquals(1, sell(mDune, 3));
+        assertCompactionKeepsReads();
+        // nothing left to fold
+        assertCompactionKeepsReads();
+
+        assertEquals(4, getQuantity(mDune));
+        assertEquals(2, getQuantity(mEmma));
+        assertEquals(7, getQuantity(mUlysses));
+        assertEquals("[" + mEmma + ", " + mDune + "]", getLowStock());
+    }
+
+    @Test
+    public void keepsReadsAcrossSyncRewind() {
+        assertEquals(1, sell(mDune, 2));
+        // the catalog service has counted the ledger up to this sale
+        long ledgerThrough = getLedgerHead();
+        assertEquals(1, sell(mDune, 1));
+        assertCompactionKeepsReads();
+        assertEquals(1, sell(mDune, 1));
+
+        // another branch sold 2 more, so the service has 10 - 2 - 2. The two
+        // sales here after ledger_through come off that, and one of them was
+        // compacted before the sync moved the mark back past it.
+        ContentValues book = new ContentValues();
+        book.put(BookEntry.COLUMN_UUID, getUuid(mDune));
+        book.put(BookEntry.COLUMN_REMOTE_VERSION, 1);
+        book.put(BookEntry.COLUMN_PRODUCT_NAME, "Dune");
+        book.put(BookEntry.COLUMN_PRICE, 999);
+        book.put(BookEntry.COLUMN_QUANTITY, 6);
+        book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+        book.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        assertEquals(1, mResolver.bulkInsert(SyncEntry.buildApplyUri(ledgerThrough),
+                new ContentValues[]{book}));
+
+        // the stored quantity is 6, so only the pending sales make it low
+        assertEquals(4, getQuantity(mDune));
+        assertEquals("[" + mUlysses + ", " + mDune + "]", getLowStock());
+        assertCompactionKeepsReads();
+
+        assertEquals(1, sell(mDune, 1));
+        assertCompactionKeepsReads();
+        assertEquals(3, getQuantity(mDune));
+    }
+
+    /**
+     * Compacts the ledger and checks every quantity, the low stock list and
+     * the statistics read the same before and after.
+     */
+    private void assertCompactionKeepsReads() {
+        String before = readAll();
+        mProvider.compactLedger();
+        assertEquals(before, readAll());
+    }
+
+    private String readAll() {
+        StringBuilder reads = new StringBuilder("quantities ");
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry
+                ._ID, BookEntry.COLUMN_QUANTITY}, null, null, BookEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                reads.append(cursor.getLong(0)).append('=').append(cursor.getInt(1))
+                        .append(' ');
+            }
+        } finally {
+            cursor.close();
+        }
+        reads.append("low stock ").append(getLowStock());
+
+        cursor = mResolver.query(StatsEntry.CONTENT_URI, new String[]{StatsEntry
+                .COLUMN_TITLE_COUNT, StatsEntry.COLUMN_TOTAL_UNITS, StatsEntry
+                .COLUMN_TOTAL_VALUE, StatsEntry.COLUMN_LOW_STOCK_COUNT}, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            reads.append(" stats");
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                reads.append(' ').append(cursor.getLong(i));
+            }
+        } finally {
+            cursor.close();
+        }
+        return reads.toString();
+    }
+
+    /**
+     * Returns the IDs of the books low on stock, lowest stock first.
+     */
+    private String getLowStock() {
+        StringBuilder ids = new StringBuilder("[");
+        Cursor cursor = mResolver.query(BookEntry.buildLowStockUri(StatsEntry
+                .LOW_STOCK_THRESHOLD), new String[]{BookEntry._ID}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (ids.length() > 1) {
+                    ids.append(", ");
+                }
+                ids.append(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids.append(']').toString();
+    }
+
+    private long insertBook(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(BookEntry.COLUMN_PRICE, 999);
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        return ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, values));
+    }
+
+    private int sell(long id, int count) {
+        return mResolver.update(BookEntry.buildSellUri(id, count), new
+                ContentValues(), null, null);
+    }
+
+    private Uri adjust(long id, int delta) {
+        ContentValues values = new ContentValues();
+        values.put(LedgerEntry.COLUMN_BOOK_ID, id);
+        values.put(LedgerEntry.COLUMN_DELTA, delta);
+        return mResolver.insert(LedgerEntry.CONTENT_URI, values);
+    }
+
+    private int getQuantity(long id) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(BookEntry
+                .CONTENT_URI, id), new String[]{BookEntry.COLUMN_QUANTITY}, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getUuid(long id) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(BookEntry
+                .CONTENT_URI, id), new String[]{BookEntry.COLUMN_UUID}, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long getLedgerHead() {
+        Cursor cursor = mResolver.query(LedgerEntry.CONTENT_URI, new String[]{LedgerEntry
+                ._ID}, null, null, LedgerEntry._ID + " DESC");
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.LedgerEntry;
+import com.willmcintosh.bookstore.data.BookContract.LocationEntry;
+import com.willmcintosh.bookstore.data.BookContract.StatsEntry;
+import com.willmcintosh.bookstore.data.BookContract.StockEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * The statistics row the triggers keep against the same figures added up
+ * over every book, after each kind of write.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookProviderStatsTest {
+
+    private static final String[] STATS_PROJECTION = {StatsEntry.COLUMN_TITLE_COUNT,
+            StatsEntry.COLUMN_TOTAL_UNITS, StatsEntry.COLUMN_TOTAL_VALUE, StatsEntry
+            .COLUMN_LOW_STOCK_COUNT};
+
+    private BookProvider mProvider;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(BookProvider.class).create
+                (BookContract.CONTENT_AUTHORITY).get();
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void matchesBooksAfterEveryWrite() {
+        long dune = insertBook("Dune", 999, 12);
+        assertStats(1);
+        long emma = insertBook("Emma", 550, 3);
+        long ulysses = insertBook("Ulysses", 1250, 6);
+        assertStats(3);
+
+        // edit price and quantity together, then each on its own
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRICE, 1099);
+        values.put(BookEntry.COLUMN_QUANTITY, 4);
+        assertEquals(1, mResolver.update(bookUri(dune), values, null, null));
+        assertStats(3);
+        values.clear();
+        values.put(BookEntry.COLUMN_QUANTITY, 9);
+        assertEquals(1, mResolver.update(bookUri(emma), values, null, null));
+        assertStats(3);
+
+        // sales and a restock go through the ledger
+        assertEquals(1, sell(ulysses, 2));
+        assertStats(3);
+        assertEquals(1, sell(emma, 5));
+        assertStats(3);
+        ContentValues entry = new ContentValues();
+        entry.put(LedgerEntry.COLUMN_BOOK_ID, dune);
+        entry.put(LedgerEntry.COLUMN_DELTA, 7);
+        assertNotNull(mResolver.insert(LedgerEntry.CONTENT_URI, entry));
+        assertStats(3);
+
+        mProvider.compactLedger();
+        assertStats(3);
+        assertEquals(1, sell(dune, 1));
+        assertStats(3);
+
+        // stock at a location adds to the book's quantity
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_NAME, "Front table");
+        long locationId = ContentUris.parseId(mResolver.insert(LocationEntry
+                .CONTENT_URI, location));
+        ContentValues stock = new ContentValues();
+        stock.put(StockEntry.COLUMN_BOOK_ID, ulysses);
+        stock.put(StockEntry.COLUMN_QUANTITY, 3);
+        assertNotNull(mResolver.insert(LocationEntry.buildStockUri(locationId), stock));
+        assertStats(3);
+        stock.clear();
+        stock.put(StockEntry.COLUMN_QUANTITY, 1);
+        assertEquals(1, mResolver.update(LocationEntry.buildStockUri(locationId,
+                ulysses), stock, null, null));
+        assertStats(3);
+
+        assertEquals(1, mResolver.delete(bookUri(emma), null, null));
+        assertStats(2);
+        mProvider.compactLedger();
+        assertStats(2);
+        assertEquals(1, mResolver.delete(bookUri(ulysses), null, null));
+        assertStats(1);
+    }
+
+    /**
+     * Checks the statistics row against the books as the list reads them.
+     */
+    private void assertStats(int titles) {
+        long units = 0;
+        long value = 0;
+        long lowStock = 0;
+        Cursor books = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry
+                .COLUMN_PRICE, BookEntry.COLUMN_QUANTITY}, null, null, null);
+        try {
+            assertEquals(titles, books.getCount());
+            while (books.moveToNext()) {
+                int quantity = books.getInt(1);
+                units += quantity;
+                value += (long) books.getInt(0) * quantity;
+                if (quantity < StatsEntry.LOW_STOCK_THRESHOLD) {
+                    lowStock++;
+                }
+            }
+        } finally {
+            books.close();
+        }
+
+        Cursor stats = mResolver.query(StatsEntry.CONTENT_URI, STATS_PROJECTION, null,
+                null, null);
+        try {
+            assertTrue(stats.moveToFirst());
+            assertEquals("titles", titles, stats.getLong(0));
+            assertEquals("units", units, stats.getLong(1));
+            assertEquals("value", value, stats.getLong(2));
+            assertEquals("low stock", lowStock, stats.getLong(3));
+        } finally {
+            stats.close();
+        }
+    }
+
+    private long insertBook(String name, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(BookEntry.COLUMN_PRICE, price);
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        return ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, values));
+    }
+
+    private int sell(long id, int count) {
+        return mResolver.update(BookEntry.buildSellUri(id, count), new
+                ContentValues(), null, null);
+    }
+
+    private static Uri bookUri(long id) {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+}
@@ -0,0 +1,160 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.LocationEntry;
+import com.willmcintosh.bookstore.data.BookContract.StockEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * A book's quantity against the stock held for it at locations.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BookProviderStockTest {
+
+    private ContentResolver mResolver;
+
+    private long mBookId;
+
+    private long mLocationId;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues book = new ContentValues();
+        book.put(BookEntry.COLUMN_PRODUCT_NAME, "Dune");
+        book.put(BookEntry.COLUMN_PRICE, 999);
+        book.put(BookEntry.COLUMN_QUANTITY, 10);
+        book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Random House");
+        book.put(BookEntry.COLUMN_SUPPLIER_PHONE, "+1-555-555-1234");
+        mBookId = ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, book));
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_NAME, "Front table");
+        mLocationId = ContentUris.parseId(mResolver.insert(LocationEntry
+                .CONTENT_URI, location));
+
+        // 10 copies with the book itself and 4 at the location
+        ContentValues stock = new ContentValues();
+        stock.put(StockEntry.COLUMN_BOOK_ID, mBookId);
+        stock.put(StockEntry.COLUMN_QUANTITY, 4);
+        mResolver.insert(LocationEntry.buildStockUri(mLocationId), stock);
+        assertEquals(14, getQuantity());
+    }
+
+    @Test
+    public void sellThenDeleteStock() {
+        // only the copies not held at the location can be sold from the catalog
+        assertEquals(0, sell(11));
+        assertEquals(14, getQuantity());
+        assertEquals(1, sell(10));
+        assertEquals(4, getQuantity());
+        assertEquals(0, sell(1));
+
+        assertEquals(1, mResolver.delete(LocationEntry.buildStockUri(mLocationId,
+                mBookId), null, null));
+        assertEquals(0, getQuantity());
+    }
+
+    @Test
+    public void sellThenDeleteLocation() {
+        assertEquals(1, sell(10));
+
+        assertEquals(1, mResolver.delete(ContentUris.withAppendedId(LocationEntry
+                .CONTENT_URI, mLocationId), null, null));
+        assertEquals(0, getQuantity());
+    }
+
+    @Test
+    public void rejectsQuantityBelowStock() {
+        try {
+            setQuantity(3);
+            fail("Quantity below the stock at locations was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(14, getQuantity());
+
+        assertEquals(1, setQuantity(4));
+        assertEquals(4, getQuantity());
+
+        assertEquals(1, mResolver.delete(LocationEntry.buildStockUri(mLocationId,
+                mBookId), null, null));
+        assertEquals(0, getQuantity());
+    }
+
+    @Test
+    public void rejectsBulkQuantityBelowStock() {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 3);
+        try {
+            mResolver.update(BookEntry.CONTENT_URI, values, null, null);
+            fail("Quantity below the stock at locations was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(14, getQuantity());
+    }
+
+    @Test
+    public void restocksAfterStockIsMoved() {
+        assertEquals(1, sell(10));
+
+        // raising the stock at the location adds to the total, and the book
+        // can always be restocked from the catalog
+        assertEquals(1, setStock(6));
+        assertEquals(6, getQuantity());
+        assertEquals(1, setQuantity(8));
+        assertEquals(1, sell(2));
+        assertEquals(6, getQuantity());
+    }
+
+    private int sell(int count) {
+        return mResolver.update(BookEntry.buildSellUri(mBookId, count), new
+                ContentValues(), null, null);
+    }
+
+    private int setQuantity(int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        return mResolver.update(bookUri(), values, null, null);
+    }
+
+    private int setStock(int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(StockEntry.COLUMN_QUANTITY, quantity);
+        return mResolver.update(LocationEntry.buildStockUri(mLocationId, mBookId),
+                values, null, null);
+    }
+
+    private int getQuantity() {
+        Cursor cursor = mResolver.query(bookUri(), new String[]{BookEntry
+                .COLUMN_QUANTITY}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Uri bookUri() {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, mBookId);
+    }
+}
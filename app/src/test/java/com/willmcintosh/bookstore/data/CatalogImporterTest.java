@@ -0,0 +1,163 @@
+package com.willmcintosh.bookstore.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Importing a catalog with a spreadsheet's quoting and line endings, and
+ * reporting the rows it can't take.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CatalogImporterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String HEADER = "product_name,price,quantity,supplier_name," +
+            "supplier_phone\r\n";
+
+    private ContentResolver mResolver;
+
+    private File mErrorReport;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mErrorReport = new File(RuntimeEnvironment.application.getCacheDir(),
+                "import-errors.csv");
+        mErrorReport.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mErrorReport.delete();
+    }
+
+    @Test
+    public void importsQuotedFields() throws IOException {
+        CatalogImporter.Result result = importCsv("\uFEFF" + HEADER +
+                "\"Dune, Deluxe\",999,12,Ace Books,+1-555-555-0100\r\n" +
+                "\"The \"\"Best\"\" Book\",550,3,Penguin,\r\n" +
+                "\"Two\r\nLines\",100,1,Penguin,\r\n" +
+                "Emma,550,3,Penguin,+1-555-555-0200");
+
+        assertEquals(4, result.imported);
+        assertEquals(0, result.rejected);
+        assertNull(result.errorReport);
+        assertFalse(mErrorReport.exists());
+
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry
+                .COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE, BookEntry
+                .COLUMN_QUANTITY, BookEntry.COLUMN_SUPPLIER_NAME}, null, null,
+                BookEntry._ID);
+        try {
+            assertEquals(4, cursor.getCount());
+            assertBook(cursor, "Dune, Deluxe", 999, 12, "Ace Books");
+            assertBook(cursor, "The \"Best\" Book", 550, 3, "Penguin");
+            assertBook(cursor, "Two\r\nLines", 100, 1, "Penguin");
+            assertBook(cursor, "Emma", 550, 3, "Penguin");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void reportsRejectedRows() throws IOException {
+        CatalogImporter.Result result = importCsv(HEADER +
+                "Dune,999,12,Ace Books,+1-555-555-0100\r\n" +
+                "\"Two\r\nLines\",100,1,Penguin,\r\n" +
+                "Short,100,1\r\n" +
+                "Cheap,abc,1,Penguin,\r\n" +
+                "\r\n" +
+                "Many,100,-2,Penguin,\r\n" +
+                "Phony,100,1,Penguin,not a phone\r\n" +
+                "Emma,550,3,Penguin,+1-555-555-0200\r\n");
+
+        assertEquals(3, result.imported);
+        assertEquals(4, result.rejected);
+        assertEquals(mErrorReport, result.errorReport);
+
+        ArrayList<ArrayList<String>> report = readReport();
+        assertEquals(5, report.size());
+        assertEquals(Arrays.asList("line", "error", "product_name", "price",
+                "quantity", "supplier_name", "supplier_phone"), report.get(0));
+        assertEquals(Arrays.asList("5", "Expected 5 fields but found 3", "Short",
+                "100", "1"), report.get(1));
+        assertEquals(Arrays.asList("6", "Book requires a valid price.", "Cheap",
+                "abc", "1", "Penguin", ""), report.get(2));
+        // the blank line above still counts
+        assertEquals(Arrays.asList("8", "Book requires a valid quantity.", "Many",
+                "100", "-2", "Penguin", ""), report.get(3));
+        assertEquals(Arrays.asList("9", "Book requires a valid supplier phone",
+                "Phony", "100", "1", "Penguin", "not a phone"), report.get(4));
+
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry
+                ._ID}, null, null, null);
+        try {
+            assertEquals(3, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHeaderWithoutBookColumns() throws IOException {
+        importCsv("title,price,quantity,supplier_name\r\nDune,999,12,Ace Books\r\n");
+    }
+
+    private CatalogImporter.Result importCsv(String csv) throws IOException {
+        byte[] bytes = csv.getBytes(UTF_8);
+        return new CatalogImporter(mResolver).importCsv(new ByteArrayInputStream
+                (bytes), bytes.length, mErrorReport, null);
+    }
+
+    private ArrayList<ArrayList<String>> readReport() throws IOException {
+        ArrayList<ArrayList<String>> records = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new
+                FileInputStream(mErrorReport), UTF_8));
+        try {
+            CsvReader reader = new CsvReader(in);
+            ArrayList<String> fields = new ArrayList<>();
+            while (reader.readRecord(fields)) {
+                records.add(new ArrayList<>(fields));
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static void assertBook(Cursor cursor, String name, int price, int
+            quantity, String supplierName) {
+        assertTrue(cursor.moveToNext());
+        assertEquals(name, cursor.getString(0));
+        assertEquals(price, cursor.getInt(1));
+        assertEquals(quantity, cursor.getInt(2));
+        assertEquals(supplierName, cursor.getString(3));
+    }
+}
@@ -0,0 +1,96 @@
+package com.willmcintosh.bookstore.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of the quoting, line endings and line numbers catalogs come with.
+ */
+public class CsvReaderTest {
+
+    private final ArrayList<String> mFields = new ArrayList<>();
+
+    @Test
+    public void readsQuotedCommasAndNewlines() throws IOException {
+        CsvReader reader = reader("a,\"b,c\",\"d\ne\"\nf,g,h\n");
+
+        assertRecord(reader, 1, "a", "b,c", "d\ne");
+        // the quoted line break moved the next record down a line
+        assertRecord(reader, 3, "f", "g", "h");
+        assertFalse(reader.readRecord(mFields));
+    }
+
+    @Test
+    public void readsDoubledQuotes() throws IOException {
+        CsvReader reader = reader("\"say \"\"hi\"\"\",\"\"\"\",x\n");
+
+        assertRecord(reader, 1, "say \"hi\"", "\"", "x");
+    }
+
+    @Test
+    public void readsCrlf() throws IOException {
+        CsvReader reader = reader("a,b\r\n\"c\r\nd\",e\r\nf,g");
+
+        assertRecord(reader, 1, "a", "b");
+        assertRecord(reader, 2, "c\r\nd", "e");
+        assertRecord(reader, 4, "f", "g");
+        assertFalse(reader.readRecord(mFields));
+    }
+
+    @Test
+    public void skipsByteOrderMark() throws IOException {
+        CsvReader reader = reader("\uFEFFname,price\n\uFEFFx,1\n");
+
+        assertRecord(reader, 1, "name", "price");
+        // only a mark at the very start of the file is dropped
+        assertRecord(reader, 2, "\uFEFFx", "1");
+    }
+
+    @Test
+    public void skipsBlankLines() throws IOException {
+        CsvReader reader = reader("\na\n\r\n\nb,\n");
+
+        assertRecord(reader, 2, "a");
+        assertRecord(reader, 5, "b", "");
+        assertFalse(reader.readRecord(mFields));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnterminatedQuote() throws IOException {
+        CsvReader reader = reader("a,\"b\nc\n");
+
+        reader.readRecord(mFields);
+    }
+
+    @Test
+    public void appendFieldRoundTrips() throws IOException {
+        String[] fields = {"plain", "with,comma", "with \"quotes\"", "two\nlines",
+                "cr\r\nlf", ""};
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            CsvReader.appendField(line, fields[i]);
+        }
+
+        assertRecord(reader(line.append('\n').toString()), 1, fields);
+    }
+
+    private static CsvReader reader(String csv) {
+        return new CsvReader(new StringReader(csv));
+    }
+
+    private void assertRecord(CsvReader reader, int lineNumber, String... fields)
+            throws IOException {
+        assertTrue(reader.readRecord(mFields));
+        assertEquals(Arrays.asList(fields), mFields);
+        assertEquals(lineNumber, reader.getRecordLineNumber());
+    }
+}
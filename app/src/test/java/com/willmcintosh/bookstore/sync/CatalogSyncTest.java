@@ -0,0 +1,356 @@
+package com.willmcintosh.bookstore.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.willmcintosh.bookstore.data.BookContract;
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Syncs the provider against {@link MockCatalogServer}, with the server's
+ * helpers standing in for the other branches.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CatalogSyncTest {
+
+    private static final String[] BOOK_PROJECTION = {BookEntry._ID, BookEntry
+            .COLUMN_UUID, BookEntry.COLUMN_PRODUCT_NAME, BookEntry.COLUMN_PRICE,
+            BookEntry.COLUMN_QUANTITY, BookEntry.COLUMN_SUPPLIER_NAME, BookEntry
+            .COLUMN_SUPPLIER_PHONE};
+
+    private static final String SUPPLIER_NAME = "Random House";
+
+    private static final String SUPPLIER_PHONE = "+1-555-555-1234";
+
+    private ContentResolver mResolver;
+
+    private MockCatalogServer mServer;
+
+    private CatalogSync mSync;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.buildContentProvider(BookProvider.class).create(BookContract
+                .CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mServer = new MockCatalogServer();
+        mSync = new CatalogSync(RuntimeEnvironment.application, new CatalogClient
+                (mServer.getUrl()));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void pushesNewBooks() throws Exception {
+        long first = insertBook("First", 500, 10);
+        insertBook("Second", 600, 5);
+        insertBook("Third", 700, 0);
+        assertEquals(1, sell(first, 1));
+
+        CatalogSync.Result result = mSync.sync();
+
+        assertEquals(3, result.pushedBooks);
+        assertEquals(3, mServer.getBooks().size());
+        MockCatalogServer.Book book = mServer.getBook(getUuid(first));
+        assertEquals("First", book.name);
+        assertEquals(500, book.price);
+        assertEquals(9, book.quantity);
+        assertEquals(SUPPLIER_NAME, book.supplierName);
+        assertEquals(SUPPLIER_PHONE, book.supplierPhone);
+        assertCatalogsEqual();
+    }
+
+    @Test
+    public void pullsRemoteBooks() throws Exception {
+        String uuid = mServer.addBook("Remote", 800, 4, "Penguin", "+1-555-555-9876");
+        mServer.addBook("Other remote", 900, 2, SUPPLIER_NAME, SUPPLIER_PHONE);
+
+        CatalogSync.Result result = mSync.sync();
+
+        assertEquals(2, result.pulledBooks);
+        ContentValues book = getBook(uuid);
+        assertEquals("Remote", book.getAsString(BookEntry.COLUMN_PRODUCT_NAME));
+        assertEquals(800, (int) book.getAsInteger(BookEntry.COLUMN_PRICE));
+        assertEquals(4, (int) book.getAsInteger(BookEntry.COLUMN_QUANTITY));
+        assertEquals("Penguin", book.getAsString(BookEntry.COLUMN_SUPPLIER_NAME));
+        assertCatalogsEqual();
+    }
+
+    @Test
+    public void mergesConcurrentSales() throws Exception {
+        long id = insertBook("Shared", 500, 10);
+        mSync.sync();
+        String uuid = getUuid(id);
+
+        assertEquals(1, sell(id, 3));
+        mServer.adjust(uuid, -2);
+        mSync.sync();
+
+        assertEquals(5, mServer.getBook(uuid).quantity);
+        assertEquals(5, (int) getBook(uuid).getAsInteger(BookEntry.COLUMN_QUANTITY));
+    }
+
+    @Test
+    public void mergesQuantityEditWithRemoteSales() throws Exception {
+        long id = insertBook("Restocked", 500, 10);
+        mSync.sync();
+        String uuid = getUuid(id);
+
+        // a delivery of 10 typed into the editor here, 2 sold elsewhere
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_QUANTITY, 20);
+        assertEquals(1, mResolver.update(bookUri(id), values, null, null));
+        mServer.adjust(uuid, -2);
+        mSync.sync();
+
+        assertEquals(18, mServer.getBook(uuid).quantity);
+        assertEquals(18, (int) getBook(uuid).getAsInteger(BookEntry.COLUMN_QUANTITY));
+    }
+
+    @Test
+    public void remoteEditWinsConflict() throws Exception {
+        long id = insertBook("Contested", 500, 10);
+        mSync.sync();
+        String uuid = getUuid(id);
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRICE, 700);
+        assertEquals(1, mResolver.update(bookUri(id), values, null, null));
+        mServer.editBook(uuid, "Contested", 900);
+        CatalogSync.Result result = mSync.sync();
+
+        assertEquals(1, result.conflicts);
+        assertEquals(900, mServer.getBook(uuid).price);
+        assertEquals(900, (int) getBook(uuid).getAsInteger(BookEntry.COLUMN_PRICE));
+
+        // once pulled, the book is in step and a second sync has nothing to do
+        result = mSync.sync();
+        assertEquals(0, result.pushedBooks);
+        assertEquals(0, result.pulledBooks);
+    }
+
+    @Test
+    public void propagatesDeletes() throws Exception {
+        long local = insertBook("Deleted here", 500, 10);
+        long remote = insertBook("Deleted there", 600, 10);
+        mSync.sync();
+        String localUuid = getUuid(local);
+        String remoteUuid = getUuid(remote);
+
+        assertEquals(1, mResolver.delete(bookUri(local), null, null));
+        mServer.deleteBook(remoteUuid);
+        mSync.sync();
+
+        assertTrue(mServer.getBook(localUuid).deleted);
+        assertNull(getBook(remoteUuid));
+        assertCatalogsEqual();
+    }
+
+    @Test
+    public void resumesAfterFailure() throws Exception {
+        int count = CatalogSync.PAGE_SIZE * 2 + 200;
+        ContentValues[] books = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            books[i] = book("Book " + i, 500 + i, i % 7);
+        }
+        assertEquals(count, mResolver.bulkInsert(BookEntry.CONTENT_URI, books));
+
+        // the second page fails
+        mServer.failAfter(1);
+        try {
+            mSync.sync();
+            fail("Sync should fail when the service does");
+        } catch (IOException expected) {
+        }
+        assertEquals(CatalogSync.PAGE_SIZE, mServer.getBooks().size());
+
+        mServer.failAfter(-1);
+        mSync.sync();
+
+        // the first page isn't sent again
+        assertEquals(count, mServer.getBooksReceived());
+        assertEquals(count, mServer.getBooks().size());
+        assertCatalogsEqual();
+    }
+
+    @Test
+    public void convergesUnderConcurrentEdits() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            insertBook("Local " + i, 500 + i, 10);
+            mServer.addBook("Remote " + i, 600 + i, 10, SUPPLIER_NAME, SUPPLIER_PHONE);
+        }
+        mSync.sync();
+        assertCatalogsEqual();
+
+        for (int round = 0; round < 20; round++) {
+            ArrayList<Long> ids = new ArrayList<>();
+            ArrayList<String> uuids = new ArrayList<>();
+            Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{
+                    BookEntry._ID, BookEntry.COLUMN_UUID}, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                    uuids.add(cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (int i = 0; i < 30; i++) {
+                long id = ids.get(random.nextInt(ids.size()));
+                int operation = random.nextInt(20);
+                if (operation < 12) {
+                    sell(id, 1 + random.nextInt(3));
+                } else if (operation < 15) {
+                    ContentValues values = new ContentValues();
+                    values.put(BookEntry.COLUMN_QUANTITY, random.nextInt(30));
+                    mResolver.update(bookUri(id), values, null, null);
+                } else if (operation < 18) {
+                    ContentValues values = new ContentValues();
+                    values.put(BookEntry.COLUMN_PRICE, 100 + random.nextInt(1000));
+                    mResolver.update(bookUri(id), values, null, null);
+                } else if (operation < 19) {
+                    insertBook("Local " + round + "-" + i, 500, random.nextInt(10));
+                } else {
+                    mResolver.delete(bookUri(id), null, null);
+                }
+            }
+
+            for (int i = 0; i < 30; i++) {
+                String uuid = uuids.get(random.nextInt(uuids.size()));
+                MockCatalogServer.Book book = mServer.getBook(uuid);
+                if (book == null || book.deleted) {
+                    continue;
+                }
+                int operation = random.nextInt(20);
+                if (operation < 14) {
+                    mServer.adjust(uuid, 2 - random.nextInt(6));
+                } else if (operation < 18) {
+                    mServer.editBook(uuid, book.name, 100 + random.nextInt(1000));
+                } else if (operation < 19) {
+                    mServer.addBook("Remote " + round + "-" + i, 600, random.nextInt
+                            (10), SUPPLIER_NAME, SUPPLIER_PHONE);
+                } else {
+                    mServer.deleteBook(uuid);
+                }
+            }
+
+            mSync.sync();
+            assertCatalogsEqual();
+        }
+
+        CatalogSync.Result result = mSync.sync();
+        assertEquals(0, result.pushedBooks);
+        assertEquals(0, result.pushedEntries);
+        assertEquals(0, result.pulledBooks);
+    }
+
+    private void assertCatalogsEqual() {
+        HashMap<String, String> local = new HashMap<>();
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, BOOK_PROJECTION,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                local.put(cursor.getString(1), cursor.getString(2) + "|" + cursor
+                        .getInt(3) + "|" + cursor.getInt(4) + "|" + cursor.getString(5)
+                        + "|" + cursor.getString(6));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        HashMap<String, String> remote = new HashMap<>();
+        for (Map.Entry<String, MockCatalogServer.Book> entry : mServer.getBooks()
+                .entrySet()) {
+            MockCatalogServer.Book book = entry.getValue();
+            remote.put(entry.getKey(), book.name + "|" + book.price + "|" + book
+                    .quantity + "|" + book.supplierName + "|" + book.supplierPhone);
+        }
+
+        assertEquals(remote, local);
+    }
+
+    private long insertBook(String name, int price, int quantity) {
+        return ContentUris.parseId(mResolver.insert(BookEntry.CONTENT_URI, book
+                (name, price, quantity)));
+    }
+
+    private int sell(long id, int count) {
+        return mResolver.update(BookEntry.buildSellUri(id, count), new
+                ContentValues(), null, null);
+    }
+
+    private String getUuid(long id) {
+        Cursor cursor = mResolver.query(bookUri(id), new String[]{BookEntry
+                .COLUMN_UUID}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the book with the UUID as it reads here, or null if there is
+     * none.
+     */
+    private ContentValues getBook(String uuid) {
+        Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, BOOK_PROJECTION,
+                BookEntry.COLUMN_UUID + " = ?", new String[]{uuid}, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_PRODUCT_NAME, cursor.getString(2));
+            values.put(BookEntry.COLUMN_PRICE, cursor.getInt(3));
+            values.put(BookEntry.COLUMN_QUANTITY, cursor.getInt(4));
+            values.put(BookEntry.COLUMN_SUPPLIER_NAME, cursor.getString(5));
+            values.put(BookEntry.COLUMN_SUPPLIER_PHONE, cursor.getString(6));
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Uri bookUri(long id) {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+
+    private static ContentValues book(String name, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_PRODUCT_NAME, name);
+        values.put(BookEntry.COLUMN_PRICE, price);
+        values.put(BookEntry.COLUMN_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, SUPPLIER_NAME);
+        values.put(BookEntry.COLUMN_SUPPLIER_PHONE, SUPPLIER_PHONE);
+        return values;
+    }
+}
@@ -0,0 +1,468 @@
+package com.willmcintosh.bookstore.sync;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.willmcintosh.bookstore.data.BookContract.BookEntry;
+import com.willmcintosh.bookstore.data.BookContract.LedgerEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-process stand-in for the catalog service, speaking the protocol
+ * {@link CatalogSync} expects on a loopback port. The catalog lives in
+ * memory and every change gets its own version, so the change feed pages
+ * exactly.
+ * <p>
+ * Other branches are played by calling {@link #addBook}, {@link #editBook},
+ * {@link #adjust} and {@link #deleteBook} directly, which change the
+ * catalog the way their syncs would.
+ */
+public class MockCatalogServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String GZIP = "gzip";
+
+    /**
+     * A book as the service holds it
+     */
+    public static final class Book {
+        public String uuid;
+        public String name;
+        public int price;
+        public int quantity;
+        public String supplierName;
+        public String supplierPhone;
+        public long version;
+        public boolean deleted;
+
+        private JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject()
+                    .put(BookEntry.COLUMN_UUID, uuid)
+                    .put(CatalogSync.KEY_VERSION, version);
+            if (deleted) {
+                return json.put(BookEntry.COLUMN_DELETED, 1);
+            }
+            return json.put(BookEntry.COLUMN_PRODUCT_NAME, name)
+                    .put(BookEntry.COLUMN_PRICE, price)
+                    .put(BookEntry.COLUMN_QUANTITY, quantity)
+                    .put(BookEntry.COLUMN_SUPPLIER_NAME, supplierName)
+                    .put(BookEntry.COLUMN_SUPPLIER_PHONE, supplierPhone);
+        }
+
+        private boolean sameFields(JSONObject json) {
+            return name.equals(json.optString(BookEntry.COLUMN_PRODUCT_NAME)) &&
+                    price == json.optInt(BookEntry.COLUMN_PRICE) && supplierName
+                    .equals(json.optString(BookEntry.COLUMN_SUPPLIER_NAME)) &&
+                    supplierPhone.equals(json.optString(BookEntry
+                            .COLUMN_SUPPLIER_PHONE));
+        }
+    }
+
+    private final HttpServer mServer;
+
+    private final HashMap<String, Book> mBooks = new HashMap<>();
+
+    /**
+     * UUID of the book each version belongs to, for the change feed
+     */
+    private final TreeMap<Long, String> mChanges = new TreeMap<>();
+
+    /**
+     * Last ledger entry counted from each device
+     */
+    private final HashMap<String, Long> mLedgerThrough = new HashMap<>();
+
+    private long mVersion;
+
+    private int mFailAfter = -1;
+
+    private int mRequests;
+
+    private int mBooksReceived;
+
+    private int mEntriesReceived;
+
+    private long mBytesRaw;
+
+    private long mBytesSent;
+
+    public MockCatalogServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName
+                ("127.0.0.1"), 0), 0);
+        mServer.createContext("/" + CatalogSync.PATH_BOOKS, new Handler() {
+            @Override
+            JSONObject handle(JSONObject request, Map<String, String> query) throws
+                    JSONException {
+                return postBooks(request);
+            }
+        });
+        mServer.createContext("/" + CatalogSync.PATH_LEDGER, new Handler() {
+            @Override
+            JSONObject handle(JSONObject request, Map<String, String> query) throws
+                    JSONException {
+                return postLedger(request);
+            }
+        });
+        mServer.createContext("/" + CatalogSync.PATH_CHANGES, new Handler() {
+            @Override
+            JSONObject handle(JSONObject request, Map<String, String> query) throws
+                    JSONException {
+                return getChanges(query);
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * Returns the URL to give {@link CatalogClient}.
+     */
+    public URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/");
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    /**
+     * Answers every request after the next count with an error, until
+     * called again with -1.
+     */
+    public synchronized void failAfter(int count) {
+        mFailAfter = count;
+    }
+
+    /**
+     * Returns the requests answered so far, failed ones included.
+     */
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * Returns the books received in successful pushes, repeats included.
+     */
+    public synchronized int getBooksReceived() {
+        return mBooksReceived;
+    }
+
+    /**
+     * Returns the ledger entries received in successful pushes, repeats
+     * included.
+     */
+    public synchronized int getEntriesReceived() {
+        return mEntriesReceived;
+    }
+
+    /**
+     * Returns the bytes of JSON sent both ways before compression.
+     */
+    public synchronized long getBytesRaw() {
+        return mBytesRaw;
+    }
+
+    /**
+     * Returns the bytes of JSON sent both ways as they went over the wire.
+     */
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Adds a book as another branch would, returning its UUID.
+     */
+    public synchronized String addBook(String name, int price, int quantity,
+                                       String supplierName, String supplierPhone) {
+        Book book = new Book();
+        book.uuid = UUID.randomUUID().toString().replace("-", "");
+        book.name = name;
+        book.price = price;
+        book.quantity = quantity;
+        book.supplierName = supplierName;
+        book.supplierPhone = supplierPhone;
+        mBooks.put(book.uuid, book);
+        touch(book);
+        return book.uuid;
+    }
+
+    /**
+     * Changes a book's name and price as another branch would.
+     */
+    public synchronized void editBook(String uuid, String name, int price) {
+        Book book = mBooks.get(uuid);
+        book.name = name;
+        book.price = price;
+        touch(book);
+    }
+
+    /**
+     * Changes a book's quantity by the delta, as another branch's sale or
+     * delivery would.
+     */
+    public synchronized void adjust(String uuid, int delta) {
+        Book book = mBooks.get(uuid);
+        book.quantity += delta;
+        touch(book);
+    }
+
+    /**
+     * Deletes a book as another branch would.
+     */
+    public synchronized void deleteBook(String uuid) {
+        Book book = mBooks.get(uuid);
+        book.deleted = true;
+        touch(book);
+    }
+
+    /**
+     * Returns the book with the UUID, or null if it was never added.
+     */
+    public synchronized Book getBook(String uuid) {
+        return mBooks.get(uuid);
+    }
+
+    /**
+     * Returns the books that aren't deleted, by UUID.
+     */
+    public synchronized Map<String, Book> getBooks() {
+        HashMap<String, Book> books = new HashMap<>();
+        for (Book book : mBooks.values()) {
+            if (!book.deleted) {
+                books.put(book.uuid, book);
+            }
+        }
+        return books;
+    }
+
+    /**
+     * Gives a book a new version and moves it to the end of the change feed.
+     */
+    private void touch(Book book) {
+        if (book.version != 0) {
+            mChanges.remove(book.version);
+        }
+        book.version = ++mVersion;
+        mChanges.put(book.version, book.uuid);
+    }
+
+    private synchronized JSONObject postBooks(JSONObject request) throws
+            JSONException {
+        JSONArray books = request.getJSONArray(CatalogSync.KEY_BOOKS);
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < books.length(); i++) {
+            JSONObject pushed = books.getJSONObject(i);
+            String uuid = pushed.getString(BookEntry.COLUMN_UUID);
+            Book book = mBooks.get(uuid);
+            JSONObject result = new JSONObject().put(BookEntry.COLUMN_UUID, uuid);
+            results.put(result);
+            mBooksReceived++;
+
+            if (pushed.optInt(BookEntry.COLUMN_DELETED) != 0) {
+                if (book != null && !book.deleted) {
+                    book.deleted = true;
+                    touch(book);
+                }
+                result.put(CatalogSync.KEY_VERSION, book == null ? 0 : book.version);
+                continue;
+            }
+
+            long base = pushed.getLong(CatalogSync.KEY_BASE_VERSION);
+            if (book == null) {
+                if (base != 0) {
+                    // only happens if the service lost the book
+                    result.put(CatalogSync.KEY_CONFLICT, true);
+                    continue;
+                }
+                book = new Book();
+                book.uuid = uuid;
+                book.quantity = pushed.getInt(BookEntry.COLUMN_QUANTITY);
+                setFields(book, pushed);
+                mBooks.put(uuid, book);
+                touch(book);
+            } else if (book.deleted) {
+                result.put(CatalogSync.KEY_CONFLICT, true);
+                continue;
+            } else if (!book.sameFields(pushed)) {
+                if (base != book.version) {
+                    result.put(CatalogSync.KEY_CONFLICT, true);
+                    continue;
+                }
+                setFields(book, pushed);
+                touch(book);
+            }
+            result.put(CatalogSync.KEY_VERSION, book.version);
+        }
+        return new JSONObject().put(CatalogSync.KEY_BOOKS, results);
+    }
+
+    private static void setFields(Book book, JSONObject pushed) throws
+            JSONException {
+        book.name = pushed.getString(BookEntry.COLUMN_PRODUCT_NAME);
+        book.price = pushed.getInt(BookEntry.COLUMN_PRICE);
+        book.supplierName = pushed.getString(BookEntry.COLUMN_SUPPLIER_NAME);
+        book.supplierPhone = pushed.optString(BookEntry.COLUMN_SUPPLIER_PHONE);
+    }
+
+    private synchronized JSONObject postLedger(JSONObject request) throws
+            JSONException {
+        String device = request.getString(CatalogSync.KEY_DEVICE);
+        JSONArray entries = request.getJSONArray(CatalogSync.KEY_ENTRIES);
+        long through = getLedgerThrough(device);
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+            mEntriesReceived++;
+            long seq = entry.getLong(CatalogSync.KEY_SEQ);
+            if (seq <= through) {
+                continue;
+            }
+            if (!entry.isNull(BookEntry.COLUMN_UUID)) {
+                Book book = mBooks.get(entry.getString(BookEntry.COLUMN_UUID));
+                if (book == null) {
+                    // not pushed yet, so the rest waits for the next sync
+                    break;
+                }
+                if (!book.deleted) {
+                    book.quantity += entry.getInt(LedgerEntry.COLUMN_DELTA);
+                    touch(book);
+                }
+            }
+            through = seq;
+        }
+        mLedgerThrough.put(device, through);
+        return new JSONObject().put(CatalogSync.KEY_THROUGH, through);
+    }
+
+    private synchronized JSONObject getChanges(Map<String, String> query) throws
+            JSONException {
+        long since = Long.parseLong(query.get(CatalogSync.PARAMETER_SINCE));
+        int limit = Integer.parseInt(query.get(CatalogSync.PARAMETER_LIMIT));
+        JSONArray books = new JSONArray();
+        for (String uuid : mChanges.tailMap(since, false).values()) {
+            if (books.length() == limit) {
+                break;
+            }
+            books.put(mBooks.get(uuid).toJson());
+        }
+        return new JSONObject()
+                .put(CatalogSync.KEY_BOOKS, books)
+                .put(CatalogSync.KEY_LEDGER_THROUGH, getLedgerThrough(query.get
+                        (CatalogSync.PARAMETER_DEVICE)));
+    }
+
+    private long getLedgerThrough(String device) {
+        Long through = mLedgerThrough.get(device);
+        return through == null ? 0 : through;
+    }
+
+    private synchronized boolean shouldFail() {
+        mRequests++;
+        if (mFailAfter < 0) {
+            return false;
+        }
+        if (mFailAfter == 0) {
+            return true;
+        }
+        mFailAfter--;
+        return false;
+    }
+
+    private synchronized void countBytes(long raw, long sent) {
+        mBytesRaw += raw;
+        mBytesSent += sent;
+    }
+
+    /**
+     * Decodes a request, hands it on and encodes the response, gzipped the
+     * same way as requests are.
+     */
+    private abstract class Handler implements HttpHandler {
+
+        abstract JSONObject handle(JSONObject request, Map<String, String> query)
+                throws JSONException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (shouldFail()) {
+                    readBody(exchange);
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+
+                JSONObject request = null;
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    request = new JSONObject(new String(readBody(exchange), UTF_8));
+                }
+                JSONObject response = handle(request, parseQuery(exchange
+                        .getRequestURI().getRawQuery()));
+
+                byte[] raw = response.toString().getBytes(UTF_8);
+                byte[] body = raw;
+                String accept = exchange.getRequestHeaders().getFirst
+                        ("Accept-Encoding");
+                if (accept != null && accept.contains(GZIP)) {
+                    body = CatalogClient.gzip(raw);
+                    exchange.getResponseHeaders().set("Content-Encoding", GZIP);
+                }
+                countBytes(raw.length, body.length);
+                exchange.getResponseHeaders().set("Content-Type",
+                        "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            } catch (JSONException | RuntimeException e) {
+                exchange.sendResponseHeaders(400, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private byte[] readBody(HttpExchange exchange) throws IOException {
+            InputStream input = exchange.getRequestBody();
+            byte[] sent = CatalogClient.readAll(input);
+            byte[] raw = sent;
+            if (GZIP.equalsIgnoreCase(exchange.getRequestHeaders().getFirst
+                    ("Content-Encoding"))) {
+                raw = CatalogClient.readAll(new GZIPInputStream(new
+                        ByteArrayInputStream(sent)));
+            }
+            countBytes(raw.length, sent.length);
+            return raw;
+        }
+
+        private Map<String, String> parseQuery(String query) throws IOException {
+            HashMap<String, String> parameters = new HashMap<>();
+            if (query == null) {
+                return parameters;
+            }
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(pair.substring(0, equals), URLDecoder.decode(pair
+                            .substring(equals + 1), "UTF-8"));
+                }
+            }
+            return parameters;
+        }
+    }
+}